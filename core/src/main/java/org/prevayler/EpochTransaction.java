@@ -0,0 +1,30 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+import java.util.Date;
+
+/** A Transaction that is given its execution time as milliseconds since the epoch instead of as a Date. Prevayler keeps execution times as milliseconds internally, so executing an EpochTransaction does not create a Date at all.
+ * <br>
+ * <br>Extend this class instead of implementing Transaction directly when your transaction does not need a Date. It is still a Transaction in every other respect and is journaled and recovered the same way.
+ * @param <P> The type or any supertype of the Prevalent System you intend to perform the transaction upon. <br>
+ */
+public abstract class EpochTransaction<P> implements Transaction<P> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** This method is called by Prevayler.execute(Transaction) to execute this Transaction on the given Prevalent System.
+	 * @param prevalentSystem The system on which this Transaction will execute.
+	 * @param executionTime The time at which this Transaction is being executed, in milliseconds since the epoch, as given by Date.getTime(). See Transaction.executeOn().
+	 */
+	public abstract void executeOn(P prevalentSystem, long executionTime);
+
+	/** Calls executeOn(prevalentSystem, executionTime.getTime()).
+	 */
+	public final void executeOn(P prevalentSystem, Date executionTime) {
+		executeOn(prevalentSystem, executionTime.getTime());
+	}
+
+}
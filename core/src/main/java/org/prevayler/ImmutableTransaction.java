@@ -0,0 +1,15 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/** Marks a Transaction or TransactionWithQuery whose state can never change after it is constructed.
+ * <br>
+ * <br>In transaction deep copy mode (the default), Prevayler executes a freshly deserialized copy of each transaction so that it behaves exactly as it will upon recovery. An immutable transaction behaves the same whether it is deserialized or not, so Prevayler still journals its serialized form but executes the given instance directly, saving a full deserialization on every execute().
+ * <br>
+ * <br>Implementations must be final, have only final fields and only reference deeply immutable objects, such as Strings and boxed primitives. Use ImmutabilityVerifier in your tests to check that.
+ * @see org.prevayler.foundation.ImmutabilityVerifier
+ */
+public interface ImmutableTransaction {
+}
@@ -0,0 +1,28 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/** An EpochTransaction that is also given the nanoseconds of its execution time past the millisecond. These are always 0 unless Prevayler is configured with a HybridLogicalClock, which gives every transaction a distinct execution time, strictly later than that of the transaction before it, even one recovered from an earlier run. <code>executionTime * 1000000L + nanos</code> can therefore be used as a unique, time-ordered key.
+ * @param <P> The type or any supertype of the Prevalent System you intend to perform the transaction upon. <br>
+ * @see org.prevayler.implementation.clock.HybridLogicalClock
+ */
+public abstract class NanoTransaction<P> extends EpochTransaction<P> {
+
+	private static final long serialVersionUID = 1L;
+
+	/** This method is called by Prevayler.execute(Transaction) to execute this Transaction on the given Prevalent System.
+	 * @param prevalentSystem The system on which this Transaction will execute.
+	 * @param executionTime The millisecond at which this Transaction is being executed, since the epoch. See Transaction.executeOn().
+	 * @param nanos The nanoseconds, from 0 to 999999, of the execution time past executionTime.
+	 */
+	public abstract void executeOn(P prevalentSystem, long executionTime, int nanos);
+
+	/** Calls executeOn(prevalentSystem, executionTime, 0).
+	 */
+	public final void executeOn(P prevalentSystem, long executionTime) {
+		executeOn(prevalentSystem, executionTime, 0);
+	}
+
+}
@@ -0,0 +1,21 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/** Implemented by prevalent systems that can split themselves into independent segments, so that snapshots are written and read one segment per thread instead of as a single object graph.
+ * <br>
+ * <br>The snapshot file then only holds a small manifest and each segment goes to its own file beside it. Upon recovery, a new instance of the prevalent system's class is created with its no-argument constructor, which it must have but which need not be public, the segments are deserialized in parallel and handed to restoreSnapshotSegments(), much like java.io.Externalizable.
+ */
+public interface SnapshotPartitioner {
+
+	/** Returns the segments that together hold the entire state of this prevalent system. Each segment is serialized separately and concurrently with the others, so segments must not share any objects: shared objects would be restored as separate copies. Called while the prevalent system is locked.
+	 */
+	Object[] snapshotSegments();
+
+	/** Called on a newly constructed instance, upon recovery, with copies of the segments returned by snapshotSegments(), in the same order.
+	 */
+	void restoreSnapshotSegments(Object[] segments);
+
+}
@@ -0,0 +1,18 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler;
+
+/** Thrown by Prevayler.execute() when a transaction is not admitted because too many transactions are already in flight or the configured rate has been exceeded. A rejected transaction has been neither journaled nor executed, so it is always safe to retry it later.
+ * @see org.prevayler.implementation.publishing.AdmissionControl
+ */
+public class TransactionRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TransactionRejectedException(String message) {
+		super(message);
+	}
+
+}
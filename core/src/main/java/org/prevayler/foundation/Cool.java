@@ -1,5 +1,7 @@
 package org.prevayler.foundation;
 
+import java.util.concurrent.locks.Condition;
+
 
 /** Cool things that are often needed.
  */
@@ -13,6 +15,14 @@ public class Cool {
 		}
 	}
 
+	public static void await(Condition condition) {
+		try {
+			condition.await();
+		} catch (InterruptedException e) {
+			unexpected(e);
+		}
+	}
+
 	public static void sleep(long milliseconds) {
 		try {
 			Thread.sleep(milliseconds);
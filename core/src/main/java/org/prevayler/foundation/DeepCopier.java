@@ -5,10 +5,16 @@ import org.prevayler.foundation.serialization.Serializer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class DeepCopier {
 	
@@ -41,72 +47,153 @@ public class DeepCopier {
 	/**
 	 * Produce a deep copy of the given object. Serializes the object through a pipe between two threads. Recommended for
 	 * very large objects, such as an entire prevalent system. The current thread is used for serializing the original
-	 * object in order to respect any synchronization the caller may have around it, and a new thread is used for
+	 * object in order to respect any synchronization the caller may have around it, and a pooled thread is used for
 	 * deserializing the copy.
 	 */
 	public static Object deepCopyParallel(Object original, Serializer serializer) throws Exception {
-		PipedOutputStream outputStream = new PipedOutputStream();
-		PipedInputStream inputStream = new PipedInputStream(outputStream);
+		return deepCopyParallel(original, serializer, RingBufferPipe.DEFAULT_CAPACITY);
+	}
 
-		Receiver receiver = new Receiver(inputStream, serializer);
+	/**
+	 * Same as deepCopyParallel(original, serializer), with a pipe buffer of the given size in bytes.
+	 */
+	public static Object deepCopyParallel(Object original, Serializer serializer, int bufferSize) throws Exception {
+		RingBufferPipe pipe = new RingBufferPipe(bufferSize);
+		Receiver receiver = new Receiver(pipe.input(), serializer);
+		Future future = RECEIVERS.submit(receiver);
 
+		PipeOutput output = new PipeOutput(pipe.output());
+		Exception writeFailure = null;
 		try {
-			serializer.writeObject(outputStream, original);
+			serializer.writeObject(output, original);
+		} catch (Exception e) {
+			if (!output._broken) writeFailure = e;  // Otherwise the receiver failed and closed the pipe, and its failure is the one to report.
 		} finally {
-			outputStream.close();
+			pipe.output().close();
 		}
 
-		return receiver.getResult();
+		Object result = null;
+		Exception readFailure = null;
+		try {
+			result = receiver.getResult(future);
+		} catch (Exception e) {
+			readFailure = e;
+		}
+		if (writeFailure != null) throw writeFailure;
+		if (readFailure != null) throw readFailure;
+		return result;
 	}
 
-	private static class Receiver extends Thread {
+	/**
+	 * Produce a deep copy of the given object by copying the fields of every object in its graph directly, by
+	 * reflection, without serializing it to bytes. Objects are created and their fields copied as Java serialization
+	 * would, so the original and all objects it references must be Serializable.
+	 * <br>
+	 * <br>Objects with custom serialization (writeObject(), readObject(), writeReplace(), readResolve() or
+	 * Externalizable) cannot be copied field by field. ArrayList, LinkedList, HashMap, HashSet, TreeMap and TreeSet,
+	 * whose whole state is their elements, are rebuilt with copies of them. Other such objects, including other
+	 * collections and maps, are copied using the given serializer, one at a time, so objects they
+	 * reference that are also referenced from elsewhere in the graph are duplicated.
+	 * <br>
+	 * <br>Like deepCopy(), the graph is copied by the calling thread.
+	 */
+	public static Object deepCopyReflective(Object original, Serializer serializer) throws Exception {
+		return new ReflectiveCopier(serializer).copy(original);
+	}
 
-		private InputStream _inputStream;
-		private Serializer _serializer;
-		private Object _result;
-		private Exception _exception;
-		private Error _error;
+	/**
+	 * Same as deepCopyReflective(original, new JavaSerializer()).
+	 */
+	public static Object deepCopyReflective(Object original) throws Exception {
+		return deepCopyReflective(original, new JavaSerializer());
+	}
+
+
+	private static final ExecutorService RECEIVERS = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Prevayler deep copy receiver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/** Notes whether writing failed because the pipe was closed by the receiver. */
+	private static class PipeOutput extends FilterOutputStream {
+
+		boolean _broken;
+
+		PipeOutput(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			try {
+				out.write(b);
+			} catch (IOException e) {
+				_broken = true;
+				throw e;
+			}
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			try {
+				out.write(bytes, offset, length);
+			} catch (IOException e) {
+				_broken = true;
+				throw e;
+			}
+		}
+
+	}
+
+	private static class Receiver implements Callable {
+
+		private final InputStream _inputStream;
+		private final Serializer _serializer;
 
 		public Receiver(InputStream inputStream, Serializer serializer) {
 			_inputStream = inputStream;
 			_serializer = serializer;
-			start();
 		}
 
-		public void run() {
+		public Object call() throws Exception {
+			Object result;
 			try {
-				_result = _serializer.readObject(_inputStream);
-            } catch (Exception e) {
-                _exception = e;
+				result = _serializer.readObject(_inputStream);
+			} catch (Exception e) {
+				_inputStream.close();  // Stops the writer instead of letting it serialize the rest of the object.
+				throw e;
 			} catch (Error e) {
-				_error = e;
+				_inputStream.close();
 				throw e;
 			}
 
 			try {
 				// Some serializers may write more than they actually need to deserialize the object, but if
-				// we don't read it all the PipedOutputStream will choke.
-				while (_inputStream.read() != -1) {}
+				// we don't read it all the writer will choke.
+				byte[] buffer = new byte[8192];
+				while (_inputStream.read(buffer) != -1) {}
 			} catch (IOException e) {
 				// The object has been successfully deserialized, so ignore problems at this point (for example,
 				// the serializer may have explicitly closed the _inputStream itself, causing this read to fail).
 			}
+			_inputStream.close();
+			return result;
 		}
 
-		public Object getResult() throws Exception {
+		public Object getResult(Future future) throws Exception {
+			Object result;
 			try {
-				join();
+				result = future.get();
 			} catch (InterruptedException e) {
 				throw new RuntimeException("Unexpected InterruptedException", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Error) throw new RuntimeException("Error during deserialization", e.getCause());
+				throw (Exception) e.getCause();
 			}
 
-			// join() guarantees that all shared memory is synchronized between the two threads
-
-			if (_error != null) throw new RuntimeException("Error during deserialization", _error);
-			if (_exception != null) throw _exception;
-			if (_result == null) throw new RuntimeException("Deep copy failed in an unknown way");
-
-			return _result;
+			if (result == null) throw new RuntimeException("Deep copy failed in an unknown way");
+			return result;
 		}
 
 	}
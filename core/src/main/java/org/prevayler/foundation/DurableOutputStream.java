@@ -9,6 +9,8 @@ import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DurableOutputStream {
 	/**
@@ -17,10 +19,11 @@ public class DurableOutputStream {
 	 * the buffer and syncing to disk on the other hand, to proceed
 	 * concurrently. Note that where both locks are required, we always
 	 * acquire the _syncLock before acquiring the _writeLock to avoid
-	 * deadlock.
+	 * deadlock. They are explicit Locks rather than monitors so that threads
+	 * waiting for a sync don't pin virtual thread carriers.
 	 */
-	private final Object _writeLock = new Object();
-	private final Object _syncLock = new Object();
+	private final Lock _writeLock = new ReentrantLock();
+	private final Lock _syncLock = new ReentrantLock();
 
 	/** The File object is only stashed for the sake of the file() getter. */
 	private final File _file;
@@ -60,6 +63,16 @@ public class DurableOutputStream {
 	}
 
 	public void sync(Guided guide) throws IOException {
+		sync(guide, null);
+	}
+
+	/**
+	 * Like sync(Guided), but runs whenWritten, if not null, as soon as the
+	 * object has been written to the buffer and the guide's turn has ended,
+	 * before waiting for the object to be synced. The object is synced even
+	 * if whenWritten throws.
+	 */
+	public void sync(Guided guide, Runnable whenWritten) throws IOException {
 		int thisWrite;
 
 		// When a thread arrives here, all we care about at first is that it
@@ -75,11 +88,27 @@ public class DurableOutputStream {
 		// Now, having ended the turn, the next thread is allowed to come in
 		// and try to write its object before we get to the sync.
 
-		waitUntilSynced(thisWrite);
+		try {
+			if (whenWritten != null) whenWritten.run();
+		} finally {
+			waitUntilSynced(thisWrite);
+		}
+	}
+
+	/**
+	 * Writes all the given objects and syncs them to disk together. Unlike
+	 * sync(Guided), does not use the guides' turns: the caller is responsible
+	 * for not writing to this stream from any other thread meanwhile.
+	 */
+	public void sync(Guided[] guides) throws IOException {
+		int lastWrite = 0;
+		for (int i = 0; i < guides.length; i++) lastWrite = writeObject(guides[i]);
+		if (guides.length > 0) waitUntilSynced(lastWrite);
 	}
 
 	private int writeObject(Guided guide) throws IOException {
-		synchronized (_writeLock) {
+		_writeLock.lock();
+		try {
 			if (_closed) {
 				throw new IOException("already closed");
 			}
@@ -93,6 +122,8 @@ public class DurableOutputStream {
 
 			_objectsWritten++;
 			return _objectsWritten;
+		} finally {
+			_writeLock.unlock();
 		}
 	}
 
@@ -124,10 +155,12 @@ public class DurableOutputStream {
 		// acquire _syncLock in turn and now see that their object has already
 		// been synced and do nothing.
 
-		synchronized (_syncLock) {
+		_syncLock.lock();
+		try {
 			if (_objectsSynced < thisWrite) {
 				int objectsWritten;
-				synchronized (_writeLock) {
+				_writeLock.lock();
+				try {
 					if (_closed) {
 						throw new IOException("already closed");
 					}
@@ -137,6 +170,8 @@ public class DurableOutputStream {
 					_inactive = swap;
 
 					objectsWritten = _objectsWritten;
+				} finally {
+					_writeLock.unlock();
 				}
 
 				try {
@@ -160,27 +195,38 @@ public class DurableOutputStream {
 				_objectsSynced = objectsWritten;
 				_fileSyncCount++;
 			}
+		} finally {
+			_syncLock.unlock();
 		}
 	}
 
 	public void close() throws IOException {
-		synchronized (_syncLock) {
-			synchronized (_writeLock) {
+		_syncLock.lock();
+		try {
+			_writeLock.lock();
+			try {
 				if (_closed) {
 					return;
 				}
 
 				internalClose();
 				_fileOutputStream.close();
+			} finally {
+				_writeLock.unlock();
 			}
+		} finally {
+			_syncLock.unlock();
 		}
 	}
 
 	private void internalClose() {
-		synchronized (_writeLock) {
+		_writeLock.lock();
+		try {
 			_closed = true;
 			_active = null;
 			_inactive = null;
+		} finally {
+			_writeLock.unlock();
 		}
 	}
 
@@ -188,15 +234,21 @@ public class DurableOutputStream {
 		return _file;
 	}
 
-	public synchronized int fileSyncCount() {
-		synchronized (_syncLock) {
+	public int fileSyncCount() {
+		_syncLock.lock();
+		try {
 			return _fileSyncCount;
+		} finally {
+			_syncLock.unlock();
 		}
 	}
 
 	public boolean reallyClosed() {
-		synchronized (_writeLock) {
+		_writeLock.lock();
+		try {
 			return _closed;
+		} finally {
+			_writeLock.unlock();
 		}
 	}
 }
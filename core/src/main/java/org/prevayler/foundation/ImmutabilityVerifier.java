@@ -0,0 +1,71 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Checks by reflection that instances of a class are deeply immutable. Intended to be called from the application's tests for every ImmutableTransaction:
+ * <br><code>
+ * <br>ImmutabilityVerifier.verify(MyImmutableTransaction.class);
+ * <br></code>
+ * <br>A class is considered immutable if it is final (or an enum), all of its instance fields, including inherited ones, are final and non-transient, and the declared type of every field is a primitive, a known immutable JDK type or, recursively, an immutable class. Arrays, interfaces and non-final field types are rejected because the objects they reference may change.
+ * @see org.prevayler.ImmutableTransaction
+ */
+public class ImmutabilityVerifier {
+
+	private static final Set<Class<?>> KNOWN_IMMUTABLE = new HashSet<Class<?>>(Arrays.<Class<?>>asList(
+			String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+			BigInteger.class, BigDecimal.class, Class.class));
+
+	/** @throws IllegalArgumentException listing the reasons why the given class is not immutable.
+	 */
+	public static void verify(Class<?> clazz) {
+		List<String> problems = problems(clazz);
+		if (!problems.isEmpty()) throw new IllegalArgumentException(clazz.getName() + " is not immutable: " + problems);
+	}
+
+	/** @return The reasons why the given class is not immutable. Empty if there are none.
+	 */
+	public static List<String> problems(Class<?> clazz) {
+		List<String> result = new ArrayList<String>();
+		collectProblems(clazz, result, new HashSet<Class<?>>());
+		return result;
+	}
+
+	private static void collectProblems(Class<?> clazz, List<String> problems, Set<Class<?>> visited) {
+		if (clazz.isPrimitive() || KNOWN_IMMUTABLE.contains(clazz) || clazz.isEnum()) return;
+		if (!visited.add(clazz)) return;
+
+		if (clazz.isArray()) {
+			problems.add(clazz.getComponentType().getName() + "[] is an array");
+			return;
+		}
+		if (!Modifier.isFinal(clazz.getModifiers())) {
+			problems.add(clazz.getName() + " is not final");
+			return;
+		}
+
+		for (Class<?> c = clazz; c != Object.class; c = c.getSuperclass()) {
+			Field[] fields = c.getDeclaredFields();
+			for (int i = 0; i < fields.length; i++) {
+				int modifiers = fields[i].getModifiers();
+				if (Modifier.isStatic(modifiers)) continue;
+				String name = c.getName() + "." + fields[i].getName();
+				if (!Modifier.isFinal(modifiers)) problems.add(name + " is not final");
+				if (Modifier.isTransient(modifiers)) problems.add(name + " is transient");
+				collectProblems(fields[i].getType(), problems, visited);
+			}
+		}
+	}
+
+}
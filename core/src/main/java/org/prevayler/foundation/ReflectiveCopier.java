@@ -0,0 +1,172 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import org.prevayler.foundation.serialization.Serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Copies an object graph field by field, creating each object the way Java serialization would: without calling the constructors of its Serializable classes. See DeepCopier.deepCopyReflective(). Not thread-safe: use one instance per copy.
+ */
+class ReflectiveCopier {
+
+	private static final Set SHARED_TYPES = new HashSet(Arrays.asList(new Class[] {
+			String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class }));
+
+	private static final Map CLASS_INFO = new ConcurrentHashMap();  // Class -> ClassInfo
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	private final Serializer _serializer;
+	private final Map _copies = new IdentityHashMap();  // Original -> copy, so shared references and cycles are preserved.
+
+
+	ReflectiveCopier(Serializer serializer) {
+		_serializer = serializer;
+	}
+
+
+	Object copy(Object original) throws Exception {
+		if (original == null) return null;
+		Class type = original.getClass();
+		if (SHARED_TYPES.contains(type) || original instanceof Class || original instanceof Enum) return original;  // Immutable, or resolved to the same instance by serialization anyway.
+
+		Object copy = _copies.get(original);
+		if (copy != null) return copy;
+
+		if (type.isArray()) return copyArray(original, type.getComponentType());
+		if (!(original instanceof Serializable)) throw new NotSerializableException(type.getName());
+
+		ClassInfo info = classInfo(type);
+		if (info._constructor == null) return copyBySerialization(original);
+		if (info._rebuilt) return rebuild(original, info);
+
+		copy = info._constructor.newInstance(NO_ARGUMENTS);
+		_copies.put(original, copy);
+		for (int i = 0; i < info._fields.length; i++) copyField(info._fields[i], original, copy);
+		return copy;
+	}
+
+
+	private Object copyArray(Object original, Class componentType) throws Exception {
+		int length = Array.getLength(original);
+		Object copy = Array.newInstance(componentType, length);
+		_copies.put(original, copy);
+		if (componentType.isPrimitive()) {
+			System.arraycopy(original, 0, copy, 0, length);
+		} else {
+			Object[] from = (Object[]) original;
+			Object[] to = (Object[]) copy;
+			for (int i = 0; i < length; i++) to[i] = copy(from[i]);
+		}
+		return copy;
+	}
+
+
+	/** Recreates a collection or map that is made of its elements and adds copies of them, as its readObject() would. */
+	private Object rebuild(Object original, ClassInfo info) throws Exception {
+		Object copy = info._comparator == null
+			? info._constructor.newInstance(NO_ARGUMENTS)
+			: info._constructor.newInstance(new Object[] { copy(info._comparator.invoke(original, NO_ARGUMENTS)) });
+		_copies.put(original, copy);
+
+		if (original instanceof Map) {
+			for (Iterator it = ((Map) original).entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				((Map) copy).put(copy(entry.getKey()), copy(entry.getValue()));
+			}
+		} else {
+			for (Iterator it = ((Collection) original).iterator(); it.hasNext();) {
+				((Collection) copy).add(copy(it.next()));
+			}
+		}
+		return copy;
+	}
+
+
+	private Object copyBySerialization(Object original) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		_serializer.writeObject(bytes, original);
+		Object copy = _serializer.readObject(new ByteArrayInputStream(bytes.toByteArray()));
+		_copies.put(original, copy);
+		return copy;
+	}
+
+
+	private void copyField(Field field, Object original, Object copy) throws Exception {
+		Class type = field.getType();
+		if (!type.isPrimitive()) field.set(copy, copy(field.get(original)));
+		else if (type == int.class) field.setInt(copy, field.getInt(original));
+		else if (type == long.class) field.setLong(copy, field.getLong(original));
+		else if (type == boolean.class) field.setBoolean(copy, field.getBoolean(original));
+		else if (type == double.class) field.setDouble(copy, field.getDouble(original));
+		else if (type == byte.class) field.setByte(copy, field.getByte(original));
+		else if (type == char.class) field.setChar(copy, field.getChar(original));
+		else if (type == short.class) field.setShort(copy, field.getShort(original));
+		else field.setFloat(copy, field.getFloat(original));
+	}
+
+
+	private static ClassInfo classInfo(Class type) {
+		ClassInfo result = (ClassInfo) CLASS_INFO.get(type);
+		if (result == null) {
+			result = new ClassInfo(type);
+			CLASS_INFO.put(type, result);
+		}
+		return result;
+	}
+
+
+	/** How objects of a class are copied. A null _constructor means they must be copied by serialization. */
+	static private class ClassInfo {
+		Constructor _constructor;
+		Field[] _fields;
+		boolean _rebuilt;
+		Method _comparator;
+
+		ClassInfo(Class type) {
+			try {
+				if (SerializableClasses.isMadeOfElements(type)) {
+					_comparator = comparatorMethod(type);
+					_constructor = _comparator == null ? type.getConstructor(new Class[0]) : type.getConstructor(new Class[] { Comparator.class });
+					_rebuilt = true;
+					return;
+				}
+				if (SerializableClasses.hasCustomSerialization(type)) return;
+				_fields = SerializableClasses.serializableFields(type);
+				_constructor = SerializableClasses.serializationConstructor(type);
+			} catch (Exception e) {
+				_constructor = null;  // Not accessible from here, for example.
+			}
+		}
+	}
+
+
+	private static Method comparatorMethod(Class type) {
+		try {
+			return type.getMethod("comparator", new Class[0]);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+}
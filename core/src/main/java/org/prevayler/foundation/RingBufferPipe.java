@@ -0,0 +1,174 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A pipe between one writing thread and one reading thread, through a ring buffer. Unlike PipedInputStream, whole arrays are copied in and out at once, the buffer can be as large as desired and threads waiting on it are signalled as soon as there is data or room, instead of polling once a second.
+ * <br>
+ * <br>Closing the output makes the input return end of stream once the buffer is drained. Closing the input makes further writes fail.
+ */
+public class RingBufferPipe {
+
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+	private final byte[] _buffer;
+	private int _readPosition;
+	private int _count;
+	private boolean _outputClosed;
+	private boolean _inputClosed;
+
+	private final Lock _lock = new ReentrantLock();
+	private final Condition _notEmpty = _lock.newCondition();
+	private final Condition _notFull = _lock.newCondition();
+
+	private final InputStream _input = new Input();
+	private final OutputStream _output = new Output();
+
+
+	public RingBufferPipe() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RingBufferPipe(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+		_buffer = new byte[capacity];
+	}
+
+
+	public InputStream input() {
+		return _input;
+	}
+
+	public OutputStream output() {
+		return _output;
+	}
+
+
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		_lock.lock();
+		try {
+			while (length > 0) {
+				while (_count == _buffer.length && !_inputClosed) await(_notFull);
+				if (_inputClosed) throw new IOException("Pipe closed by the reader.");
+				if (_outputClosed) throw new IOException("Pipe closed.");
+
+				int writePosition = (_readPosition + _count) % _buffer.length;
+				int chunk = Math.min(length, Math.min(_buffer.length - _count, _buffer.length - writePosition));
+				System.arraycopy(bytes, offset, _buffer, writePosition, chunk);
+				_count += chunk;
+				offset += chunk;
+				length -= chunk;
+				_notEmpty.signal();
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		_lock.lock();
+		try {
+			while (_count == 0 && !_outputClosed && !_inputClosed) await(_notEmpty);
+			if (_inputClosed) throw new IOException("Pipe closed.");
+			if (_count == 0) return -1;
+
+			int chunk = Math.min(length, Math.min(_count, _buffer.length - _readPosition));
+			System.arraycopy(_buffer, _readPosition, bytes, offset, chunk);
+			_readPosition = (_readPosition + chunk) % _buffer.length;
+			_count -= chunk;
+			_notFull.signal();
+			return chunk;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private int available() {
+		_lock.lock();
+		try {
+			return _count;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void closeOutput() {
+		_lock.lock();
+		try {
+			_outputClosed = true;
+			_notEmpty.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private void closeInput() {
+		_lock.lock();
+		try {
+			_inputClosed = true;
+			_count = 0;
+			_notFull.signal();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	private static void await(Condition condition) throws InterruptedIOException {
+		try {
+			condition.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting on the pipe.");
+		}
+	}
+
+
+	private class Input extends InputStream {
+		private final byte[] _single = new byte[1];
+
+		public int read() throws IOException {
+			return RingBufferPipe.this.read(_single, 0, 1) == -1 ? -1 : _single[0] & 0xFF;
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return RingBufferPipe.this.read(bytes, offset, length);
+		}
+
+		public int available() {
+			return RingBufferPipe.this.available();
+		}
+
+		public void close() {
+			closeInput();
+		}
+	}
+
+
+	private class Output extends OutputStream {
+		private final byte[] _single = new byte[1];
+
+		public void write(int b) throws IOException {
+			_single[0] = (byte) b;
+			RingBufferPipe.this.write(_single, 0, 1);
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			RingBufferPipe.this.write(bytes, offset, length);
+		}
+
+		public void close() {
+			closeOutput();
+		}
+	}
+
+}
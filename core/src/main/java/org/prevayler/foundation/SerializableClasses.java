@@ -0,0 +1,107 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.foundation;
+
+import java.io.Externalizable;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Reflection over Serializable classes, for code that copies or encodes objects the way Java serialization does, without going through ObjectOutputStream.
+ */
+public class SerializableClasses {
+
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	private static final Set MADE_OF_ELEMENTS = new HashSet(Arrays.asList(new Class[] {
+			ArrayList.class, LinkedList.class, HashMap.class, HashSet.class, TreeMap.class, TreeSet.class }));
+
+	/** Whether the whole state of objects of the class is their elements, and the comparator of sorted ones, so that they can be recreated by adding their elements to a new instance. Only true for ArrayList, LinkedList, HashMap, HashSet, TreeMap and TreeSet themselves: other collections and maps, such as an access-ordered LinkedHashMap or a bounded LinkedBlockingQueue, and subclasses may keep more state in their fields.
+	 */
+	public static boolean isMadeOfElements(Class type) {
+		return MADE_OF_ELEMENTS.contains(type);
+	}
+
+	/** Whether Java serialization of the class involves code of its own: Externalizable, writeObject(), readObject(), readObjectNoData(), writeReplace() or readResolve(). Objects of such classes cannot be recreated by setting their fields.
+	 */
+	public static boolean hasCustomSerialization(Class type) {
+		if (Externalizable.class.isAssignableFrom(type)) return true;
+		for (Class c = type; c != null; c = c.getSuperclass()) {
+			if (declares(c, "writeObject", ObjectOutputStream.class)) return true;
+			if (declares(c, "readObject", ObjectInputStream.class)) return true;
+			if (declares(c, "readObjectNoData", null)) return true;
+			if (declares(c, "writeReplace", null)) return true;
+			if (declares(c, "readResolve", null)) return true;
+		}
+		return false;
+	}
+
+
+	private static boolean declares(Class c, String methodName, Class parameterType) {
+		try {
+			c.getDeclaredMethod(methodName, parameterType == null ? new Class[0] : new Class[] { parameterType });
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+
+	/** The non-static, non-transient fields of the Serializable classes in the hierarchy, made accessible, from the topmost class down and sorted by name within each class. The other fields are left as the constructor of the first non-Serializable superclass sets them.
+	 */
+	public static Field[] serializableFields(Class type) {
+		List hierarchy = new ArrayList();
+		for (Class c = type; c != null && Serializable.class.isAssignableFrom(c); c = c.getSuperclass()) hierarchy.add(0, c);
+
+		List result = new ArrayList();
+		for (int h = 0; h < hierarchy.size(); h++) {
+			Field[] declared = ((Class) hierarchy.get(h)).getDeclaredFields();
+			Arrays.sort(declared, new Comparator() {
+				public int compare(Object f1, Object f2) {
+					return ((Field) f1).getName().compareTo(((Field) f2).getName());
+				}
+			});
+			for (int i = 0; i < declared.length; i++) {
+				int modifiers = declared[i].getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) continue;
+				declared[i].setAccessible(true);
+				result.add(declared[i]);
+			}
+		}
+		return (Field[]) result.toArray(new Field[result.size()]);
+	}
+
+
+	/** A constructor that creates an instance of the given class by calling only the no-argument constructor of its first non-Serializable superclass, as serialization does. It needs the JVM's sun.reflect.ReflectionFactory, which is looked up by reflection.
+	 * @throws Exception If the JVM has no ReflectionFactory or the superclass has no accessible no-argument constructor.
+	 */
+	public static Constructor serializationConstructor(Class type) throws Exception {
+		Class base = type;
+		while (Serializable.class.isAssignableFrom(base)) base = base.getSuperclass();
+		Constructor baseConstructor = base.getDeclaredConstructor(new Class[0]);
+
+		Class factoryClass = Class.forName("sun.reflect.ReflectionFactory");
+		Object factory = factoryClass.getMethod("getReflectionFactory", new Class[0]).invoke(null, NO_ARGUMENTS);
+		Method newConstructor = factoryClass.getMethod("newConstructorForSerialization", new Class[] { Class.class, Constructor.class });
+		Constructor result = (Constructor) newConstructor.invoke(factory, new Object[] { type, baseConstructor });
+		result.setAccessible(true);
+		return result;
+	}
+
+}
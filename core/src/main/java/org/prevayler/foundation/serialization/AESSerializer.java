@@ -0,0 +1,399 @@
+// Prevayler, The Free-Software Prevalence Layer
+// Copyright 2001-2006 by Klaus Wuestefeld
+//
+// This library is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+// FITNESS FOR A PARTICULAR PURPOSE.
+//
+// Prevayler is a trademark of Klaus Wuestefeld.
+// See the LICENSE file for license details.
+
+package org.prevayler.foundation.serialization;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Encrypts and authenticates with AES in counter mode and HMAC-SHA256, encrypt-then-MAC. Much faster than
+ * DESSerializer, since AES is accelerated by most processors, and any tampering with the data is detected instead of
+ * going unnoticed.
+ * <p>
+ * The delegate's output is encrypted in chunks, each one followed by its own authentication tag, so corrupted or
+ * altered data is never handed to the delegate and a stream cut short is reported. The cipher and MAC contexts are
+ * reused by each thread. Each stream starts with a random 96-bit nonce, which adds 33 bytes to every journal record or
+ * snapshot. When parallel, chunks are encrypted and decrypted on all processors at once, which pays off for snapshots.
+ */
+public class AESSerializer implements Serializer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final int VERSION = 1;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int FINAL = 0x80000000;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int CHUNKS_IN_FLIGHT = 2 * THREADS;
+
+    private static final ExecutorService CRYPTERS = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Prevayler parallel AES");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ThreadLocal _contexts = new ThreadLocal() {
+        protected Object initialValue() {
+            try {
+                return new Context();
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private final Serializer _delegate;
+    private final SecretKeySpec _encryptionKey;
+    private final SecretKeySpec _authenticationKey;
+    private final int _chunkSize;
+    private final boolean _parallel;
+
+    /**
+     * @param key
+     *            A 16, 24 or 32-byte AES key. Separate keys for encryption and authentication are derived from it.
+     */
+    public AESSerializer(Serializer delegate, byte[] key) throws GeneralSecurityException {
+        this(delegate, key, DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * @param chunkSize
+     *            The number of bytes encrypted at once, a multiple of 16 up to MAX_CHUNK_SIZE. Streams written with any chunk size can be read.
+     * @param parallel
+     *            Whether chunks are encrypted and decrypted on a pool of threads, one per processor. Worth it only for streams of many chunks, such as snapshots.
+     */
+    public AESSerializer(Serializer delegate, byte[] key, int chunkSize, boolean parallel) throws GeneralSecurityException {
+        if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+            throw new IllegalArgumentException("Key must be 16, 24 or 32 bytes");
+        }
+        if (chunkSize < 16 || chunkSize % 16 != 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException("The chunk size must be a positive multiple of 16, up to " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        _delegate = delegate;
+        _chunkSize = chunkSize;
+        _parallel = parallel;
+
+        Mac derivation = Mac.getInstance("HmacSHA256");
+        derivation.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] encryptionKey = new byte[key.length];
+        System.arraycopy(derivation.doFinal(ascii("Prevayler AES encryption")), 0, encryptionKey, 0, key.length);
+        _encryptionKey = new SecretKeySpec(encryptionKey, "AES");
+        _authenticationKey = new SecretKeySpec(derivation.doFinal(ascii("Prevayler AES authentication")), "HmacSHA256");
+        context();  // Fails here if AES/CTR or HmacSHA256 is not available.
+    }
+
+    public void writeObject(OutputStream stream, Object object) throws Exception {
+        byte[] header = new byte[1 + NONCE_SIZE];
+        header[0] = VERSION;
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, header, 1, NONCE_SIZE);
+        stream.write(header);
+
+        EncryptingOutputStream encrypt = new EncryptingOutputStream(stream, nonce);
+        _delegate.writeObject(encrypt, object);
+        encrypt.close();
+    }
+
+    public Object readObject(InputStream stream) throws Exception {
+        DataInputStream data = new DataInputStream(stream);
+        int version = data.read();
+        if (version != VERSION) throw new IOException("Not an AESSerializer stream, or an unsupported version: " + version);
+        byte[] nonce = new byte[NONCE_SIZE];
+        data.readFully(nonce);
+        return _delegate.readObject(new DecryptingInputStream(data, nonce));
+    }
+
+
+    private static byte[] ascii(String label) {
+        byte[] result = new byte[label.length()];
+        for (int i = 0; i < result.length; i++) result[i] = (byte) label.charAt(i);
+        return result;
+    }
+
+    private Context context() throws GeneralSecurityException {
+        try {
+            return (Context) _contexts.get();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /** Runs the task on the pool when parallel, or right away. The result is to be passed to result(). */
+    private Object process(Callable task) throws IOException {
+        if (_parallel) return CRYPTERS.submit(task);
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw wrap(e);
+        }
+    }
+
+    private static byte[] result(Object processed) throws IOException {
+        if (!(processed instanceof Future)) return (byte[]) processed;
+        try {
+            return (byte[]) ((Future) processed).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an AES chunk.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw wrap(e.getCause());
+        }
+    }
+
+    private static IOException wrap(Throwable cause) {
+        IOException exception = new IOException("Unable to process an AES chunk: " + cause);
+        exception.initCause(cause);
+        return exception;
+    }
+
+
+    /** The reusable cipher and MAC of a thread. */
+    private class Context {
+        final Cipher _cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        final Mac _mac = Mac.getInstance("HmacSHA256");
+        final byte[] _counter = new byte[16];
+
+        Context() throws GeneralSecurityException {
+            _mac.init(_authenticationKey);
+        }
+
+        /** Encrypts or decrypts in place a chunk starting at the given position in the stream: counter mode is its own inverse. */
+        void crypt(byte[] nonce, long position, byte[] bytes, int offset, int length) throws GeneralSecurityException {
+            long firstBlock = position / 16;
+            if (firstBlock + (length + 15) / 16 > 0x100000000L) throw new GeneralSecurityException("Stream too long for a single nonce.");
+            System.arraycopy(nonce, 0, _counter, 0, NONCE_SIZE);
+            for (int i = 0; i < 4; i++) _counter[NONCE_SIZE + i] = (byte) (firstBlock >>> (24 - 8 * i));
+            _cipher.init(Cipher.ENCRYPT_MODE, _encryptionKey, new IvParameterSpec(_counter));
+            _cipher.doFinal(bytes, offset, length, bytes, offset);
+        }
+
+        /** The tag of the chunk with the given index, its length word and ciphertext. */
+        byte[] tag(byte[] nonce, long index, byte[] chunk, int offset, int length) {
+            _mac.update((byte) VERSION);
+            _mac.update(nonce);
+            for (int shift = 56; shift >= 0; shift -= 8) _mac.update((byte) (index >>> shift));
+            _mac.update(chunk, offset, length);
+            byte[] result = new byte[TAG_SIZE];
+            System.arraycopy(_mac.doFinal(), 0, result, 0, TAG_SIZE);
+            return result;
+        }
+    }
+
+
+    /** Encrypts a chunk into its length word, ciphertext and tag. */
+    private class Sealing implements Callable {
+        private final byte[] _nonce;
+        private final long _index;
+        private final long _position;
+        private final byte[] _plaintext;
+        private final int _length;
+        private final boolean _final;
+
+        Sealing(byte[] nonce, long index, long position, byte[] plaintext, int length, boolean isFinal) {
+            _nonce = nonce;
+            _index = index;
+            _position = position;
+            _plaintext = plaintext;
+            _length = length;
+            _final = isFinal;
+        }
+
+        public Object call() throws GeneralSecurityException {
+            Context context = context();
+            byte[] result = new byte[4 + _length + TAG_SIZE];
+            int word = _final ? _length | FINAL : _length;
+            for (int i = 0; i < 4; i++) result[i] = (byte) (word >>> (24 - 8 * i));
+            System.arraycopy(_plaintext, 0, result, 4, _length);
+            context.crypt(_nonce, _position, result, 4, _length);
+            System.arraycopy(context.tag(_nonce, _index, result, 0, 4 + _length), 0, result, 4 + _length, TAG_SIZE);
+            return result;
+        }
+    }
+
+
+    /** Checks the tag of a chunk, then decrypts it. */
+    private class Opening implements Callable {
+        private final byte[] _nonce;
+        private final long _index;
+        private final long _position;
+        private final byte[] _sealed;  // Length word, ciphertext and tag.
+
+        Opening(byte[] nonce, long index, long position, byte[] sealed) {
+            _nonce = nonce;
+            _index = index;
+            _position = position;
+            _sealed = sealed;
+        }
+
+        public Object call() throws GeneralSecurityException, IOException {
+            Context context = context();
+            int length = _sealed.length - 4 - TAG_SIZE;
+            byte[] tag = new byte[TAG_SIZE];
+            System.arraycopy(_sealed, 4 + length, tag, 0, TAG_SIZE);
+            if (!MessageDigest.isEqual(tag, context.tag(_nonce, _index, _sealed, 0, 4 + length))) {
+                throw new IOException("AES chunk " + _index + " failed authentication: corrupted, tampered with or encrypted with another key.");
+            }
+            context.crypt(_nonce, _position, _sealed, 4, length);
+            byte[] result = new byte[length];
+            System.arraycopy(_sealed, 4, result, 0, length);
+            return result;
+        }
+    }
+
+
+    private class EncryptingOutputStream extends OutputStream {
+
+        private final OutputStream _out;
+        private final byte[] _nonce;
+        private byte[] _chunk = new byte[_chunkSize];
+        private int _count;
+        private long _index;
+        private long _position;
+        private final LinkedList _pending = new LinkedList();  // Sealed chunks or their futures, in order.
+        private boolean _closed;
+
+        EncryptingOutputStream(OutputStream out, byte[] nonce) {
+            _out = out;
+            _nonce = nonce;
+        }
+
+        public void write(int b) throws IOException {
+            if (_count == _chunkSize) seal(false);
+            _chunk[_count++] = (byte) b;
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (_count == _chunkSize) seal(false);
+                int part = Math.min(length, _chunkSize - _count);
+                System.arraycopy(bytes, offset, _chunk, _count, part);
+                _count += part;
+                offset += part;
+                length -= part;
+            }
+        }
+
+        private void seal(boolean isFinal) throws IOException {
+            if (_pending.size() == CHUNKS_IN_FLIGHT) _out.write(result(_pending.removeFirst()));
+            _pending.add(process(new Sealing(_nonce, _index++, _position, _chunk, _count, isFinal)));
+            _position += _count;
+            if (_parallel) _chunk = new byte[_chunkSize];  // The pending task still reads the old one.
+            _count = 0;
+            if (!_parallel) _out.write(result(_pending.removeFirst()));
+        }
+
+        public void close() throws IOException {
+            if (_closed) return;
+            _closed = true;
+            seal(true);
+            while (!_pending.isEmpty()) _out.write(result(_pending.removeFirst()));
+            _out.flush();
+        }
+    }
+
+
+    private class DecryptingInputStream extends InputStream {
+
+        private final DataInputStream _in;
+        private final byte[] _nonce;
+        private long _index;
+        private long _streamPosition;  // Of the next chunk to be read ahead.
+        private boolean _finalRead;
+        private final LinkedList _pending = new LinkedList();  // Opened chunks or their futures, in order.
+        private byte[] _chunk = new byte[0];
+        private int _position;
+
+        DecryptingInputStream(DataInputStream in, byte[] nonce) {
+            _in = in;
+            _nonce = nonce;
+        }
+
+        public int read() throws IOException {
+            if (!ensureAvailable()) return -1;
+            return _chunk[_position++] & 0xFF;
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!ensureAvailable()) return -1;
+            int part = Math.min(length, _chunk.length - _position);
+            System.arraycopy(_chunk, _position, bytes, offset, part);
+            _position += part;
+            return part;
+        }
+
+        public int available() {
+            return _chunk.length - _position;
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (_position == _chunk.length) {
+                readAhead();
+                if (_pending.isEmpty()) return false;
+                _chunk = result(_pending.removeFirst());
+                _position = 0;
+            }
+            return true;
+        }
+
+        private void readAhead() throws IOException {
+            int limit = _parallel ? CHUNKS_IN_FLIGHT : 1;
+            while (!_finalRead && _pending.size() < limit) {
+                int word;
+                try {
+                    word = _in.readInt();
+                } catch (EOFException e) {
+                    throw new EOFException("AES stream cut short: its last chunk is missing.");
+                }
+                _finalRead = (word & FINAL) != 0;
+                int length = word & ~FINAL;
+                if (length > MAX_CHUNK_SIZE || (!_finalRead && length % 16 != 0)) throw new IOException("AES chunk " + _index + " corrupted.");
+
+                byte[] sealed = new byte[4 + length + TAG_SIZE];
+                for (int i = 0; i < 4; i++) sealed[i] = (byte) (word >>> (24 - 8 * i));
+                _in.readFully(sealed, 4, length + TAG_SIZE);
+                _pending.add(process(new Opening(_nonce, _index++, _streamPosition, sealed)));
+                _streamPosition += length;
+            }
+        }
+    }
+
+}
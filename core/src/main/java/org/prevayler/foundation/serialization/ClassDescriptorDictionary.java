@@ -0,0 +1,195 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.StreamCorruptedException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The class descriptors used by a DictionaryJavaSerializer, each one known by a 64-bit fingerprint of its
+ * serialized form. Since fingerprints depend only on the descriptors themselves, they are the same in every JVM that
+ * has the same versions of the classes, and a descriptor read back from a journal written by an earlier run gets the
+ * fingerprint it had then.
+ * <p>
+ * Descriptors are kept in the order they were first seen, so that a journal can write the ones added since it last
+ * wrote any: see definitions(). Thread-safe.
+ */
+public class ClassDescriptorDictionary {
+
+	private final Map _fingerprintsByDescriptor = new ConcurrentHashMap();  // Local ObjectStreamClass -> Long
+	private final Map _descriptorsByFingerprint = new ConcurrentHashMap();  // Long -> ObjectStreamClass read from its definition
+	private final List _definitions = new ArrayList();  // byte[], in the order they were added.
+
+
+	/** The fingerprint of the given local class descriptor, adding its definition to this dictionary the first time. */
+	public long fingerprint(ObjectStreamClass descriptor) throws IOException {
+		Long result = (Long) _fingerprintsByDescriptor.get(descriptor);
+		if (result == null) {
+			result = new Long(define(definitionOf(descriptor)));
+			_fingerprintsByDescriptor.put(descriptor, result);
+		}
+		return result.longValue();
+	}
+
+
+	/** The class descriptor, as read from its definition, with the given fingerprint. */
+	public ObjectStreamClass descriptor(long fingerprint) throws InvalidClassException {
+		ObjectStreamClass result = (ObjectStreamClass) _descriptorsByFingerprint.get(new Long(fingerprint));
+		if (result == null) throw new InvalidClassException("Unknown class descriptor fingerprint " + Long.toHexString(fingerprint) + ". The definitions written along with it have not been read.");
+		return result;
+	}
+
+
+	/** Adds a class descriptor definition, as returned by definitions(), unless it is already known.
+	 * @return Its fingerprint.
+	 */
+	public long define(byte[] definition) throws IOException {
+		long fingerprint = fingerprintOf(definition);
+		Long key = new Long(fingerprint);
+		if (_descriptorsByFingerprint.containsKey(key)) return fingerprint;
+
+		ObjectStreamClass descriptor = DefinitionReader.descriptorIn(definition);
+		synchronized (_definitions) {
+			if (_descriptorsByFingerprint.containsKey(key)) return fingerprint;
+			_descriptorsByFingerprint.put(key, descriptor);
+			_definitions.add(definition);
+		}
+		return fingerprint;
+	}
+
+
+	/** The number of definitions in this dictionary. */
+	public int size() {
+		synchronized (_definitions) {
+			return _definitions.size();
+		}
+	}
+
+
+	/** The definitions from the given index, inclusive, to the other, exclusive, in the order they were added and in a single block that defineAll() accepts. */
+	public byte[] definitions(int from, int to) throws IOException {
+		synchronized (_definitions) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeInt(to - from);
+			for (int i = from; i < to; i++) {
+				byte[] definition = (byte[]) _definitions.get(i);
+				data.writeInt(definition.length);
+				data.write(definition);
+			}
+			data.flush();
+			return bytes.toByteArray();
+		}
+	}
+
+
+	/** Adds all the definitions in a block returned by definitions(). */
+	public void defineAll(byte[] definitions) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(definitions));
+		int count = data.readInt();
+		for (int i = 0; i < count; i++) {
+			byte[] definition = new byte[data.readInt()];
+			data.readFully(definition);
+			define(definition);
+		}
+	}
+
+
+	private static byte[] definitionOf(ObjectStreamClass descriptor) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DefinitionWriter writer = new DefinitionWriter(bytes);
+		writer.writeObject(descriptor);
+		writer.close();
+		return writer._definition;
+	}
+
+
+	private static long fingerprintOf(byte[] definition) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(definition);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Every JVM must support SHA-1", e);
+		}
+		long result = 0;
+		for (int i = 0; i < 8; i++) result = (result << 8) | (digest[i] & 0xFF);
+		return result;
+	}
+
+
+	/** Writes a class descriptor as Java serialization would and keeps the bytes of its own definition, without those of its superclasses. */
+	static private class DefinitionWriter extends ObjectOutputStream {
+		private final ByteArrayOutputStream _bytes;
+		byte[] _definition;
+
+		DefinitionWriter(ByteArrayOutputStream bytes) throws IOException {
+			super(bytes);
+			_bytes = bytes;
+		}
+
+		protected void writeClassDescriptor(ObjectStreamClass descriptor) throws IOException {
+			if (_definition != null) {
+				super.writeClassDescriptor(descriptor);
+				return;
+			}
+			flush();
+			int start = _bytes.size();
+			super.writeClassDescriptor(descriptor);
+			flush();
+			byte[] all = _bytes.toByteArray();
+			_definition = new byte[all.length - start];
+			System.arraycopy(all, start, _definition, 0, _definition.length);
+		}
+	}
+
+
+	/** Reads a definition back, as the body of a class descriptor with no superclass in an otherwise empty stream, so that the string handles in it mean what they meant when it was written. */
+	static private class DefinitionReader extends ObjectInputStream {
+		private ObjectStreamClass _descriptor;
+
+		private DefinitionReader(InputStream stream) throws IOException {
+			super(stream);
+		}
+
+		static ObjectStreamClass descriptorIn(byte[] definition) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream data = new DataOutputStream(bytes);
+			data.writeShort(STREAM_MAGIC);
+			data.writeShort(STREAM_VERSION);
+			data.writeByte(TC_CLASSDESC);
+			data.write(definition);
+			data.writeByte(TC_ENDBLOCKDATA);
+			data.writeByte(TC_NULL);
+			data.flush();
+
+			DefinitionReader reader = new DefinitionReader(new ByteArrayInputStream(bytes.toByteArray()));
+			try {
+				reader.readObject();
+			} catch (ClassNotFoundException e) {
+				// The class is resolved again wherever the descriptor is used.
+			}
+			if (reader._descriptor == null) throw new StreamCorruptedException("Class descriptor definition corrupted");
+			return reader._descriptor;
+		}
+
+		protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+			ObjectStreamClass result = super.readClassDescriptor();
+			if (_descriptor == null) _descriptor = result;
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,574 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.SerializableClasses;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes and reads objects in a compact binary format, without the class descriptors and field names Java serialization
+ * writes with every stream. This serializer can be used for snapshots, journals or both.
+ * <p>
+ * Classes are registered up front with integer ids, which are all that is written to identify them. The same classes
+ * must be registered with the same ids wherever the objects are read; new classes can be registered later, but the id
+ * of a class must never change once it has been written. Objects of registered classes are written as the values of
+ * their non-transient fields, as Java serialization would find them, in order of declaration class and name, so
+ * adding, removing or changing fields makes records written before unreadable. Numbers are written as variable-length
+ * integers, so small values take a single byte. Shared references and cycles are preserved.
+ * <p>
+ * Strings, boxed primitives, Date, BigInteger, BigDecimal, arrays, ArrayList, LinkedList, HashMap, TreeMap, HashSet
+ * and TreeSet need no registration and are written as their elements, and comparator for the sorted ones. Registered
+ * enums are written as ordinals. Any other Serializable object, including other collections and maps, such as
+ * LinkedHashMap, and objects of registered classes with custom serialization methods, is embedded using Java
+ * serialization: this works, but takes as much room as Java serialization and objects it references are not shared
+ * with the rest of the graph.
+ */
+public class CompactSerializer implements Serializer {
+
+	/** The lowest id that can be given to a registered class. Lower ids are used by the format itself. */
+	public static final int FIRST_CLASS_ID = 64;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int NULL = 0;
+	private static final int REFERENCE = 1;
+	private static final int STRING = 2;
+	private static final int BOOLEAN = 3;
+	private static final int BYTE = 4;
+	private static final int CHARACTER = 5;
+	private static final int SHORT = 6;
+	private static final int INTEGER = 7;
+	private static final int LONG = 8;
+	private static final int FLOAT = 9;
+	private static final int DOUBLE = 10;
+	private static final int DATE = 11;
+	private static final int BIG_INTEGER = 12;
+	private static final int BIG_DECIMAL = 13;
+	private static final int ARRAY = 14;
+	private static final int JAVA = 15;
+
+	/** Array component types written as their index here. Other component types are written as their class id. */
+	private static final Class[] ARRAY_COMPONENTS = { boolean.class, byte.class, char.class, short.class, int.class, long.class, float.class, double.class, Object.class, String.class };
+
+	/** Registered with fixed ids. LinkedHashMap and LinkedHashSet keep theirs, but are embedded. */
+	private static final Class[] BUILT_IN_CLASSES = { ArrayList.class, LinkedList.class, HashMap.class, LinkedHashMap.class, TreeMap.class, HashSet.class, LinkedHashSet.class, TreeSet.class };
+	private static final int FIRST_BUILT_IN_ID = 16;
+
+	private static final int FIELDS = 0;
+	private static final int ENUM = 1;
+	private static final int COLLECTION = 2;
+	private static final int MAP = 3;
+	private static final int EMBEDDED = 4;
+
+	private static final Object[] NO_ARGUMENTS = new Object[0];
+
+	private final Map _classesByType = new ConcurrentHashMap();  // Class -> RegisteredClass
+	private final Map _classesById = new ConcurrentHashMap();  // Integer -> RegisteredClass
+	private int _nextId = FIRST_CLASS_ID;  // Guarded by this.
+	private final JavaSerializer _java;
+
+
+	public CompactSerializer() {
+		this(null);
+	}
+
+	/**
+	 * @param loader Used to load the classes of objects embedded using Java serialization.
+	 */
+	public CompactSerializer(ClassLoader loader) {
+		_java = new JavaSerializer(loader);
+		for (int i = 0; i < BUILT_IN_CLASSES.length; i++) add(BUILT_IN_CLASSES[i], FIRST_BUILT_IN_ID + i);
+	}
+
+
+	/**
+	 * Registers a class with the next free id, which is one more than the highest id registered so far, or
+	 * FIRST_CLASS_ID. Registering classes in a different order will therefore give them different ids.
+	 * @return This serializer, so that registrations can be chained.
+	 */
+	public synchronized CompactSerializer register(Class type) {
+		return register(type, _nextId);
+	}
+
+	/**
+	 * Registers a class with the given id.
+	 * @return This serializer, so that registrations can be chained.
+	 * @throws IllegalArgumentException If the id is below FIRST_CLASS_ID or taken by another class, if the class is already registered with another id or if the class is not Serializable.
+	 */
+	public synchronized CompactSerializer register(Class type, int id) {
+		if (id < FIRST_CLASS_ID) throw new IllegalArgumentException("Class ids must be at least " + FIRST_CLASS_ID + ": " + id);
+		if (!Serializable.class.isAssignableFrom(type)) throw new IllegalArgumentException(type.getName() + " is not Serializable.");
+
+		RegisteredClass byType = (RegisteredClass) _classesByType.get(type);
+		RegisteredClass byId = (RegisteredClass) _classesById.get(new Integer(id));
+		if (byType != null && byType._id == id) return this;
+		if (byType != null) throw new IllegalArgumentException(type.getName() + " is already registered with id " + byType._id);
+		if (byId != null) throw new IllegalArgumentException("Id " + id + " is already taken by " + byId._type.getName());
+
+		add(type, id);
+		_nextId = Math.max(_nextId, id + 1);
+		return this;
+	}
+
+	private void add(Class type, int id) {
+		RegisteredClass registered = new RegisteredClass(type, id);
+		_classesByType.put(type, registered);
+		_classesById.put(new Integer(id), registered);
+	}
+
+
+	public void writeObject(OutputStream stream, Object object) throws Exception {
+		Output output = new Output(stream);
+		output.writeVarint(FORMAT_VERSION);
+		output.writeValue(object);
+		output.flush();
+		stream.flush();
+	}
+
+	public Object readObject(InputStream stream) throws Exception {
+		Input input = new Input(stream);
+		int version = input.readVarint();
+		if (version != FORMAT_VERSION) throw new StreamCorruptedException("Unknown compact serialization format version: " + version);
+		return input.readValue();
+	}
+
+
+	private RegisteredClass registered(Object object) {
+		RegisteredClass result = (RegisteredClass) _classesByType.get(object.getClass());
+		if (result == null && object instanceof Enum) result = (RegisteredClass) _classesByType.get(((Enum) object).getDeclaringClass());  // A constant with a body of its own.
+		return result;
+	}
+
+	private RegisteredClass registered(int id) throws StreamCorruptedException {
+		RegisteredClass result = (RegisteredClass) _classesById.get(new Integer(id));
+		if (result == null) throw new StreamCorruptedException("No class is registered with id " + id);
+		return result;
+	}
+
+
+	/** How objects of a registered class are written and read. */
+	static private class RegisteredClass {
+		final Class _type;
+		final int _id;
+		int _kind = EMBEDDED;
+		Constructor _constructor;
+		Method _comparator;
+		Field[] _fields;
+		Object[] _constants;
+
+		RegisteredClass(Class type, int id) {
+			_type = type;
+			_id = id;
+			try {
+				if (type.isEnum()) {
+					_constants = type.getEnumConstants();
+					_kind = ENUM;
+				} else if (SerializableClasses.isMadeOfElements(type)) {
+					_comparator = comparatorMethod(type);
+					_constructor = _comparator == null ? type.getConstructor(new Class[0]) : type.getConstructor(new Class[] { Comparator.class });
+					_kind = Map.class.isAssignableFrom(type) ? MAP : COLLECTION;
+				} else if (!SerializableClasses.hasCustomSerialization(type)) {
+					_fields = SerializableClasses.serializableFields(type);
+					_constructor = SerializableClasses.serializationConstructor(type);
+					_kind = FIELDS;
+				}
+			} catch (Exception e) {
+				_kind = EMBEDDED;  // Not accessible from here, for example.
+			}
+		}
+
+		private static Method comparatorMethod(Class type) {
+			try {
+				return type.getMethod("comparator", new Class[0]);
+			} catch (NoSuchMethodException e) {
+				return null;
+			}
+		}
+	}
+
+
+	private class Output {
+		private final OutputStream _stream;
+		private final byte[] _buffer = new byte[8192];
+		private int _count;
+		private Map _handles;  // Object -> Integer, created when first needed.
+
+		Output(OutputStream stream) {
+			_stream = stream;
+		}
+
+		void writeValue(Object value) throws Exception {
+			if (value == null) {
+				writeVarint(NULL);
+				return;
+			}
+			Class type = value.getClass();
+			if (type == String.class) {
+				writeVarint(STRING);
+				writeString((String) value);
+			} else if (type == Integer.class) {
+				writeVarint(INTEGER);
+				writeSigned(((Integer) value).intValue());
+			} else if (type == Long.class) {
+				writeVarint(LONG);
+				writeSigned(((Long) value).longValue());
+			} else if (type == Boolean.class) {
+				writeVarint(BOOLEAN);
+				writeByte(((Boolean) value).booleanValue() ? 1 : 0);
+			} else if (type == Byte.class) {
+				writeVarint(BYTE);
+				writeByte(((Byte) value).byteValue());
+			} else if (type == Character.class) {
+				writeVarint(CHARACTER);
+				writeVarint(((Character) value).charValue());
+			} else if (type == Short.class) {
+				writeVarint(SHORT);
+				writeSigned(((Short) value).shortValue());
+			} else if (type == Float.class) {
+				writeVarint(FLOAT);
+				writeFixed(Float.floatToIntBits(((Float) value).floatValue()), 4);
+			} else if (type == Double.class) {
+				writeVarint(DOUBLE);
+				writeFixed(Double.doubleToLongBits(((Double) value).doubleValue()), 8);
+			} else if (type == BigInteger.class) {
+				writeVarint(BIG_INTEGER);
+				writeBytes(((BigInteger) value).toByteArray());
+			} else if (type == BigDecimal.class) {
+				writeVarint(BIG_DECIMAL);
+				writeBytes(((BigDecimal) value).unscaledValue().toByteArray());
+				writeSigned(((BigDecimal) value).scale());
+			} else {
+				writeObjectWithIdentity(value, type);
+			}
+		}
+
+		/** Every object written from here on gets a handle, in order, whether or not it is referenced again. */
+		private void writeObjectWithIdentity(Object value, Class type) throws Exception {
+			if (_handles == null) _handles = new IdentityHashMap();
+			Integer handle = (Integer) _handles.get(value);
+			if (handle != null) {
+				writeVarint(REFERENCE);
+				writeVarint(handle.intValue());
+				return;
+			}
+			_handles.put(value, new Integer(_handles.size()));
+
+			if (type == Date.class) {
+				writeVarint(DATE);
+				writeSigned(((Date) value).getTime());
+				return;
+			}
+
+			int componentCode = type.isArray() ? componentCode(type.getComponentType()) : -1;
+			RegisteredClass registered = type.isArray() ? null : registered(value);
+			if (componentCode != -1) {
+				writeVarint(ARRAY);
+				writeVarint(componentCode);
+				writeArray(value, type.getComponentType());
+			} else if (registered != null && registered._kind != EMBEDDED) {
+				writeVarint(registered._id);
+				writeRegistered(value, registered);
+			} else {
+				writeVarint(JAVA);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				_java.writeObject(bytes, value);
+				writeBytes(bytes.toByteArray());
+			}
+		}
+
+		/** -1 if arrays with this component type must be embedded using Java serialization. */
+		private int componentCode(Class componentType) {
+			for (int i = 0; i < ARRAY_COMPONENTS.length; i++) {
+				if (ARRAY_COMPONENTS[i] == componentType) return i;
+			}
+			RegisteredClass registered = (RegisteredClass) _classesByType.get(componentType);
+			return registered == null ? -1 : registered._id;
+		}
+
+		private void writeArray(Object array, Class componentType) throws Exception {
+			int length = Array.getLength(array);
+			writeVarint(length);
+			if (componentType == byte.class) {
+				writeRaw((byte[]) array, 0, length);
+			} else if (componentType.isPrimitive()) {
+				for (int i = 0; i < length; i++) writePrimitive(componentType, Array.get(array, i));
+			} else {
+				Object[] elements = (Object[]) array;
+				for (int i = 0; i < length; i++) writeValue(elements[i]);
+			}
+		}
+
+		private void writeRegistered(Object value, RegisteredClass registered) throws Exception {
+			switch (registered._kind) {
+			case ENUM:
+				writeVarint(((Enum) value).ordinal());
+				break;
+			case COLLECTION:
+				if (registered._comparator != null) writeValue(registered._comparator.invoke(value, NO_ARGUMENTS));
+				writeVarint(((Collection) value).size());
+				for (Iterator it = ((Collection) value).iterator(); it.hasNext();) writeValue(it.next());
+				break;
+			case MAP:
+				if (registered._comparator != null) writeValue(registered._comparator.invoke(value, NO_ARGUMENTS));
+				writeVarint(((Map) value).size());
+				for (Iterator it = ((Map) value).entrySet().iterator(); it.hasNext();) {
+					Map.Entry entry = (Map.Entry) it.next();
+					writeValue(entry.getKey());
+					writeValue(entry.getValue());
+				}
+				break;
+			default:
+				Field[] fields = registered._fields;
+				for (int i = 0; i < fields.length; i++) {
+					Class type = fields[i].getType();
+					if (type.isPrimitive()) writePrimitive(type, fields[i].get(value));
+					else writeValue(fields[i].get(value));
+				}
+			}
+		}
+
+		private void writePrimitive(Class type, Object boxed) throws Exception {
+			if (type == int.class) writeSigned(((Integer) boxed).intValue());
+			else if (type == long.class) writeSigned(((Long) boxed).longValue());
+			else if (type == boolean.class) writeByte(((Boolean) boxed).booleanValue() ? 1 : 0);
+			else if (type == double.class) writeFixed(Double.doubleToLongBits(((Double) boxed).doubleValue()), 8);
+			else if (type == byte.class) writeByte(((Byte) boxed).byteValue());
+			else if (type == char.class) writeVarint(((Character) boxed).charValue());
+			else if (type == short.class) writeSigned(((Short) boxed).shortValue());
+			else writeFixed(Float.floatToIntBits(((Float) boxed).floatValue()), 4);
+		}
+
+		private void writeString(String string) throws Exception {
+			int length = string.length();
+			writeVarint(length);
+			for (int i = 0; i < length; i++) writeVarint(string.charAt(i));
+		}
+
+		private void writeBytes(byte[] bytes) throws Exception {
+			writeVarint(bytes.length);
+			writeRaw(bytes, 0, bytes.length);
+		}
+
+		/** Zigzag encoding, so that small negative numbers are short too. */
+		private void writeSigned(long value) throws Exception {
+			writeVarint((value << 1) ^ (value >> 63));
+		}
+
+		void writeVarint(long value) throws Exception {
+			while ((value & ~0x7FL) != 0) {
+				writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		private void writeFixed(long value, int bytes) throws Exception {
+			for (int i = bytes - 1; i >= 0; i--) writeByte((int) (value >>> (i * 8)));
+		}
+
+		private void writeByte(int b) throws Exception {
+			if (_count == _buffer.length) flush();
+			_buffer[_count++] = (byte) b;
+		}
+
+		private void writeRaw(byte[] bytes, int offset, int length) throws Exception {
+			if (length > _buffer.length - _count) {
+				flush();
+				if (length > _buffer.length) {
+					_stream.write(bytes, offset, length);
+					return;
+				}
+			}
+			System.arraycopy(bytes, offset, _buffer, _count, length);
+			_count += length;
+		}
+
+		void flush() throws Exception {
+			_stream.write(_buffer, 0, _count);
+			_count = 0;
+		}
+	}
+
+
+	private class Input {
+		private final InputStream _stream;
+		private final List _handles = new ArrayList();
+
+		Input(InputStream stream) {
+			_stream = stream;
+		}
+
+		Object readValue() throws Exception {
+			int tag = readVarint();
+			switch (tag) {
+			case NULL: return null;
+			case REFERENCE: return _handles.get(readVarint());
+			case STRING: return readString();
+			case INTEGER: return new Integer((int) readSigned());
+			case LONG: return new Long(readSigned());
+			case BOOLEAN: return Boolean.valueOf(readByte() != 0);
+			case BYTE: return new Byte((byte) readByte());
+			case CHARACTER: return new Character((char) readVarint());
+			case SHORT: return new Short((short) readSigned());
+			case FLOAT: return new Float(Float.intBitsToFloat((int) readFixed(4)));
+			case DOUBLE: return new Double(Double.longBitsToDouble(readFixed(8)));
+			case BIG_INTEGER: return new BigInteger(readBytes());
+			case BIG_DECIMAL: return new BigDecimal(new BigInteger(readBytes()), (int) readSigned());
+			case DATE: return handle(new Date(readSigned()));
+			case ARRAY: return readArray();
+			case JAVA: return handle(_java.readObject(new ByteArrayInputStream(readBytes())));
+			default: return readRegistered(registered(tag));
+			}
+		}
+
+		private Object handle(Object object) {
+			_handles.add(object);
+			return object;
+		}
+
+		private Object readArray() throws Exception {
+			int code = readVarint();
+			Class componentType = code < ARRAY_COMPONENTS.length ? ARRAY_COMPONENTS[code] : registered(code)._type;
+			int length = readVarint();
+			Object array = handle(Array.newInstance(componentType, length));
+			if (componentType == byte.class) {
+				readRaw((byte[]) array);
+			} else if (componentType.isPrimitive()) {
+				for (int i = 0; i < length; i++) Array.set(array, i, readPrimitive(componentType));
+			} else {
+				Object[] elements = (Object[]) array;
+				for (int i = 0; i < length; i++) elements[i] = readValue();
+			}
+			return array;
+		}
+
+		private Object readRegistered(RegisteredClass registered) throws Exception {
+			switch (registered._kind) {
+			case ENUM:
+				return handle(registered._constants[readVarint()]);
+			case COLLECTION: {
+				Collection result = (Collection) newInstance(registered);
+				for (int size = readVarint(); size > 0; size--) result.add(readValue());
+				return result;
+			}
+			case MAP: {
+				Map result = (Map) newInstance(registered);
+				for (int size = readVarint(); size > 0; size--) result.put(readValue(), readValue());
+				return result;
+			}
+			case FIELDS: {
+				Object result = handle(registered._constructor.newInstance(NO_ARGUMENTS));
+				Field[] fields = registered._fields;
+				for (int i = 0; i < fields.length; i++) {
+					Class type = fields[i].getType();
+					fields[i].set(result, type.isPrimitive() ? readPrimitive(type) : readValue());
+				}
+				return result;
+			}
+			default:
+				throw new StreamCorruptedException(registered._type.getName() + " is registered with id " + registered._id + " but cannot be read field by field.");
+			}
+		}
+
+		/** Takes the collection's handle before reading its comparator, as it was given before the comparator was written. */
+		private Object newInstance(RegisteredClass registered) throws Exception {
+			if (registered._comparator == null) return handle(registered._constructor.newInstance(NO_ARGUMENTS));
+			int handle = _handles.size();
+			_handles.add(null);
+			Object result = registered._constructor.newInstance(new Object[] { readValue() });
+			_handles.set(handle, result);
+			return result;
+		}
+
+		private Object readPrimitive(Class type) throws Exception {
+			if (type == int.class) return new Integer((int) readSigned());
+			if (type == long.class) return new Long(readSigned());
+			if (type == boolean.class) return Boolean.valueOf(readByte() != 0);
+			if (type == double.class) return new Double(Double.longBitsToDouble(readFixed(8)));
+			if (type == byte.class) return new Byte((byte) readByte());
+			if (type == char.class) return new Character((char) readVarint());
+			if (type == short.class) return new Short((short) readSigned());
+			return new Float(Float.intBitsToFloat((int) readFixed(4)));
+		}
+
+		private String readString() throws Exception {
+			char[] chars = new char[readVarint()];
+			for (int i = 0; i < chars.length; i++) chars[i] = (char) readVarint();
+			return new String(chars);
+		}
+
+		private byte[] readBytes() throws Exception {
+			byte[] result = new byte[readVarint()];
+			readRaw(result);
+			return result;
+		}
+
+		private long readSigned() throws Exception {
+			long zigzag = readVarlong();
+			return (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+
+		int readVarint() throws Exception {
+			return (int) readVarlong();
+		}
+
+		private long readVarlong() throws Exception {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = readByte();
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) return result;
+			}
+			throw new StreamCorruptedException("Malformed variable-length integer.");
+		}
+
+		private long readFixed(int bytes) throws Exception {
+			long result = 0;
+			for (int i = 0; i < bytes; i++) result = (result << 8) | readByte();
+			return result;
+		}
+
+		private int readByte() throws Exception {
+			int result = _stream.read();
+			if (result == -1) throw new EOFException();
+			return result;
+		}
+
+		private void readRaw(byte[] bytes) throws Exception {
+			int read = 0;
+			while (read < bytes.length) {
+				int count = _stream.read(bytes, read, bytes.length - read);
+				if (count == -1) throw new EOFException();
+				read += count;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.ObjectInputStreamWithClassLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * Writes and reads objects using Java serialization, except that class descriptors are replaced by their 8-byte
+ * fingerprints in a ClassDescriptorDictionary and the stream header is left out. Objects keep their standard Java
+ * serialization semantics, custom writeObject() and readObject() methods included, but each record is much smaller
+ * and faster to read since its descriptors are not written and parsed again.
+ * <p>
+ * This serializer can only be used for journals: the journal writes the definitions in the dictionary to each journal
+ * file before the first transaction that might need them, and reads them back on recovery. Records can only be read
+ * where the dictionary holds the definitions they use, so it cannot be used for snapshots or with replication.
+ */
+public class DictionaryJavaSerializer implements Serializer {
+
+	private final ClassDescriptorDictionary _dictionary;
+	private final ClassLoader _loader;
+
+	public DictionaryJavaSerializer() {
+		this(null);
+	}
+
+	public DictionaryJavaSerializer(ClassLoader loader) {
+		_dictionary = new ClassDescriptorDictionary();
+		_loader = loader;
+	}
+
+
+	public ClassDescriptorDictionary dictionary() {
+		return _dictionary;
+	}
+
+
+	public void writeObject(OutputStream stream, Object object) throws IOException {
+		ObjectOutputStream objects = new DictionaryOutputStream(stream);
+		objects.writeObject(object);
+		objects.close();
+	}
+
+	public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
+		ObjectInputStream objects = new DictionaryInputStream(stream);
+		Object object = objects.readObject();
+		objects.close();
+		return object;
+	}
+
+
+	private class DictionaryOutputStream extends ObjectOutputStream {
+		DictionaryOutputStream(OutputStream stream) throws IOException {
+			super(stream);
+		}
+
+		protected void writeStreamHeader() {}
+
+		protected void writeClassDescriptor(ObjectStreamClass descriptor) throws IOException {
+			writeLong(_dictionary.fingerprint(descriptor));
+		}
+	}
+
+
+	private class DictionaryInputStream extends ObjectInputStreamWithClassLoader {
+		DictionaryInputStream(InputStream stream) throws IOException {
+			super(stream, _loader);
+		}
+
+		protected void readStreamHeader() {}
+
+		protected ObjectStreamClass readClassDescriptor() throws IOException {
+			return _dictionary.descriptor(readLong());
+		}
+	}
+
+}
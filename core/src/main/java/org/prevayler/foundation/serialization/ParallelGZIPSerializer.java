@@ -0,0 +1,339 @@
+// Prevayler, The Free-Software Prevalence Layer
+// Copyright 2001-2006 by Klaus Wuestefeld
+//
+// This library is distributed in the hope that it will be useful, but WITHOUT
+// ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+// FITNESS FOR A PARTICULAR PURPOSE.
+//
+// Prevayler is a trademark of Klaus Wuestefeld.
+// See the LICENSE file for license details.
+
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses like GZIPSerializer, but splits the stream into blocks that are compressed on all processors at once,
+ * as pigz does. Meant for snapshots, which are large enough for that to pay off; configure it with a snapshot suffix
+ * of your choice, such as "gzsnapshot".
+ * <p>
+ * Each block is written as a separate gzip member, so the output is a standard multi-member gzip stream that gunzip
+ * and GZIPInputStream can read. The compressed size of each member is also noted in a subfield of its gzip header,
+ * which other readers ignore, so that reading can find the members without inflating them and inflate them on all
+ * processors too. Plain gzip streams, such as those written by GZIPSerializer, are read as well, on a single thread.
+ * <p>
+ * Since the blocks are compressed independently, the output is slightly larger than GZIPSerializer's.
+ */
+public class ParallelGZIPSerializer implements Serializer {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int BLOCKS_IN_FLIGHT = 2 * THREADS;  // Bounds the memory used while the delegate runs ahead.
+
+    private static final int FEXTRA = 4;
+    private static final int HEADER_SIZE = 20;  // The 10 fixed bytes, XLEN, then the size subfield: SI1, SI2, LEN and the 4-byte size.
+    private static final int TRAILER_SIZE = 8;
+
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Prevayler parallel gzip");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Serializer _delegate;
+    private final int _blockSize;
+    private final int _level;
+
+    public ParallelGZIPSerializer(Serializer delegate) {
+        this(delegate, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param blockSize The number of uncompressed bytes in each block. Larger blocks compress a little better but leave processors idle on smaller snapshots.
+     * @param level The Deflater compression level.
+     */
+    public ParallelGZIPSerializer(Serializer delegate, int blockSize, int level) {
+        if (blockSize < 1) throw new IllegalArgumentException("The block size must be positive: " + blockSize);
+        _delegate = delegate;
+        _blockSize = blockSize;
+        _level = level;
+    }
+
+    public void writeObject(OutputStream stream, Object object) throws Exception {
+        BlockOutputStream blocks = new BlockOutputStream(stream);
+        _delegate.writeObject(blocks, object);
+        blocks.close();
+    }
+
+    public Object readObject(InputStream stream) throws Exception {
+        byte[] header = new byte[HEADER_SIZE];
+        int read = readFully(stream, header, 0, header.length);
+        InputStream alreadyRead = new ByteArrayInputStream(header, 0, read);
+        if (read < HEADER_SIZE || memberSize(header) == -1) {
+            return _delegate.readObject(new GZIPInputStream(new SequenceInputStream(alreadyRead, stream)));
+        }
+        return _delegate.readObject(new BlockInputStream(new SequenceInputStream(alreadyRead, stream)));
+    }
+
+
+    /** The total size of the gzip member starting with the given header, as noted by this class, or -1 if there is no such note. */
+    private static int memberSize(byte[] header) {
+        boolean noted = (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B && header[2] == Deflater.DEFLATED
+            && (header[3] & FEXTRA) != 0 && littleEndian(header, 10, 2) == 8
+            && header[12] == 'P' && header[13] == 'Z' && littleEndian(header, 14, 2) == 4;
+        return noted ? littleEndian(header, 16, 4) : -1;
+    }
+
+    private static int littleEndian(byte[] bytes, int offset, int length) {
+        int result = 0;
+        for (int i = length - 1; i >= 0; i--) result = (result << 8) | (bytes[offset + i] & 0xFF);
+        return result;
+    }
+
+    private static void putLittleEndian(byte[] bytes, int offset, int length, long value) {
+        for (int i = 0; i < length; i++) bytes[offset + i] = (byte) (value >>> (8 * i));
+    }
+
+    private static int readFully(InputStream stream, byte[] bytes, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = stream.read(bytes, offset + total, length - total);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    private static byte[] result(Future future) throws IOException {
+        try {
+            return (byte[]) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a gzip block.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            IOException exception = new IOException("Unable to process a gzip block: " + cause);
+            exception.initCause(cause);
+            throw exception;
+        }
+    }
+
+
+    /** Collects the delegate's output into blocks and writes them, compressed, in order. */
+    private class BlockOutputStream extends OutputStream {
+
+        private final OutputStream _out;
+        private byte[] _block = new byte[_blockSize];
+        private int _count;
+        private final LinkedList _pending = new LinkedList();  // Futures of compressed members, in order.
+        private boolean _closed;
+
+        BlockOutputStream(OutputStream out) {
+            _out = out;
+        }
+
+        public void write(int b) throws IOException {
+            if (_count == _block.length) submit();
+            _block[_count++] = (byte) b;
+        }
+
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (_count == _block.length) submit();
+                int chunk = Math.min(length, _block.length - _count);
+                System.arraycopy(bytes, offset, _block, _count, chunk);
+                _count += chunk;
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void submit() throws IOException {
+            if (_pending.size() == BLOCKS_IN_FLIGHT) _out.write(result((Future) _pending.removeFirst()));
+            _pending.add(COMPRESSORS.submit(new Compression(_block, _count, _level)));
+            _block = new byte[_blockSize];
+            _count = 0;
+        }
+
+        public void close() throws IOException {
+            if (_closed) return;
+            _closed = true;
+            if (_count > 0 || _pending.isEmpty()) submit();
+            while (!_pending.isEmpty()) _out.write(result((Future) _pending.removeFirst()));
+            _out.flush();
+        }
+    }
+
+
+    static private class Compression implements Callable {
+
+        private final byte[] _block;
+        private final int _length;
+        private final int _level;
+
+        Compression(byte[] block, int length, int level) {
+            _block = block;
+            _length = length;
+            _level = level;
+        }
+
+        public Object call() {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(_length / 2 + HEADER_SIZE + TRAILER_SIZE);
+            byte[] header = new byte[HEADER_SIZE];
+            header[0] = (byte) 0x1F;
+            header[1] = (byte) 0x8B;
+            header[2] = Deflater.DEFLATED;
+            header[3] = FEXTRA;
+            header[9] = (byte) 255;  // Unknown operating system.
+            putLittleEndian(header, 10, 2, 8);
+            header[12] = 'P';
+            header[13] = 'Z';
+            putLittleEndian(header, 14, 2, 4);
+            member.write(header, 0, header.length);
+
+            Deflater deflater = new Deflater(_level, true);
+            try {
+                deflater.setInput(_block, 0, _length);
+                deflater.finish();
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) member.write(buffer, 0, deflater.deflate(buffer));
+            } finally {
+                deflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(_block, 0, _length);
+            byte[] trailer = new byte[TRAILER_SIZE];
+            putLittleEndian(trailer, 0, 4, crc.getValue());
+            putLittleEndian(trailer, 4, 4, _length);
+            member.write(trailer, 0, trailer.length);
+
+            byte[] result = member.toByteArray();
+            putLittleEndian(result, 16, 4, result.length);
+            return result;
+        }
+    }
+
+
+    /** Reads the members ahead and inflates them in parallel, returning their contents in order. */
+    static private class BlockInputStream extends InputStream {
+
+        private final DataInputStream _in;
+        private final LinkedList _pending = new LinkedList();  // Futures of inflated blocks, in order.
+        private boolean _membersExhausted;
+        private byte[] _block = new byte[0];
+        private int _position;
+
+        BlockInputStream(InputStream in) {
+            _in = new DataInputStream(in);
+        }
+
+        public int read() throws IOException {
+            if (!ensureAvailable()) return -1;
+            return _block[_position++] & 0xFF;
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!ensureAvailable()) return -1;
+            int chunk = Math.min(length, _block.length - _position);
+            System.arraycopy(_block, _position, bytes, offset, chunk);
+            _position += chunk;
+            return chunk;
+        }
+
+        public int available() {
+            return _block.length - _position;
+        }
+
+        private boolean ensureAvailable() throws IOException {
+            while (_position == _block.length) {
+                readAhead();
+                if (_pending.isEmpty()) return false;
+                _block = result((Future) _pending.removeFirst());
+                _position = 0;
+            }
+            return true;
+        }
+
+        private void readAhead() throws IOException {
+            while (!_membersExhausted && _pending.size() < BLOCKS_IN_FLIGHT) {
+                byte[] header = new byte[HEADER_SIZE];
+                int read = readFully(_in, header, 0, HEADER_SIZE);
+                if (read == 0) {
+                    _membersExhausted = true;
+                    return;
+                }
+                int size = read < HEADER_SIZE ? -1 : memberSize(header);
+                if (size < HEADER_SIZE + TRAILER_SIZE) throw new IOException("Gzip member not written by ParallelGZIPSerializer, or corrupted.");
+
+                byte[] member = new byte[size];
+                System.arraycopy(header, 0, member, 0, HEADER_SIZE);
+                if (readFully(_in, member, HEADER_SIZE, size - HEADER_SIZE) < size - HEADER_SIZE) throw new EOFException("Unexpected end of gzip stream.");
+                _pending.add(COMPRESSORS.submit(new Decompression(member)));
+            }
+        }
+    }
+
+
+    static private class Decompression implements Callable {
+
+        private final byte[] _member;
+
+        Decompression(byte[] member) {
+            _member = member;
+        }
+
+        public Object call() throws IOException {
+            int trailer = _member.length - TRAILER_SIZE;
+            byte[] result = new byte[littleEndian(_member, trailer + 4, 4)];
+
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(_member, HEADER_SIZE, trailer - HEADER_SIZE);
+                int total = 0;
+                while (total < result.length) {
+                    int inflated = inflater.inflate(result, total, result.length - total);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    total += inflated;
+                }
+                if (total != result.length) throw new IOException("Gzip member size mismatch.");
+            } catch (DataFormatException e) {
+                IOException exception = new IOException("Corrupted gzip member: " + e.getMessage());
+                exception.initCause(e);
+                throw exception;
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(result, 0, result.length);
+            if ((int) crc.getValue() != littleEndian(_member, trailer, 4)) throw new IOException("Gzip member checksum mismatch.");
+            return result;
+        }
+    }
+
+}
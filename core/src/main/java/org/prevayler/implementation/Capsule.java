@@ -1,40 +1,71 @@
 package org.prevayler.implementation;
 
+import org.prevayler.ImmutableTransaction;
 import org.prevayler.foundation.Chunk;
 import org.prevayler.foundation.serialization.Serializer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public abstract class Capsule implements Serializable {
 
-	private final byte[] _serialized;
+	private volatile byte[] _serialized;
 	private transient Object _directTransaction = null;
+	private transient Serializer _journalSerializer;
+	private transient volatile Object _prepared; // A copy deserialized ahead of time, or the Failure that prevented it, until it is taken.
+	private static final AtomicReferenceFieldUpdater<Capsule, Object> PREPARED = AtomicReferenceFieldUpdater.newUpdater(Capsule.class, Object.class, "_prepared");
 	
 	protected Capsule(Object transaction, Serializer journalSerializer, boolean transactionDeepCopyMode) {
-		if(transactionDeepCopyMode == false){
+		this(transaction, journalSerializer, transactionDeepCopyMode, false);
+	}
+
+	/**
+	 * @param lazySerialization If <code>true</code> and the transaction is executed directly, it is only serialized when its bytes are first needed (by a journal, a replication client or Java serialization of this capsule), if ever.
+	 */
+	protected Capsule(Object transaction, Serializer journalSerializer, boolean transactionDeepCopyMode, boolean lazySerialization) {
+		if(transactionDeepCopyMode == false || transaction instanceof ImmutableTransaction){
 			_directTransaction = transaction;
 		}
+		_journalSerializer = journalSerializer;
+		if (_directTransaction == null || !lazySerialization) {
+			_serialized = serialize(transaction, journalSerializer);
+		}
+	}
+
+	protected Capsule(byte[] serialized) {
+		_serialized = serialized;
+	}
+
+	private static byte[] serialize(Object transaction, Serializer journalSerializer) {
 		try {
 			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
 			journalSerializer.writeObject(bytes, transaction);
-			_serialized = bytes.toByteArray();
+			return bytes.toByteArray();
 		} catch (Exception exception) {
 			throw new Error("Unable to serialize transaction", exception);
 		}
 	}
 
-	protected Capsule(byte[] serialized) {
-		_serialized = serialized;
-	}
-
 	/**
-	 * Gets the serialized representation of the transaction. Callers must not modify the returned array.
+	 * Gets the serialized representation of the transaction, serializing it first if that was deferred. Callers must not modify the returned array.
 	 */
 	public byte[] serialized() {
-		return _serialized;
+		byte[] result = _serialized;
+		if (result == null) {
+			result = serialize(_directTransaction, _journalSerializer);
+			_serialized = result;
+		}
+		return result;
+	}
+
+	private void writeObject(ObjectOutputStream stream) throws IOException {
+		serialized();
+		stream.defaultWriteObject();
 	}
 
 	/**
@@ -42,42 +73,96 @@ public abstract class Capsule implements Serializable {
 	 */
 	public Object deserialize(Serializer journalSerializer) {
 		try {
-			return journalSerializer.readObject(new ByteArrayInputStream(_serialized));
+			return journalSerializer.readObject(new ByteArrayInputStream(serialized()));
 		} catch (Exception exception) {
 			throw new Error("Unable to deserialize transaction", exception);
 		}
 	}
 
 	/**
-	 * Executes a freshly deserialized copy of the transaction by default. If <code>configureTransactionDeepCopy</code> was set to <code>true</code> on your <code>PrevaylerFactory</code>, this will execute the transaction directly. The execution will synchronize on the prevalentSystem.
+	 * Executes a freshly deserialized copy of the transaction by default. If <code>configureTransactionDeepCopy</code> was set to <code>false</code> on your <code>PrevaylerFactory</code>, or if the transaction is an <code>ImmutableTransaction</code>, this will execute the transaction directly. The execution will synchronize on the prevalentSystem.
 	 */
 	public void executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
-		Object transaction;
-		if(_directTransaction != null){
-			transaction = _directTransaction;
-		}
-		else{
-			transaction = deserialize(journalSerializer);
+		executeOn(prevalentSystem, executionTime.getTime(), journalSerializer);
+	}
+
+	/**
+	 * The same as executeOn(Object, Date, Serializer), with the execution time in milliseconds since the epoch.
+	 */
+	public void executeOn(Object prevalentSystem, long executionTime, Serializer journalSerializer) {
+		execute(transactionToExecute(journalSerializer), prevalentSystem, executionTime);
+	}
+
+	/**
+	 * Deserializes, ahead of time, the copy that transactionToExecute() will hand out next. Publishers call it on the publishing thread before the transaction's turn, so that it is deserialized while earlier transactions are still executing. Does nothing if the transaction is executed directly. An Error is not thrown here but by transactionToExecute(), as if it had been thrown then.
+	 */
+	public void prepareTransactionToExecute() {
+		if (_directTransaction != null || _journalSerializer == null) return;
+		Object prepared;
+		try {
+			prepared = deserialize(_journalSerializer);
+		} catch (Error error) {
+			prepared = new Failure(error);
 		}
-		
+		_prepared = prepared;
+	}
+
+	/**
+	 * Returns the transaction object to be given to execute(): the transaction itself if it is executed directly, otherwise a fresh copy, deserialized now unless prepareTransactionToExecute() already did. Each prepared copy is handed out only once. Does not require any lock, so subscribers can call it before entering their critical section.
+	 */
+	public Object transactionToExecute(Serializer journalSerializer) {
+		if (_directTransaction != null) return _directTransaction;
+		Object prepared = PREPARED.getAndSet(this, null);
+		if (prepared == null) return deserialize(journalSerializer);
+		if (prepared instanceof Failure) throw ((Failure) prepared)._error;
+		return prepared;
+	}
+
+	/**
+	 * Executes the given transaction, obtained from transactionToExecute(), synchronizing on the prevalentSystem.
+	 */
+	public void execute(Object transaction, Object prevalentSystem, Date executionTime) {
+		execute(transaction, prevalentSystem, executionTime.getTime());
+	}
+
+	/**
+	 * The same as execute(Object, Object, Date), with the execution time in milliseconds since the epoch. Only Transactions that are not EpochTransactions are given a Date, created for them.
+	 */
+	public void execute(Object transaction, Object prevalentSystem, long executionTime) {
+		execute(transaction, prevalentSystem, executionTime, 0);
+	}
+
+	/**
+	 * The same as execute(Object, Object, long), with the nanoseconds, from 0 to 999999, of the execution time past executionTime. Only NanoTransactions are given them.
+	 */
+	public void execute(Object transaction, Object prevalentSystem, long executionTime, int nanos) {
 		synchronized (prevalentSystem) {
-			justExecute(transaction, prevalentSystem, executionTime);
+			justExecute(transaction, prevalentSystem, executionTime, nanos);
 		}
 	}
 
 	/**
 	 * Actually executes the Transaction or TransactionWithQuery. The caller
 	 * is responsible for synchronizing on the prevalentSystem.
+	 * @param executionTime In milliseconds since the epoch.
+	 * @param nanos Of the execution time past executionTime.
 	 */
-	protected abstract void justExecute(Object transaction, Object prevalentSystem, Date executionTime);
+	protected abstract void justExecute(Object transaction, Object prevalentSystem, long executionTime, int nanos);
 		
 	/**
 	 * Makes a clean copy of this capsule that will have its own query result fields.
 	 */
 	public abstract Capsule cleanCopy();
 
+	/** A capsule of the same kind holding only this one's serialized bytes, so that executing it deserializes a fresh transaction and fills in query results of its own.
+	 */
+	Capsule serializedCopy() {
+		if (this instanceof TransactionWithQueryCapsule) return new TransactionWithQueryCapsule(serialized());
+		return new TransactionCapsule(serialized());
+	}
+
 	Chunk toChunk() {
-		Chunk chunk = new Chunk(_serialized);
+		Chunk chunk = new Chunk(serialized());
 		chunk.setParameter("withQuery", String.valueOf(this instanceof TransactionWithQueryCapsule));
 		return chunk;
 	}
@@ -91,4 +176,13 @@ public abstract class Capsule implements Serializable {
 		}
 	}
 
+
+	static private class Failure {
+		final Error _error;
+
+		Failure(Error error) {
+			_error = error;
+		}
+	}
+
 }
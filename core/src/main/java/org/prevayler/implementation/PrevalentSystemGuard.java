@@ -5,20 +5,25 @@ import org.prevayler.Query;
 import org.prevayler.foundation.Cool;
 import org.prevayler.foundation.DeepCopier;
 import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.publishing.DurabilityBarrier;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Date;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 
-	private P _prevalentSystem; // All access to field is synchronized on "this", and all access to object is synchronized on itself; "this" is always locked before the object
-	private long _systemVersion; // All access is synchronized on "this"
-	private boolean _ignoreRuntimeExceptions; // All access is synchronized on "this"
+	private P _prevalentSystem; // All access to field is guarded by _lock, and all access to object is synchronized on itself; _lock is always acquired before the object
+	private long _systemVersion; // All access is guarded by _lock
+	private boolean _ignoreRuntimeExceptions; // All access is guarded by _lock
+	private final ReentrantLock _lock = new ReentrantLock(); // Not a monitor, so that waiting threads don't pin virtual thread carriers
+	private final Condition _versionAdvanced = _lock.newCondition();
 	private final Serializer _journalSerializer;
+	private volatile DurabilityBarrier _durabilityBarrier; // Null unless transactions are executed before they are durable
 	
 	public PrevalentSystemGuard(P prevalentSystem, long systemVersion, Serializer journalSerializer) {
 		_prevalentSystem = prevalentSystem;
@@ -28,34 +33,71 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 	}
 
 	public P prevalentSystem() {
-        synchronized (this) {
+        _lock.lock();
+        try {
             if (_prevalentSystem == null) {
                 throw new Error("Prevayler is no longer allowing access to the prevalent system due to an Error thrown from an earlier transaction.");
             }
             return _prevalentSystem;
+        } finally {
+            _lock.unlock();
         }
 	}
 	
 	public void subscribeTo(TransactionPublisher publisher) throws IOException, ClassNotFoundException {
 		long initialTransaction;
-		synchronized (this) {
+		_lock.lock();
+		try {
 			_ignoreRuntimeExceptions = true;     //During pending transaction recovery (rolling forward), RuntimeExceptions are ignored because they were already thrown and handled during the first transaction execution.
 			initialTransaction = _systemVersion + 1;
+		} finally {
+			_lock.unlock();
 		}
 
 		publisher.subscribe(this, initialTransaction);
 
-		synchronized (this) {
+		_lock.lock();
+		try {
 			_ignoreRuntimeExceptions = false;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Makes queries and snapshots wait at the given DurabilityBarrier until every transaction received is durable, for publishers that send transactions before they are.
+	 */
+	public void durabilityBarrier(DurabilityBarrier barrier) {
+		_durabilityBarrier = barrier;
+	}
+
+	/** Makes this guard ignore RuntimeExceptions thrown by transactions from now on, as it does during recovery.
+	 */
+	public void ignoreRuntimeExceptions() {
+		_lock.lock();
+		try {
+			_ignoreRuntimeExceptions = true;
+		} finally {
+			_lock.unlock();
 		}
 	}
 
 	public void receive(TransactionTimestamp transactionTimestamp) {
 		Capsule capsule = transactionTimestamp.capsule();
 		long systemVersion = transactionTimestamp.systemVersion();
-		Date executionTime = transactionTimestamp.executionTime();
+		long executionTime = transactionTimestamp.executionTimeMillis();
+		int executionNanos = transactionTimestamp.executionNanos();
+
+		// Deserialize before entering the critical section so that only the execution itself holds up other transactions and queries.
+		Object transaction = null;
+		Error deserializationError = null;
+		try {
+			transaction = capsule.transactionToExecute(_journalSerializer);
+		} catch (Error error) {
+			deserializationError = error;
+		}
 
-		synchronized (this) {
+		_lock.lock();
+		try {
             if (_prevalentSystem == null) {
                 throw new Error("Prevayler is no longer processing transactions due to an Error thrown from an earlier transaction.");
             }
@@ -68,22 +110,75 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 			_systemVersion = systemVersion;
 
 			try {
-				// Don't synchronize on _prevalentSystem here so that the capsule can deserialize a fresh
-				// copy of the transaction without blocking queries.
-				capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);				
+				if (deserializationError != null) throw deserializationError;
+				capsule.execute(transaction, _prevalentSystem, executionTime, executionNanos);
 			} catch (RuntimeException rx) {
 				if (!_ignoreRuntimeExceptions) throw rx;  //TODO Guarantee that transactions received from pending transaction recovery don't ever throw RuntimeExceptions. Maybe use a wrapper for that.
             } catch (Error error) {
                 _prevalentSystem = null;
                 throw error;
             } finally {
-				notifyAll();
+				_versionAdvanced.signalAll();
 			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public long systemVersion() {
+		_lock.lock();
+		try {
+			return _systemVersion;
+		} finally {
+			_lock.unlock();
 		}
 	}
 
+	/** The systemVersion(), once every transaction up to it is durable.
+	 */
+	public long durableSystemVersion() {
+		lockDurably();
+		try {
+			return _systemVersion;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Acquires the lock once every transaction received is durable. The lock is never held while waiting, so further transactions keep being received meanwhile, and those are waited for in turn.
+	 */
+	private void lockDurably() {
+		_lock.lock();
+		DurabilityBarrier barrier = _durabilityBarrier;
+		if (barrier == null) return;
+		while (barrier.durableVersion() < _systemVersion) {
+			long version = _systemVersion;
+			_lock.unlock();
+			barrier.awaitDurable(version);
+			_lock.lock();
+		}
+	}
+
+	/** Waits until at least the given transaction has been received.
+	 */
+	void waitForVersion(long systemVersion) {
+		_lock.lock();
+		try {
+			while (_systemVersion < systemVersion && _prevalentSystem != null) {
+				Cool.await(_versionAdvanced);
+			}
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	boolean isLockedByCurrentThread() {
+		return _lock.isHeldByCurrentThread();
+	}
+
 	public <R> R executeQuery(Query<? super P,R> sensitiveQuery, Clock clock) throws Exception {
-        synchronized (this) {
+        lockDurably();
+        try {
             if (_prevalentSystem == null) {
                 throw new Error("Prevayler is no longer processing queries due to an Error thrown from an earlier transaction.");
             }
@@ -91,11 +186,14 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     		synchronized (_prevalentSystem) {
     			return sensitiveQuery.query(_prevalentSystem, clock.time());
     		}
+        } finally {
+            _lock.unlock();
         }
 	}
 
 	public File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
-		synchronized (this) {
+		lockDurably();
+		try {
             if (_prevalentSystem == null) {
                 throw new Error("Prevayler is no longer allowing snapshots due to an Error thrown from an earlier transaction.");
             }
@@ -103,26 +201,40 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 			synchronized (_prevalentSystem) {
 				return snapshotManager.writeSnapshot(_prevalentSystem, _systemVersion);
 			}
+		} finally {
+			_lock.unlock();
 		}
 	}
 
 	public PrevalentSystemGuard<P> deepCopy(long systemVersion, Serializer snapshotSerializer) throws Exception {
-		synchronized (this) {
-			while (_systemVersion < systemVersion && _prevalentSystem != null) {
-				Cool.wait(this);
+		_lock.lock();
+		try {
+			waitForVersion(systemVersion);
+
+			if (_systemVersion > systemVersion) {
+				throw new IllegalStateException("Already at " + _systemVersion + "; can't go back to " + systemVersion);
 			}
 
+			return deepCopy(snapshotSerializer);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Copies the prevalent system at whatever version it is now.
+	 */
+	PrevalentSystemGuard<P> deepCopy(Serializer snapshotSerializer) throws Exception {
+		_lock.lock();
+		try {
             if (_prevalentSystem == null) {
                 throw new Error("Prevayler is no longer accepting transactions due to an Error thrown from an earlier transaction.");
             }
 
-			if (_systemVersion > systemVersion) {
-				throw new IllegalStateException("Already at " + _systemVersion + "; can't go back to " + systemVersion);
-			}
-
 			synchronized (_prevalentSystem) {
 				return new PrevalentSystemGuard<P>((P)DeepCopier.deepCopyParallel(_prevalentSystem, snapshotSerializer), _systemVersion, _journalSerializer);
 			}
+		} finally {
+			_lock.unlock();
 		}
 	}
 
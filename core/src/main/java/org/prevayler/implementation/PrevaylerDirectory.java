@@ -10,8 +10,11 @@ import org.prevayler.foundation.FileManager;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -22,6 +25,7 @@ public class PrevaylerDirectory {
 	private static final String SNAPSHOT_FILENAME_PATTERN = "\\d{" + DIGITS_IN_FILENAME + "}\\." + SNAPSHOT_SUFFIX_PATTERN;
 	private static final String JOURNAL_SUFFIX_PATTERN = "[a-zA-Z0-9]*[Jj]ournal";
 	private static final String JOURNAL_FILENAME_PATTERN = "\\d{" + DIGITS_IN_FILENAME + "}\\." + JOURNAL_SUFFIX_PATTERN;
+	private static final String SEGMENT_FILENAME_PATTERN = SNAPSHOT_FILENAME_PATTERN + "\\.segment\\d+";
 
 	private File _directory;
 
@@ -99,6 +103,26 @@ public class PrevaylerDirectory {
 	}
 
 
+	/**
+	 * The file holding the given segment of a partitioned snapshot, beside the snapshot file itself.
+	 */
+	public static File snapshotSegmentFile(File snapshot, int segment) {
+		return new File(snapshot.getParentFile(), snapshot.getName() + ".segment" + segment);
+	}
+
+	/**
+	 * Find the segment files of a partitioned snapshot. Returns an empty set for an unpartitioned snapshot.
+	 */
+	public static Set snapshotSegmentFiles(File snapshot) {
+		Set result = new TreeSet();
+		for (int i = 0; true; i++) {
+			File segment = snapshotSegmentFile(snapshot, i);
+			if (!segment.exists()) return result;
+			result.add(segment);
+		}
+	}
+
+
 	/**
 	 * Extract the version number from a snapshot filename.
 	 * 
@@ -195,20 +219,34 @@ public class PrevaylerDirectory {
 	/**
 	 * Determine which snapshot and journal files are still necessary for recovery.
 	 * 
-	 * Necessary files include the latest snapshot file and any journal files
+	 * Necessary files include the latest snapshot file, its segment files and any journal files
 	 * potentially containing transactions after that snapshot version.
 	 */
 	public Set necessaryFiles() throws IOException {
+		return necessaryFiles(1);
+	}
+
+	/**
+	 * Determine which snapshot and journal files are still necessary for recovery from any of the
+	 * given number of latest snapshots.
+	 * 
+	 * Necessary files include those snapshot files, their segment files and any journal files
+	 * potentially containing transactions after the oldest of those snapshot versions.
+	 */
+	public Set necessaryFiles(int snapshotsToKeep) throws IOException {
+	    if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept: " + snapshotsToKeep);
         File[] allFiles = _directory.listFiles();
         if (allFiles == null) {
             throw new IOException("Error reading file list from directory " + _directory);
         }
-	    File latestSnapshot = latestSnapshot();
-	    long systemVersion = latestSnapshot == null ? 0 : snapshotVersion(latestSnapshot);
+	    File[] snapshots = snapshotsNewestFirst(allFiles);
+	    int keptSnapshots = Math.min(snapshotsToKeep, snapshots.length);
+	    long systemVersion = keptSnapshots == 0 ? 0 : snapshotVersion(snapshots[keptSnapshots - 1]);
 	    File initialJournal = findInitialJournalFile(systemVersion + 1);
 	    Set neededFiles = new TreeSet();
-	    if (latestSnapshot != null) {
-	        neededFiles.add(latestSnapshot);
+	    for (int i = 0; i < keptSnapshots; i++) {
+	        neededFiles.add(snapshots[i]);
+	        neededFiles.addAll(snapshotSegmentFiles(snapshots[i]));
 	    }
 	    if (initialJournal != null) {
 	        neededFiles.add(initialJournal);
@@ -222,4 +260,50 @@ public class PrevaylerDirectory {
 	    }
 	    return neededFiles;
 	}
+
+	/**
+	 * Determine which snapshot, snapshot segment and journal files are no longer necessary for recovery
+	 * from any of the given number of latest snapshots. Temporary and unused files are not included.
+	 * 
+	 * Only files older than the oldest of those snapshots are included, so files written meanwhile by
+	 * a running Prevayler are never considered obsolete.
+	 */
+	public Set obsoleteFiles(int snapshotsToKeep) throws IOException {
+	    if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept: " + snapshotsToKeep);
+	    File[] allFiles = _directory.listFiles();
+	    if (allFiles == null) {
+	        throw new IOException("Error reading file list from directory " + _directory);
+	    }
+	    Set obsoleteFiles = new TreeSet();
+	    File[] snapshots = snapshotsNewestFirst(allFiles);
+	    if (snapshots.length == 0) return obsoleteFiles;
+
+	    int keptCount = Math.min(snapshotsToKeep, snapshots.length);
+	    Set keptSnapshots = new TreeSet(Arrays.asList(snapshots).subList(0, keptCount));
+	    long systemVersion = snapshotVersion(snapshots[keptCount - 1]);
+	    File initialJournal = findInitialJournalFile(systemVersion + 1);
+	    long initialJournalVersion = initialJournal == null ? 0 : journalVersion(initialJournal);
+	    for (int i = 0; i < allFiles.length; i++) {
+	        File file = allFiles[i];
+	        if (journalVersion(file) != -1 && journalVersion(file) < initialJournalVersion) obsoleteFiles.add(file);
+	        File snapshot = file.getName().matches(SEGMENT_FILENAME_PATTERN)
+	            ? new File(file.getParentFile(), file.getName().substring(0, file.getName().lastIndexOf(".segment")))
+	            : file;
+	        if (snapshotVersion(snapshot) != -1 && snapshotVersion(snapshot) <= systemVersion && !keptSnapshots.contains(snapshot)) obsoleteFiles.add(file);
+	    }
+	    return obsoleteFiles;
+	}
+
+	private static File[] snapshotsNewestFirst(File[] allFiles) {
+	    List snapshots = new ArrayList();
+	    for (int i = 0; i < allFiles.length; i++) {
+	        if (snapshotVersion(allFiles[i]) != -1) snapshots.add(allFiles[i]);
+	    }
+	    Collections.sort(snapshots, new Comparator() {  // Stable, so the snapshot picked among equal versions is the one latestSnapshot() picks.
+	        public int compare(Object o1, Object o2) {
+	            return new Long(snapshotVersion((File) o2)).compareTo(new Long(snapshotVersion((File) o1)));
+	        }
+	    });
+	    return (File[]) snapshots.toArray(new File[snapshots.size()]);
+	}
 }
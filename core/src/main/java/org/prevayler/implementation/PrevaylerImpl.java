@@ -11,11 +11,17 @@ import org.prevayler.SureTransactionWithQuery;
 import org.prevayler.Transaction;
 import org.prevayler.TransactionWithQuery;
 import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.publishing.AdmissionControl;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.DurabilityBarrier;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class PrevaylerImpl<P> implements Prevayler<P>{
 
@@ -30,6 +36,14 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 	
 	private boolean _transactionDeepCopyMode;
 
+	private final boolean _lazyTransactionSerialization;
+
+	private final SnapshotReplica<P> _snapshotReplica;
+
+	private final AdmissionControl _admissionControl;
+
+	private final List _closeables = new CopyOnWriteArrayList();
+
 
 	/** Creates a new Prevayler
 	 * 
@@ -39,6 +53,17 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 	 */
 	public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
 						 Serializer journalSerializer, boolean transactionDeepCopyMode) throws IOException, ClassNotFoundException {
+		this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, false, false, null);
+	}
+
+	/** Creates a new Prevayler
+	 * 
+	 * @param lazyTransactionSerialization If <code>true</code>, transactions that are executed directly are only serialized when a journal or subscriber actually needs their bytes. Only sensible with a TransientJournal, which never does.
+	 * @param nonBlockingSnapshots If <code>true</code>, snapshots are written from a replica of the prevalent system that is kept up to date asynchronously, so that transactions and queries are not blocked while a snapshot is written. The replica is a deep copy made now and doubles the memory used by the prevalent system.
+	 * @param admissionControl Limits the transactions executed at once. Each transaction is admitted before it is even serialized. May be null.
+	 */
+	public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+						 Serializer journalSerializer, boolean transactionDeepCopyMode, boolean lazyTransactionSerialization, boolean nonBlockingSnapshots, AdmissionControl admissionControl) throws IOException, ClassNotFoundException {
 		_snapshotManager = snapshotManager;
 
 		_guard = _snapshotManager.recoveredPrevalentSystem();
@@ -46,11 +71,39 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 		_publisher = transactionPublisher;
 		_clock = _publisher.clock();
 
+		_guard.durabilityBarrier(durabilityBarrier());
 		_guard.subscribeTo(_publisher);
 
 		_journalSerializer = journalSerializer;
 		
 		_transactionDeepCopyMode = transactionDeepCopyMode;
+
+		_lazyTransactionSerialization = lazyTransactionSerialization;
+
+		_snapshotReplica = nonBlockingSnapshots ? new SnapshotReplica<P>(replica(), _publisher) : null;
+
+		_admissionControl = admissionControl;
+	}
+
+	/** Null unless the publisher executes transactions before they are durable. */
+	private DurabilityBarrier durabilityBarrier() {
+		return _publisher instanceof CentralPublisher ? ((CentralPublisher) _publisher).durabilityBarrier() : null;
+	}
+
+	private PrevalentSystemGuard<P> replica() throws IOException, ClassNotFoundException {
+		try {
+			PrevalentSystemGuard<P> replica = _guard.deepCopy(_snapshotManager.primarySerializer());
+			replica.durabilityBarrier(durabilityBarrier());
+			return replica;
+		} catch (IOException e) {
+			throw e;
+		} catch (ClassNotFoundException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException("Unable to replicate the prevalent system for non-blocking snapshots.", e);
+		}
 	}
 
 	public P prevalentSystem() { return _guard.prevalentSystem(); }
@@ -59,13 +112,29 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 	public Clock clock() { return _clock; }
 
 
+	/** Returns null if no AdmissionControl was given. */
+	public AdmissionControl admissionControl() {
+		return _admissionControl;
+	}
+
+
 	public void execute(Transaction<? super P> transaction) {
-        publish(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode));    //TODO Optimization: The Censor can use the actual given transaction if it is Immutable instead of deserializing a new one from the byte array, even if "_transactionDeepCopyMode" is "true"
+		admit();
+		try {
+			_publisher.publish(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode, _lazyTransactionSerialization));
+		} finally {
+			release();
+		}
 	}
 
 
-	private void publish(Capsule capsule) {
-		_publisher.publish(capsule);
+	private void admit() {
+		if (_admissionControl != null) _admissionControl.admit();
+	}
+
+
+	private void release() {
+		if (_admissionControl != null) _admissionControl.release();
 	}
 
 
@@ -75,9 +144,14 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 
 
 	public <R> R execute(TransactionWithQuery<? super P,R> transactionWithQuery) throws Exception {
-		TransactionWithQueryCapsule<? super P,R> capsule = new TransactionWithQueryCapsule<P,R>(transactionWithQuery, _journalSerializer, _transactionDeepCopyMode);
-		publish(capsule);
-		return capsule.result();
+		admit();
+		try {
+			TransactionWithQueryCapsule<? super P,R> capsule = new TransactionWithQueryCapsule<P,R>(transactionWithQuery, _journalSerializer, _transactionDeepCopyMode, _lazyTransactionSerialization);
+			_publisher.publish(capsule);
+			return capsule.result();
+		} finally {
+			release();
+		}
 	}
 
 
@@ -93,10 +167,21 @@ public class PrevaylerImpl<P> implements Prevayler<P>{
 
 
 	public File takeSnapshot() throws Exception {
+		if (_snapshotReplica != null) return _snapshotReplica.takeSnapshot(_snapshotManager, _guard.durableSystemVersion());
 		return _guard.takeSnapshot(_snapshotManager);
 	}
 
 
-	public void close() throws IOException { _publisher.close(); }
+	/** Registers a background service using this Prevayler, such as AutomaticSnapshots, to be closed before the TransactionPublisher when this Prevayler is closed.
+	 */
+	public void closeWithThis(Closeable closeable) {
+		_closeables.add(closeable);
+	}
+
+
+	public void close() throws IOException {
+		for (int i = 0; i < _closeables.size(); i++) ((Closeable) _closeables.get(i)).close();
+		_publisher.close();
+	}
 
 }
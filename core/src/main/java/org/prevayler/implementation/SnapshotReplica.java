@@ -0,0 +1,50 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import org.prevayler.implementation.publishing.AbstractPublisher;
+import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.TransactionPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+import org.prevayler.implementation.snapshot.GenericSnapshotManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/** A deep copy of the prevalent system that is kept up to date asynchronously, through a POBox, so that snapshots can be written from it while the live system goes on executing transactions and queries. It doubles the memory used by the prevalent system.
+ * <br>
+ * <br>If the replica falls too far behind, its POBox stops buffering and later catches up by replaying the journal, most of it without blocking publications, so the publisher is never held up by a snapshot being written.
+ */
+class SnapshotReplica<P> implements TransactionSubscriber {
+
+	private final PrevalentSystemGuard<P> _guard;
+
+
+	SnapshotReplica(PrevalentSystemGuard<P> guard, TransactionPublisher publisher) throws IOException, ClassNotFoundException {
+		_guard = guard;
+		_guard.ignoreRuntimeExceptions();  // They were already thrown to the caller by the live system.
+
+		POBox poBox = new POBox(this, POBox.DEFAULT_CAPACITY, POBox.OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE, publisher, AbstractPublisher.sharedAsynchronousExecutor());
+		long initialTransaction = guard.systemVersion() + 1;
+		poBox.startAt(initialTransaction);
+		publisher.subscribe(poBox, initialTransaction);
+	}
+
+
+	public void receive(TransactionTimestamp transactionTimestamp) {
+		// Executes a copy detached from the live capsule: never the live transaction instance itself and never the capsule's query result fields.
+		Capsule copy = transactionTimestamp.capsule().serializedCopy();
+		_guard.receive(new TransactionTimestamp(copy, transactionTimestamp.systemVersion(), transactionTimestamp.executionTimeMillis(), transactionTimestamp.executionNanos()));
+	}
+
+
+	/** Waits for the replica to receive at least the given transaction and writes a snapshot of it, at whatever version it is by then.
+	 */
+	File takeSnapshot(GenericSnapshotManager<P> snapshotManager, long systemVersion) throws Exception {
+		_guard.waitForVersion(systemVersion);
+		return _guard.takeSnapshot(snapshotManager);
+	}
+
+}
@@ -1,5 +1,7 @@
 package org.prevayler.implementation;
 
+import org.prevayler.EpochTransaction;
+import org.prevayler.NanoTransaction;
 import org.prevayler.Transaction;
 import org.prevayler.foundation.serialization.Serializer;
 
@@ -10,15 +12,27 @@ class TransactionCapsule<P> extends Capsule{
 	private static final long serialVersionUID = 3283271592697928351L;
 
 	public TransactionCapsule(Transaction<? super P> transaction, Serializer journalSerializer, boolean transactionDeepCopyMode) {
-		super(transaction, journalSerializer, transactionDeepCopyMode);
+		this(transaction, journalSerializer, transactionDeepCopyMode, false);
+	}
+
+	public TransactionCapsule(Transaction<? super P> transaction, Serializer journalSerializer, boolean transactionDeepCopyMode, boolean lazySerialization) {
+		super(transaction, journalSerializer, transactionDeepCopyMode, lazySerialization);
 	}
 
 	public TransactionCapsule(byte[] serialized) {
 		super(serialized);
 	}
 
-	protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
-		((Transaction<P>) transaction).executeOn((P)prevalentSystem, executionTime);
+	protected void justExecute(Object transaction, Object prevalentSystem, long executionTime, int nanos) {
+		if (transaction instanceof NanoTransaction) {
+			((NanoTransaction<P>) transaction).executeOn((P)prevalentSystem, executionTime, nanos);
+			return;
+		}
+		if (transaction instanceof EpochTransaction) {
+			((EpochTransaction<P>) transaction).executeOn((P)prevalentSystem, executionTime);
+			return;
+		}
+		((Transaction<P>) transaction).executeOn((P)prevalentSystem, new Date(executionTime));
 	}
 
 	public Capsule cleanCopy() {
@@ -31,6 +31,14 @@ public class TransactionGuide extends Guided {
 		return _transactionTimestamp.executionTime();
 	}
 
+	public long executionTimeMillis() {
+		return _transactionTimestamp.executionTimeMillis();
+	}
+
+	public int executionNanos() {
+		return _transactionTimestamp.executionNanos();
+	}
+
 	public void writeTo(OutputStream stream) throws IOException {
 		Chunking.writeChunk(stream, _transactionTimestamp.toChunk());
 	}
@@ -5,6 +5,7 @@
 package org.prevayler.implementation;
 
 import org.prevayler.foundation.Chunk;
+import org.prevayler.implementation.clock.HybridLogicalClock;
 
 import java.io.Serializable;
 import java.util.Date;
@@ -16,15 +17,36 @@ public class TransactionTimestamp implements Serializable {
 	private final Capsule _capsule;
 	private final long _systemVersion;
 	private final long _executionTime;
+	private final int _nanos;  //Past _executionTime. Always 0 in timestamps serialized before it was added.
 
 	public TransactionTimestamp(Capsule capsule, long systemVersion, Date executionTime) {
 		this(capsule, systemVersion, executionTime.getTime());
 	}
 
-	private TransactionTimestamp(Capsule capsule, long systemVersion, long executionTime) {
+	/**
+	 * @param executionTime In milliseconds since the epoch.
+	 */
+	public TransactionTimestamp(Capsule capsule, long systemVersion, long executionTime) {
+		this(capsule, systemVersion, executionTime, 0);
+	}
+
+	/**
+	 * @param executionTime In milliseconds since the epoch.
+	 * @param nanos The nanoseconds, from 0 to 999999, of the execution time past executionTime.
+	 */
+	public TransactionTimestamp(Capsule capsule, long systemVersion, long executionTime, int nanos) {
+		if (nanos < 0 || nanos >= HybridLogicalClock.NANOS_PER_MILLI) throw new IllegalArgumentException("nanos out of range: " + nanos);
 		_capsule = capsule;
 		_systemVersion = systemVersion;
 		_executionTime = executionTime;
+		_nanos = nanos;
+	}
+
+	/**
+	 * @param executionNanos In nanoseconds since the epoch, as returned by HybridLogicalClock.nanos().
+	 */
+	public static TransactionTimestamp withExecutionNanos(Capsule capsule, long systemVersion, long executionNanos) {
+		return new TransactionTimestamp(capsule, systemVersion, HybridLogicalClock.millisOf(executionNanos), HybridLogicalClock.nanosOfMilli(executionNanos));
 	}
 
 	public Capsule capsule() {
@@ -39,14 +61,29 @@ public class TransactionTimestamp implements Serializable {
 		return new Date(_executionTime);
 	}
 
+	/**
+	 * The same as executionTime().getTime(), without creating a Date.
+	 */
+	public long executionTimeMillis() {
+		return _executionTime;
+	}
+
+	/**
+	 * The nanoseconds, from 0 to 999999, of the execution time past executionTimeMillis(). Always 0 unless the execution time was given by a HybridLogicalClock.
+	 */
+	public int executionNanos() {
+		return _nanos;
+	}
+
 	public TransactionTimestamp cleanCopy() {
-		return new TransactionTimestamp(_capsule.cleanCopy(), _systemVersion, _executionTime);
+		return new TransactionTimestamp(_capsule.cleanCopy(), _systemVersion, _executionTime, _nanos);
 	}
 
 	public Chunk toChunk() {
 		Chunk chunk = _capsule.toChunk();
 		chunk.setParameter("systemVersion", String.valueOf(_systemVersion));
 		chunk.setParameter("executionTime", String.valueOf(_executionTime));
+		if (_nanos != 0) chunk.setParameter("executionNanos", String.valueOf(_nanos));
 		return chunk;
 	}
 
@@ -54,7 +91,8 @@ public class TransactionTimestamp implements Serializable {
 		Capsule capsule = Capsule.fromChunk(chunk);
 		long systemVersion = Long.parseLong(chunk.getParameter("systemVersion"));
 		long executionTime = Long.parseLong(chunk.getParameter("executionTime"));
-		return new TransactionTimestamp(capsule, systemVersion, executionTime);
+		String nanos = chunk.getParameter("executionNanos");
+		return new TransactionTimestamp(capsule, systemVersion, executionTime, nanos == null ? 0 : Integer.parseInt(nanos));
 	}
 
 }
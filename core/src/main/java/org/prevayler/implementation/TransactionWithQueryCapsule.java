@@ -12,16 +12,20 @@ class TransactionWithQueryCapsule<P,R> extends Capsule{
 	private transient Exception _queryException;
 
 	public TransactionWithQueryCapsule(TransactionWithQuery<? super P,R> transactionWithQuery, Serializer journalSerializer, boolean transactionDeepCopyMode) {
-		super(transactionWithQuery, journalSerializer, transactionDeepCopyMode);
+		this(transactionWithQuery, journalSerializer, transactionDeepCopyMode, false);
+	}
+
+	public TransactionWithQueryCapsule(TransactionWithQuery<? super P,R> transactionWithQuery, Serializer journalSerializer, boolean transactionDeepCopyMode, boolean lazySerialization) {
+		super(transactionWithQuery, journalSerializer, transactionDeepCopyMode, lazySerialization);
 	}
 
 	public TransactionWithQueryCapsule(byte[] serialized) {
 		super(serialized);
 	}
 
-	protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
+	protected void justExecute(Object transaction, Object prevalentSystem, long executionTime, int nanos) {
 		try {
-			_queryResult = ((TransactionWithQuery<P,R>) transaction).executeAndQuery((P)prevalentSystem, executionTime);
+			_queryResult = ((TransactionWithQuery<P,R>) transaction).executeAndQuery((P)prevalentSystem, new Date(executionTime));
 		} catch (RuntimeException rx) {
 			_queryException = rx;
 			throw rx;   //This is necessary because of the rollback feature.
@@ -5,32 +5,67 @@
 package org.prevayler.implementation.clock;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.prevayler.*;
 
 /** A deterministic Clock that always returns the same time until it is forced to advance. This class is useful as a Clock mock in order to run automated tests involving date/time related rules. A new BrokenClock's time() starts off at new Date(0);
+ * <br>
+ * <br>The time is kept as milliseconds. A Date is only created when time() is called after the time has changed.
  */
 public class BrokenClock implements Clock {
 
-	private Date _time;
-	protected long _millis;
+	private final AtomicLong _millis;
+	private final AtomicReference<Date> _lastTime;  //The Date last returned by time(), returned again while the time stays the same.
 
 	public BrokenClock() {
 		this(new Date(0));
 	}
 
 	public BrokenClock(Date time) {
-		_time = time;
-		_millis = time.getTime();
+		_millis = new AtomicLong(time.getTime());
+		_lastTime = new AtomicReference<Date>(time);
 	}
 
-	public synchronized Date time() { return _time; }
+	public Date time() { return dateFor(millis()); }
 
-	public synchronized void advanceTo(Date newTime) {
+	/** The same as time().getTime(), without creating a Date. Replaces the protected _millis field of earlier versions. Subclasses that override time() should override this as well: otherwise PausableClock ignores this method and calls time() instead.
+	 */
+	public long millis() { return _millis.get(); }
+
+	public void advanceTo(Date newTime) {
 		long newMillis = newTime.getTime();
-		if (newMillis == _millis) return;
-		_millis = newMillis;
-		_time = newTime;
+		if (_millis.getAndSet(newMillis) != newMillis) _lastTime.set(newTime);
+	}
+
+	public void advanceTo(long newMillis) {
+		_millis.set(newMillis);
+	}
+
+	/** Advances to newTime only if it is later than the current time. Concurrent callers can therefore never move this clock backwards.
+	 * @return The current time after the call.
+	 */
+	protected Date advanceForwardTo(long newMillis) {
+		return dateFor(advanceForwardToMillis(newMillis));
+	}
+
+	/** The same as advanceForwardTo(), without creating a Date.
+	 */
+	protected long advanceForwardToMillis(long newMillis) {
+		while (true) {
+			long current = _millis.get();
+			if (newMillis <= current) return current;
+			if (_millis.compareAndSet(current, newMillis)) return newMillis;
+		}
+	}
+
+	private Date dateFor(long millis) {
+		Date last = _lastTime.get();
+		if (last.getTime() == millis) return last;
+		Date result = new Date(millis);
+		_lastTime.compareAndSet(last, result);
+		return result;
 	}
 
 }
@@ -0,0 +1,62 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.clock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A hybrid logical clock: a BrokenClock that follows the machine clock, like MachineClock, and also tells the time in nanoseconds, with every call to nanos() returning a later time than the one before. Within a millisecond of the machine clock the nanoseconds simply count up from 0, so they stay within the machine's millisecond unless it is called more than a million times in it, and never fall behind it.
+ * <br>
+ * <br>Configure it with PrevaylerFactory.configureClock() to give every transaction its own execution time: transactions are then timestamped in the order they are journaled, each strictly later than the one before, even thousands of them per millisecond. The nanoseconds are journaled along with each transaction and given back exactly on recovery. NanoTransactions are given them; other transactions only see the millisecond.
+ * <br>
+ * <br>It never goes backwards, even if the machine clock is set back: within a run because nanos() only moves forward, and across restarts because the transactions recovered from the journal move it forward to their execution times before any new transaction is timestamped.
+ * @see org.prevayler.NanoTransaction
+ */
+public class HybridLogicalClock extends BrokenClock {
+
+	public static final long NANOS_PER_MILLI = 1000000L;
+
+	private final AtomicLong _lastNanos = new AtomicLong(Long.MIN_VALUE);
+
+	/** @return A time, in nanoseconds since the epoch, later than any returned before and no earlier than the local machine time.
+	 */
+	public long nanos() {
+		long machineNanos = System.currentTimeMillis() * NANOS_PER_MILLI;
+		while (true) {
+			long last = _lastNanos.get();
+			long next = Math.max(machineNanos, last + 1);
+			if (_lastNanos.compareAndSet(last, next)) return next;
+		}
+	}
+
+	/** Moves this clock forward so that nanos() returns later times than the given one, as when recovering a transaction timestamped in an earlier run or receiving a time from another hybrid logical clock. Never moves it backwards.
+	 */
+	public void advanceForwardToNanos(long nanos) {
+		while (true) {
+			long last = _lastNanos.get();
+			if (nanos <= last) return;
+			if (_lastNanos.compareAndSet(last, nanos)) return;
+		}
+	}
+
+	/** @return The millisecond of the local machine time, or of the last time returned by nanos() if that is later. Does not count as a call to nanos().
+	 */
+	public long millis() {
+		return advanceForwardToMillis(Math.max(System.currentTimeMillis(), millisOf(_lastNanos.get())));
+	}
+
+	/** @return The millisecond, since the epoch, that a time in nanoseconds since the epoch falls within.
+	 */
+	public static long millisOf(long nanos) {
+		long result = nanos / NANOS_PER_MILLI;
+		return nanos % NANOS_PER_MILLI < 0 ? result - 1 : result;
+	}
+
+	/** @return The nanoseconds, from 0 to 999999, that a time in nanoseconds since the epoch is past its millisecond.
+	 */
+	public static int nanosOfMilli(long nanos) {
+		return (int) (nanos - millisOf(nanos) * NANOS_PER_MILLI);
+	}
+
+}
@@ -4,23 +4,14 @@
 
 package org.prevayler.implementation.clock;
 
-import java.util.Date;
-
-/** A Clock that uses the local machine clock (System.currentTimeMillis()) as its time source.
+/** A Clock that uses the local machine clock (System.currentTimeMillis()) as its time source. Never goes backwards, even if the machine clock is set back.
  */
 public class MachineClock extends BrokenClock {
 
-	/** @return The local machine time.
+	/** @return The local machine time, in milliseconds.
 	*/
-	public synchronized Date time() {
-		update();
-		return super.time();
-	}
-
-
-	private synchronized void update() {
-		long newTime = System.currentTimeMillis();
-		if (newTime != _millis) advanceTo(new Date(newTime));
+	public long millis() {
+		return advanceForwardToMillis(System.currentTimeMillis());
 	}
 
 }
@@ -5,33 +5,123 @@
 package org.prevayler.implementation.clock;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.prevayler.Clock;
 
+/** A Clock that follows a real Clock except while it is paused, when it only moves when explicitly advanced. Pausing is counted: the clock only follows the real Clock again once resume() has been called as many times as pause().
+ * <br>
+ * <br>The paused time, in milliseconds, and the pause count are packed together into a single AtomicLong, so neither time() nor pause(), resume() and advanceTo() ever lock or allocate. A Date is only created when time() is called while paused, once per paused time.
+ */
 public class PausableClock implements Clock {
 
+	private static final int PAUSE_BITS = 18;  // Up to 262143 nested pauses, such as publications under way at once, and paused times within about a thousand years of 1970.
+	private static final long PAUSES = (1L << PAUSE_BITS) - 1;
+
 	private final Clock _realClock;
-	private final BrokenClock _brokenClock = new BrokenClock();
-	private Clock _activeClock;
+	private final BrokenClock _realMillisClock;  //The real Clock, if it can tell the time without creating a Date.
+	private final AtomicLong _state = new AtomicLong();  // The paused time in milliseconds, shifted left by PAUSE_BITS, ored with the pause count.
+	private volatile Date _pausedTime;  // The last Date created by time() while paused, given out again while the paused time stays the same.
 
 
 	public PausableClock(Clock realClock) {
 		_realClock = realClock;
-		resume();
+		_realMillisClock = tellsMillisLikeTime(realClock) ? (BrokenClock) realClock : null;
+	}
+
+	/** Whether the Clock is a BrokenClock whose millis() can be trusted to agree with its time(): not a subclass that overrides time() without overriding millis() as well.
+	 */
+	private static boolean tellsMillisLikeTime(Clock clock) {
+		if (!(clock instanceof BrokenClock)) return false;
+		try {
+			Class timeDeclarer = clock.getClass().getMethod("time").getDeclaringClass();
+			Class millisDeclarer = clock.getClass().getMethod("millis").getDeclaringClass();
+			return timeDeclarer.isAssignableFrom(millisDeclarer);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
-	public synchronized Date time() { return _activeClock.time(); }
+	public Date time() {
+		long state = _state.get();
+		if (pauses(state) == 0) return _realClock.time();
+		long millis = millis(state);
+		Date result = _pausedTime;
+		if (result != null && result.getTime() == millis) return result;
+		result = new Date(millis);
+		_pausedTime = result;
+		return result;
+	}
 
-	public synchronized void pause() {
-		advanceTo(_realClock.time());
-		_activeClock = _brokenClock;
+	public void pause() {
+		while (true) {
+			long current = _state.get();
+			long pauses = pauses(current);
+			if (pauses == PAUSES) throw new IllegalStateException("The clock cannot be paused more than " + PAUSES + " times at once.");
+			long millis = pauses == 0 ? realTimeMillis() : millis(current);
+			if (_state.compareAndSet(current, state(millis, pauses + 1))) return;
+		}
 	}
 
 	public void advanceTo(Date time) {
-		_brokenClock.advanceTo(time);
+		advanceTo(time.getTime());
+	}
+
+	public void advanceTo(long millis) {
+		while (true) {
+			long current = _state.get();
+			if (millis(current) == millis) return;
+			if (_state.compareAndSet(current, state(millis, pauses(current)))) return;
+		}
+	}
+
+	public void resume() {
+		while (true) {
+			long current = _state.get();
+			if (pauses(current) == 0) throw new IllegalStateException("The clock is not paused.");
+			if (_state.compareAndSet(current, current - 1)) return;
+		}
+	}
+
+	private static long state(long millis, long pauses) {
+		long result = (millis << PAUSE_BITS) | pauses;
+		if (millis(result) != millis) throw new IllegalArgumentException("The clock cannot be paused at " + millis + ", too far from 1970.");
+		return result;
+	}
+
+	private static long millis(long state) {
+		return state >> PAUSE_BITS;
 	}
 
-	public synchronized void resume() { _activeClock = _realClock; }
+	private static long pauses(long state) {
+		return state & PAUSES;
+	}
 
 	public Date realTime() { return _realClock.time(); }
+
+	/** The same as realTime().getTime(), without creating a Date if the real Clock is a BrokenClock, such as the default MachineClock, that does not override time() alone.
+	 */
+	public long realTimeMillis() {
+		return _realMillisClock != null ? _realMillisClock.millis() : _realClock.time().getTime();
+	}
+
+	/** The real time in nanoseconds since the epoch: HybridLogicalClock.nanos() if the real Clock is a HybridLogicalClock, otherwise realTimeMillis() in nanoseconds.
+	 */
+	public long realTimeNanos() {
+		if (_realMillisClock instanceof HybridLogicalClock) return ((HybridLogicalClock) _realMillisClock).nanos();
+		return realTimeMillis() * HybridLogicalClock.NANOS_PER_MILLI;
+	}
+
+	/** Whether the real Clock is a HybridLogicalClock, whose realTimeNanos() never go backwards.
+	 */
+	public boolean tellsRealTimeNanos() {
+		return _realMillisClock instanceof HybridLogicalClock;
+	}
+
+	/** Moves the real Clock forward, if it is a HybridLogicalClock, so that realTimeNanos() returns later times than the given one. Does nothing otherwise.
+	 */
+	public void advanceRealTimeForwardToNanos(long nanos) {
+		if (_realMillisClock instanceof HybridLogicalClock) ((HybridLogicalClock) _realMillisClock).advanceForwardToNanos(nanos);
+	}
+
 }
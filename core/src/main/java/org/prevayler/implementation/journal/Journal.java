@@ -15,6 +15,14 @@ public interface Journal {
 
 	public void append(TransactionGuide guide);
 
+	/** Appends a transaction like append(TransactionGuide), but runs whenWritten as soon as the transaction has been written to the Journal's buffer, before waiting for it to be durable. whenWritten is run in the same order for all transactions appended this way, but must take the guide's turn itself if it needs to, and must not throw.
+	 */
+	public void append(TransactionGuide guide, Runnable whenWritten);
+
+	/** Appends several consecutive transactions at once, making them all durable together, as a single write where the Journal supports that. Must not be called concurrently with any other append.
+	 */
+	public void append(TransactionGuide[] guides);
+
 	public void update(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException;
 
 	public void close() throws IOException;
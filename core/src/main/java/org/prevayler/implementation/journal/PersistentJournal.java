@@ -6,25 +6,31 @@
 package org.prevayler.implementation.journal;
 
 import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
 import org.prevayler.foundation.DurableInputStream;
 import org.prevayler.foundation.DurableOutputStream;
 import org.prevayler.foundation.Guided;
 import org.prevayler.foundation.StopWatch;
 import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.serialization.ClassDescriptorDictionary;
 import org.prevayler.implementation.PrevaylerDirectory;
 import org.prevayler.implementation.TransactionGuide;
 import org.prevayler.implementation.TransactionTimestamp;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 
 
 /** A Journal that will write all transactions to .journal files.
  */
 public class PersistentJournal implements Journal {
 
+	private static final String CLASS_DESCRIPTORS = "classDescriptors";
+
 	private final PrevaylerDirectory _directory;
 	private DurableOutputStream _outputJournal;
 
@@ -40,6 +46,9 @@ public class PersistentJournal implements Journal {
 
 	private final String _journalSuffix;
 
+	private final ClassDescriptorDictionary _dictionary;
+	private DefinitionsWritten _definitionsWritten;  // To _outputJournal.
+
 	/**
 	 * @param directory
 	 * @param journalSizeThresholdInBytes Size of the current journal file beyond which it is closed and a new one started. Zero indicates no size threshold. This is useful journal backup purposes.
@@ -47,6 +56,14 @@ public class PersistentJournal implements Journal {
 	 */
 	public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
 							 boolean journalDiskSync, String journalSuffix, Monitor monitor) throws IOException {
+		this(directory, journalSizeThresholdInBytes, journalAgeThresholdInMillis, journalDiskSync, journalSuffix, monitor, null);
+	}
+
+	/**
+	 * @param dictionary The class descriptor dictionary of the DictionaryJavaSerializer the transactions are serialized with, or null. Its definitions are written to each journal file before the first transaction that might need them and read back on recovery.
+	 */
+	public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
+							 boolean journalDiskSync, String journalSuffix, Monitor monitor, ClassDescriptorDictionary dictionary) throws IOException {
 		PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
 
 	    _monitor = monitor;
@@ -56,14 +73,21 @@ public class PersistentJournal implements Journal {
 		_journalAgeThresholdInMillis = journalAgeThresholdInMillis;
         _journalDiskSync = journalDiskSync;
 		_journalSuffix = journalSuffix;
+		_dictionary = dictionary;
 	}
 
 
 	public void append(TransactionGuide guide) {
+		append(guide, null);
+	}
+
+
+	public void append(TransactionGuide guide, Runnable whenWritten) {
 		if (!_nextTransactionInitialized) throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
 
 		DurableOutputStream myOutputJournal;
 		DurableOutputStream outputJournalToClose = null;
+		Guided toWrite = guide;
 
 		guide.startTurn();
 		try {
@@ -75,6 +99,7 @@ public class PersistentJournal implements Journal {
 				_journalAgeTimer = StopWatch.start();
 			}
 
+			toWrite = withDefinitions(guide);
 			_nextTransaction++;
 
 			myOutputJournal = _outputJournal;
@@ -83,7 +108,7 @@ public class PersistentJournal implements Journal {
 		}
 
 		try {
-			myOutputJournal.sync(guide);
+			myOutputJournal.sync(toWrite, whenWritten);
 		} catch (Exception exception) {
             abort(exception, _outputJournal.file(), "writing to", guide);
 		}
@@ -101,6 +126,70 @@ public class PersistentJournal implements Journal {
 	}
 
 
+	public void append(TransactionGuide[] guides) {
+		if (!_nextTransactionInitialized) throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
+		if (guides.length == 0) return;
+
+		DurableOutputStream outputJournalToClose = null;
+		TransactionGuide first = guides[0];
+		for (int i = 0; i < guides.length; i++) guides[i].checkSystemVersion(_nextTransaction + i);
+
+		if (!isOutputJournalStillValid()) {
+			outputJournalToClose = _outputJournal;
+			_outputJournal = createOutputJournal(_nextTransaction, first);
+			_journalAgeTimer = StopWatch.start();
+		}
+		Guided[] toWrite = new Guided[guides.length];
+		for (int i = 0; i < guides.length; i++) toWrite[i] = withDefinitions(guides[i]);
+		_nextTransaction += guides.length;
+
+		try {
+			_outputJournal.sync(toWrite);
+		} catch (Exception exception) {
+			abort(exception, _outputJournal.file(), "writing to", first);
+		}
+
+		try {
+			if (outputJournalToClose != null) outputJournalToClose.close();
+		} catch (Exception exception) {
+			abort(exception, outputJournalToClose.file(), "closing", first);
+		}
+	}
+
+
+	/** Makes the guide write, before its transaction, the dictionary definitions not yet in the journal file it is assigned to. The transaction is serialized first, in case that adds definitions. */
+	private Guided withDefinitions(final Guided guide) {
+		if (_dictionary == null) return guide;
+		final DefinitionsWritten written = _definitionsWritten;
+
+		return new Guided(null) {
+			public void startTurn() { guide.startTurn(); }
+			public void endTurn() { guide.endTurn(); }
+			public void abortTurn(String message, Throwable cause) { guide.abortTurn(message, cause); }
+
+			public void writeTo(OutputStream stream) throws IOException {
+				ByteArrayOutputStream transaction = new ByteArrayOutputStream();
+				guide.writeTo(transaction);
+
+				int count = _dictionary.size();
+				if (count > written._count) {
+					Chunk chunk = new Chunk(_dictionary.definitions(written._count, count));
+					chunk.setParameter(CLASS_DESCRIPTORS, String.valueOf(count - written._count));
+					Chunking.writeChunk(stream, chunk);
+					written._count = count;
+				}
+				transaction.writeTo(stream);
+			}
+		};
+	}
+
+
+	/** The number of dictionary definitions written to a journal file. Only accessed while writing to that file, which DurableOutputStream does one guide at a time. */
+	static private class DefinitionsWritten {
+		int _count;
+	}
+
+
 	private boolean isOutputJournalStillValid() {
 		return _outputJournal != null
 			&& !isOutputJournalTooBig() 
@@ -123,6 +212,7 @@ public class PersistentJournal implements Journal {
 	private DurableOutputStream createOutputJournal(long transactionNumber, Guided guide) {
 		File file = _directory.journalFile(transactionNumber, _journalSuffix);
 		try {
+			_definitionsWritten = new DefinitionsWritten();
 			return new DurableOutputStream(file, _journalDiskSync);
 		} catch (Exception exception) {
 			abort(exception, file, "creating", guide);
@@ -142,12 +232,22 @@ public class PersistentJournal implements Journal {
 			return;
 		}
 
-		long nextTransaction = recoverPendingTransactions(subscriber, initialTransactionWanted, initialJournal);
+		long nextTransaction = recoverPendingTransactions(subscriber, initialTransactionWanted, initialJournal, true);
 		
 		initializeNextTransaction(initialTransactionWanted, nextTransaction);
 	}
 
 
+	/** Replays the journaled transactions from initialTransaction on to the subscriber, stopping quietly at the end of the last journal file, even if its last transaction is still being written. Unlike update(), it neither renames any file nor affects this journal's appends, so it can be called on a directory that another Prevayler, possibly in another JVM, is appending to.
+	 * @return The number of the first transaction not replayed.
+	 */
+	public long replay(TransactionSubscriber subscriber, long initialTransaction) throws IOException {
+		File initialJournal = _directory.findInitialJournalFile(initialTransaction);
+		if (initialJournal == null) return initialTransaction;
+		return Math.max(initialTransaction, recoverPendingTransactions(subscriber, initialTransaction, initialJournal, false));
+	}
+
+
 	private void initializeNextTransaction(long initialTransactionWanted, long nextTransaction) throws IOException {
 		if (_nextTransactionInitialized) {
 			if (_nextTransaction < initialTransactionWanted) throw new IOException("The transaction log has not yet reached transaction " + initialTransactionWanted + ". The last logged transaction was " + (_nextTransaction - 1) + ".");
@@ -162,7 +262,7 @@ public class PersistentJournal implements Journal {
 	}
 
 
-	private long recoverPendingTransactions(TransactionSubscriber subscriber, long initialTransaction, File initialJournal) throws IOException {
+	private long recoverPendingTransactions(TransactionSubscriber subscriber, long initialTransaction, File initialJournal, boolean renameUnusedFile) throws IOException {
 		long recoveringTransaction = PrevaylerDirectory.journalVersion(initialJournal);
 		File journal = initialJournal;
 		DurableInputStream input = new DurableInputStream(journal, _monitor);
@@ -171,6 +271,12 @@ public class PersistentJournal implements Journal {
 			try {
 				Chunk chunk = input.readChunk();
 
+				if (chunk.getParameter(CLASS_DESCRIPTORS) != null) {
+					if (_dictionary == null) throw new IOException(journal + " was written with a DictionaryJavaSerializer, which is not being used to read it.");
+					_dictionary.defineAll(chunk.getBytes());
+					continue;
+				}
+
 				if (recoveringTransaction >= initialTransaction) {
 					if (!journal.getName().endsWith(_journalSuffix)) {
 						throw new IOException("There are transactions needing to be recovered from " +
@@ -190,7 +296,10 @@ public class PersistentJournal implements Journal {
 		
 			} catch (EOFException eof) {
 				File nextFile = _directory.journalFile(recoveringTransaction, _journalSuffix);
-				if (journal.equals(nextFile)) PrevaylerDirectory.renameUnusedFile(journal);  //The first transaction in this log file is incomplete. We need to reuse this file name.
+				if (journal.equals(nextFile)) {  //The first transaction in this log file is incomplete.
+					if (!renameUnusedFile) break;
+					PrevaylerDirectory.renameUnusedFile(journal);  //We need to reuse this file name.
+				}
 				journal = nextFile;
 				if (!journal.exists()) break;
 				input = new DurableInputStream(journal, _monitor);
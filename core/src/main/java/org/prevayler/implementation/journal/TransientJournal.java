@@ -13,51 +13,99 @@ import java.util.ArrayList;
 import java.util.List;
 
 
+/** A Journal that keeps transactions in memory only. By default it keeps every transaction ever appended, so that subscribers such as replication clients can catch up from any point. A history limit can be given to keep only the most recent transactions instead, or none at all.
+ */
 public class TransientJournal implements Journal {
 
-	private final List journal = new ArrayList();
+	public static final int UNBOUNDED_HISTORY = -1;
+
+	private final int _historyLimit;
+	private final List _journal;
+	private final TransactionTimestamp[] _ring;
+
 	private long _initialTransaction;
 	private boolean _initialTransactionInitialized = false;
+	private long _nextTransaction;
+
+	public TransientJournal() {
+		this(UNBOUNDED_HISTORY);
+	}
+
+	/**
+	 * @param historyLimit The number of most recent transactions kept for subscribers that join later, or UNBOUNDED_HISTORY. With 0, no transaction is kept and no copy of it is made.
+	 */
+	public TransientJournal(int historyLimit) {
+		if (historyLimit < UNBOUNDED_HISTORY) throw new IllegalArgumentException("Invalid history limit: " + historyLimit);
+		_historyLimit = historyLimit;
+		_journal = historyLimit == UNBOUNDED_HISTORY ? new ArrayList() : null;
+		_ring = historyLimit > 0 ? new TransactionTimestamp[historyLimit] : null;
+	}
 
 	public void append(TransactionGuide guide) {
 		if (!_initialTransactionInitialized) throw new IllegalStateException("Journal.update() has to be called at least once before Journal.journal().");
 
 		guide.startTurn();
 		try {
-			guide.checkSystemVersion(_initialTransaction + journal.size());
-			journal.add(guide.timestamp().cleanCopy());
+			synchronized (this) {
+				guide.checkSystemVersion(_nextTransaction);
+				if (_journal != null) _journal.add(guide.timestamp().cleanCopy());
+				else if (_ring != null) _ring[ringIndex(_nextTransaction)] = guide.timestamp().cleanCopy();
+				_nextTransaction++;
+			}
 		} finally {
 			guide.endTurn();
 		}
 	}
 
+	public void append(TransactionGuide guide, Runnable whenWritten) {
+		append(guide);
+		whenWritten.run();
+	}
+
+	public void append(TransactionGuide[] guides) {
+		for (int i = 0; i < guides.length; i++) append(guides[i]);
+	}
+
 	public synchronized void update(TransactionSubscriber subscriber, long initialTransaction) throws IOException {
 		if (!_initialTransactionInitialized) {
 			_initialTransactionInitialized = true;
 			_initialTransaction = initialTransaction;
+			_nextTransaction = initialTransaction;
 			return;
 		}
-		if (initialTransaction < _initialTransaction) throw new IOException("Unable to recover transaction " + initialTransaction + ". The oldest recoverable transaction is " + _initialTransaction + ".");
+		long oldest = oldestRecoverableTransaction();
+		if (initialTransaction < oldest) throw new IOException("Unable to recover transaction " + initialTransaction + ". The oldest recoverable transaction is " + oldest + ".");
 
-		int i = (int)(initialTransaction - _initialTransaction);
-		if (i > journal.size()) throw new IOException("The transaction journal has not yet reached transaction " + initialTransaction + ". The last logged transaction was " + (_initialTransaction + journal.size() - 1) + ".");
+		if (initialTransaction > _nextTransaction) throw new IOException("The transaction journal has not yet reached transaction " + initialTransaction + ". The last logged transaction was " + (_nextTransaction - 1) + ".");
 
-		while (i != journal.size()) {
-			TransactionTimestamp entry = (TransactionTimestamp)journal.get(i);
-			long recoveringTransaction = _initialTransaction + i;
+		for (long recoveringTransaction = initialTransaction; recoveringTransaction != _nextTransaction; recoveringTransaction++) {
+			TransactionTimestamp entry = entry(recoveringTransaction);
 			if (entry.systemVersion() != recoveringTransaction) {
 				throw new IOException("Expected " + recoveringTransaction + " but was " + entry.systemVersion());
 			}
 			subscriber.receive(entry);
-			i++;
 		}
 	}
 
+	private long oldestRecoverableTransaction() {
+		if (_historyLimit == UNBOUNDED_HISTORY) return _initialTransaction;
+		return Math.max(_initialTransaction, _nextTransaction - _historyLimit);
+	}
+
+	private TransactionTimestamp entry(long transaction) {
+		if (_journal != null) return (TransactionTimestamp)_journal.get((int)(transaction - _initialTransaction));
+		return _ring[ringIndex(transaction)];
+	}
+
+	private int ringIndex(long transaction) {
+		return (int)(transaction % _historyLimit);
+	}
+
 	public void close() {}
 
 	public synchronized long nextTransaction() {
 		if (!_initialTransactionInitialized) throw new IllegalStateException("update() must be called at least once");
-		return _initialTransaction + journal.size();
+		return _nextTransaction;
 	}
 
 }
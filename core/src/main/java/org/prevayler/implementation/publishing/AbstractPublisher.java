@@ -7,39 +7,140 @@ package org.prevayler.implementation.publishing;
 
 import org.prevayler.Clock;
 import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.clock.HybridLogicalClock;
+import org.prevayler.implementation.clock.PausableClock;
+import org.prevayler.implementation.journal.Journal;
+import org.prevayler.implementation.journal.PersistentJournal;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /** This class provides basic subscriber addition and notification.
+ * <br>
+ * <br>Subscribers are notified synchronously, on the publishing thread, except for AsynchronousTransactionSubscribers, which are each given their own POBox drained on a shared Executor.
  */
 public abstract class AbstractPublisher implements TransactionPublisher {
 
+    private static ExecutorService _sharedAsynchronousExecutor;
+
     protected final Clock _clock;
-    private final List _subscribers = new LinkedList();
+
+    private volatile TransactionSubscriber[] _subscribers = new TransactionSubscriber[0]; // Copied on write so that notification takes no lock
+    private final Map _poBoxesBySubscriber = new HashMap(); // Guarded by _subscribersLock
+    private final Lock _subscribersLock = new ReentrantLock();
+
+    private final Executor _asynchronousExecutor;
 
 
     public AbstractPublisher(Clock clock) {
-        _clock = clock;
+        this(clock, sharedAsynchronousExecutor());
 	}
 
+    /**
+     * @param asynchronousExecutor Runs the deliveries to AsynchronousTransactionSubscribers.
+     */
+    public AbstractPublisher(Clock clock, Executor asynchronousExecutor) {
+        _clock = clock;
+        _asynchronousExecutor = asynchronousExecutor;
+    }
+
     public Clock clock() {
         return _clock;
     }
 
-    public synchronized void addSubscriber(TransactionSubscriber subscriber) {
-		_subscribers.add(subscriber);
+    public void addSubscriber(TransactionSubscriber subscriber) {
+        _subscribersLock.lock();
+        try {
+            if (subscriber instanceof AsynchronousTransactionSubscriber) {
+                POBox poBox = new POBox(subscriber, POBox.DEFAULT_CAPACITY, POBox.OverflowPolicy.BLOCK, null, _asynchronousExecutor);
+                _poBoxesBySubscriber.put(subscriber, poBox);
+                subscriber = poBox;
+            }
+
+            TransactionSubscriber[] subscribers = new TransactionSubscriber[_subscribers.length + 1];
+            System.arraycopy(_subscribers, 0, subscribers, 0, _subscribers.length);
+            subscribers[_subscribers.length] = subscriber;
+            _subscribers = subscribers;
+        } finally {
+            _subscribersLock.unlock();
+        }
     }
 
-	public synchronized void cancelSubscription(TransactionSubscriber subscriber) {
-		_subscribers.remove(subscriber);
+	public void cancelSubscription(TransactionSubscriber subscriber) {
+		_subscribersLock.lock();
+		try {
+			TransactionSubscriber poBox = (TransactionSubscriber) _poBoxesBySubscriber.remove(subscriber);
+			if (poBox != null) subscriber = poBox;
+
+			for (int i = 0; i < _subscribers.length; i++) {
+				if (_subscribers[i] != subscriber) continue;
+				TransactionSubscriber[] subscribers = new TransactionSubscriber[_subscribers.length - 1];
+				System.arraycopy(_subscribers, 0, subscribers, 0, i);
+				System.arraycopy(_subscribers, i + 1, subscribers, i, subscribers.length - i);
+				_subscribers = subscribers;
+				return;
+			}
+		} finally {
+			_subscribersLock.unlock();
+		}
 	}
 
-    protected synchronized void notifySubscribers(TransactionTimestamp transactionTimestamp) {
-		Iterator i = _subscribers.iterator();
-        while (i.hasNext()) ((TransactionSubscriber) i.next()).receive(transactionTimestamp);
+    /** Notifies every subscriber, even if an earlier one throws a RuntimeException, which is then rethrown: a transaction that fails on the prevalent system must still reach replicas and the other subscribers, so that their versions keep in step.
+     */
+    protected void notifySubscribers(TransactionTimestamp transactionTimestamp) {
+        TransactionSubscriber[] subscribers = _subscribers;
+        RuntimeException firstException = null;
+        for (int i = 0; i < subscribers.length; i++) {
+            try {
+                subscribers[i].receive(transactionTimestamp);
+            } catch (RuntimeException rx) {
+                if (firstException == null) firstException = rx;
+            }
+        }
+        if (firstException != null) throw firstException;
+    }
+
+    /** Replays the transactions in a PersistentJournal from initialTransaction on to the subscriber without holding any of the publisher's locks, so that a subscriber that fell far behind catches up on most of them while transactions go on being published. Journal.update() must then replay the rest under the lock. Other journals are left to Journal.update() entirely.
+     * @return The first transaction not replayed.
+     */
+    protected static long replayWithoutLocking(Journal journal, TransactionSubscriber subscriber, long initialTransaction) throws IOException {
+        if (!(journal instanceof PersistentJournal)) return initialTransaction;
+        return ((PersistentJournal) journal).replay(subscriber, initialTransaction);
+    }
+
+    /** The subscriber itself, unless the clock tells real time in nanoseconds: then a subscriber that also moves the real clock forward to the execution time of each transaction replayed to it. Transactions recovered from an earlier run thus keep being followed by later ones, even if the machine clock has since been set back.
+     */
+    protected static TransactionSubscriber advancingRealTime(final PausableClock clock, final TransactionSubscriber subscriber) {
+        if (!clock.tellsRealTimeNanos()) return subscriber;
+        return new TransactionSubscriber() {
+            public void receive(TransactionTimestamp transactionTimestamp) {
+                clock.advanceRealTimeForwardToNanos(transactionTimestamp.executionTimeMillis() * HybridLogicalClock.NANOS_PER_MILLI + transactionTimestamp.executionNanos());
+                subscriber.receive(transactionTimestamp);
+            }
+        };
+    }
+
+    /** The Executor used by default to deliver transactions to AsynchronousTransactionSubscribers. Its daemon threads are created on demand, since each asynchronous subscriber occupies at most one of them at a time.
+     */
+    public static synchronized Executor sharedAsynchronousExecutor() {
+        if (_sharedAsynchronousExecutor == null) {
+            _sharedAsynchronousExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Prevayler asynchronous subscriber");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return _sharedAsynchronousExecutor;
     }
 
 }
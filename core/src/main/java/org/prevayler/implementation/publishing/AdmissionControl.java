@@ -0,0 +1,173 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import org.prevayler.TransactionRejectedException;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Limits the transactions a publisher accepts so that, when the disk stalls, excess callers are turned away with a TransactionRejectedException instead of piling up behind the journal.
+ * <br>
+ * <br>A transaction is admitted if, within the maximum wait, it obtains a token from an optional token bucket (the rate limit) and one of a fixed number of in-flight permits (the concurrency limit). A maximum wait of zero rejects immediately.
+ */
+public class AdmissionControl {
+
+	/** Use as maxInFlight or transactionsPerSecond for no limit. */
+	public static final int UNLIMITED = 0;
+
+	private final int _maxInFlight;
+	private final Semaphore _inFlightPermits;
+	private final long _maxWaitNanos;
+
+	private final double _transactionsPerSecond;
+	private final double _burst;
+	private double _tokens; // Guarded by _bucketLock. Negative when tokens have been reserved ahead of time.
+	private long _lastRefill; // Guarded by _bucketLock
+	private final Lock _bucketLock = new ReentrantLock();
+
+	private final AtomicInteger _waiting = new AtomicInteger();
+	private final AtomicInteger _inFlight = new AtomicInteger();
+	private final AtomicLong _admitted = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+
+
+	/**
+	 * @param maxInFlight The maximum number of transactions being journaled or executed at once, or UNLIMITED.
+	 * @param maxWaitMillis How long a transaction may wait to be admitted before being rejected. Zero rejects immediately.
+	 */
+	public AdmissionControl(int maxInFlight, long maxWaitMillis) {
+		this(maxInFlight, maxWaitMillis, UNLIMITED, 0);
+	}
+
+	/**
+	 * @param transactionsPerSecond The sustained rate of admitted transactions, or UNLIMITED.
+	 * @param burst The number of transactions that may be admitted at once after a quiet period. At least one.
+	 */
+	public AdmissionControl(int maxInFlight, long maxWaitMillis, double transactionsPerSecond, int burst) {
+		if (maxInFlight < 0) throw new IllegalArgumentException("maxInFlight cannot be negative: " + maxInFlight);
+		if (maxWaitMillis < 0) throw new IllegalArgumentException("maxWaitMillis cannot be negative: " + maxWaitMillis);
+		if (transactionsPerSecond < 0) throw new IllegalArgumentException("transactionsPerSecond cannot be negative: " + transactionsPerSecond);
+
+		_maxInFlight = maxInFlight;
+		_inFlightPermits = maxInFlight == UNLIMITED ? null : new Semaphore(maxInFlight, true);
+		_maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+		_transactionsPerSecond = transactionsPerSecond;
+		_burst = Math.max(1, burst);
+		_tokens = _burst;
+		_lastRefill = System.nanoTime();
+	}
+
+
+	/** Must be followed by exactly one call to release() once the admitted transaction has been published.
+	 * @throws TransactionRejectedException if the transaction cannot be admitted within the maximum wait.
+	 */
+	public void admit() {
+		long deadline = System.nanoTime() + _maxWaitNanos;
+		_waiting.incrementAndGet();
+		try {
+			takeToken(deadline);
+			try {
+				takeInFlightPermit(deadline);
+			} catch (TransactionRejectedException rejection) {
+				refundToken();
+				throw rejection;
+			}
+		} catch (TransactionRejectedException rejection) {
+			_rejected.incrementAndGet();
+			throw rejection;
+		} finally {
+			_waiting.decrementAndGet();
+		}
+		_inFlight.incrementAndGet();
+		_admitted.incrementAndGet();
+	}
+
+
+	public void release() {
+		_inFlight.decrementAndGet();
+		if (_inFlightPermits != null) _inFlightPermits.release();
+	}
+
+
+	private void takeToken(long deadline) {
+		if (_transactionsPerSecond == UNLIMITED) return;
+
+		long waitNanos;
+		_bucketLock.lock();
+		try {
+			long now = System.nanoTime();
+			_tokens = Math.min(_burst, _tokens + (now - _lastRefill) * _transactionsPerSecond / TimeUnit.SECONDS.toNanos(1));
+			_lastRefill = now;
+
+			waitNanos = _tokens >= 1 ? 0 : (long) Math.ceil((1 - _tokens) * TimeUnit.SECONDS.toNanos(1) / _transactionsPerSecond);
+			if (waitNanos > 0 && now + waitNanos - deadline > 0) throw new TransactionRejectedException("Transaction rate limit of " + _transactionsPerSecond + " per second exceeded.");
+			_tokens--; // Reserves the token even if it will only be available after waitNanos.
+		} finally {
+			_bucketLock.unlock();
+		}
+
+		if (waitNanos == 0) return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			refundToken();
+			Thread.currentThread().interrupt();
+			throw new TransactionRejectedException("Interrupted while waiting to be admitted.");
+		}
+	}
+
+
+	/** Gives back a token reserved by takeToken() for a transaction that ends up rejected. */
+	private void refundToken() {
+		if (_transactionsPerSecond == UNLIMITED) return;
+
+		_bucketLock.lock();
+		try {
+			_tokens++;
+		} finally {
+			_bucketLock.unlock();
+		}
+	}
+
+
+	private void takeInFlightPermit(long deadline) {
+		if (_inFlightPermits == null) return;
+		if (_inFlightPermits.tryAcquire()) return; // Barging is fine when there is a free permit: nobody is waiting for it.
+
+		try {
+			if (_inFlightPermits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransactionRejectedException("Interrupted while waiting to be admitted.");
+		}
+		throw new TransactionRejectedException("Too many transactions in flight (" + _maxInFlight + ").");
+	}
+
+
+	/** The number of admitted transactions not yet released. */
+	public int inFlight() {
+		return _inFlight.get();
+	}
+
+	/** The number of transactions currently waiting to be admitted. */
+	public int queueDepth() {
+		return _waiting.get();
+	}
+
+	public long admitted() {
+		return _admitted.get();
+	}
+
+	public long rejected() {
+		return _rejected.get();
+	}
+
+}
@@ -0,0 +1,13 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+
+/** Marks a TransactionSubscriber that does not need to receive transactions on the publishing thread, such as a replication or change-data-capture listener. AbstractPublisher delivers to such subscribers through a POBox drained on a shared Executor, so they add no latency to the publication of transactions.
+ * <br>
+ * <br>Transactions are still delivered to each asynchronous subscriber one at a time and in order, but possibly after they have been executed on the prevalent system.
+ */
+public interface AsynchronousTransactionSubscriber extends TransactionSubscriber {
+}
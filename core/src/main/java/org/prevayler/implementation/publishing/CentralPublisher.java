@@ -5,7 +5,6 @@
 package org.prevayler.implementation.publishing;
 
 import org.prevayler.Clock;
-import org.prevayler.foundation.Cool;
 import org.prevayler.foundation.Turn;
 import org.prevayler.implementation.Capsule;
 import org.prevayler.implementation.TransactionGuide;
@@ -14,57 +13,87 @@ import org.prevayler.implementation.clock.PausableClock;
 import org.prevayler.implementation.journal.Journal;
 
 import java.io.IOException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class CentralPublisher extends AbstractPublisher {
 
 	private final PausableClock _pausableClock;
 	private final Journal _journal;
+	private final DurabilityBarrier _durabilityBarrier;
 
-	private volatile int _pendingPublications = 0;
-	private final Object _pendingPublicationsMonitor = new Object();
+	/** Shared by pending publications, exclusive to new subscriptions. */
+	private final ReadWriteLock _publicationsLock = new ReentrantReadWriteLock();
 
 	private Turn _nextTurn = Turn.first();
 	private long _nextTransaction;
-	private final Object _nextTurnMonitor = new Object();
+	private volatile boolean _journalUpdated = false; // Once the Journal has been updated, late subscribers can replay most of it without the lock.
+	private final Lock _nextTurnLock = new ReentrantLock();
 
 
 	public CentralPublisher(Clock clock, Journal journal) {
+		this(clock, journal, false);
+	}
+
+	/**
+	 * @param earlyLockRelease If <code>true</code>, each transaction is executed as soon as it has been written to the journal's buffer, while earlier transactions may still be waiting to be synced, and publish() only returns once it is durable. The next transaction therefore doesn't wait for the disk to execute. Queries and snapshots wait on the durabilityBarrier() until everything they can see is durable.
+	 */
+	public CentralPublisher(Clock clock, Journal journal, boolean earlyLockRelease) {
 		super(new PausableClock(clock));
 		_pausableClock = (PausableClock) _clock; //This is just to avoid casting the inherited _clock every time.
 
 		_journal = journal;
+		_durabilityBarrier = earlyLockRelease ? new DurabilityBarrier() : null;
 	}
 
 
 	public void publish(Capsule capsule) {
-		synchronized (_pendingPublicationsMonitor) {  //Blocks all new subscriptions until the publication is over.
-			if (_pendingPublications == 0) _pausableClock.pause();
-			_pendingPublications++;
-		}
-
+		capsule.prepareTransactionToExecute(); // Deserialized here, in parallel with the transactions before it, instead of during its turn.
+		_publicationsLock.readLock().lock();  //Blocks all new subscriptions until the publication is over.
 		try {
-			publishWithoutWorryingAboutNewSubscriptions(capsule);  // Suggestions for a better method name are welcome.  :)
-		} finally {
-			synchronized (_pendingPublicationsMonitor) {
-				_pendingPublications--;
-				if (_pendingPublications == 0) {
-					_pausableClock.resume();
-					_pendingPublicationsMonitor.notifyAll();
-				}
+			_pausableClock.pause();
+			try {
+				publishWithoutWorryingAboutNewSubscriptions(capsule);  // Suggestions for a better method name are welcome.  :)
+			} finally {
+				_pausableClock.resume();
 			}
+		} finally {
+			_publicationsLock.readLock().unlock();
 		}
 	}
 
 
 	private void publishWithoutWorryingAboutNewSubscriptions(Capsule capsule) {
 		TransactionGuide guide = guideFor(capsule);
+		if (_durabilityBarrier != null) {
+			publishReleasingEarly(guide);
+			return;
+		}
 		_journal.append(guide);
 		notifySubscribers(guide);
 	}
 
+	private void publishReleasingEarly(TransactionGuide guide) {
+		Execution execution = new Execution(guide);
+		try {
+			_journal.append(guide, execution);
+		} catch (RuntimeException rx) {
+			_durabilityBarrier.fail(rx);
+			throw rx;
+		} catch (Error error) {
+			_durabilityBarrier.fail(error);
+			throw error;
+		}
+		_durabilityBarrier.durable(guide.timestamp().systemVersion());
+		execution.rethrow();
+	}
+
 	private TransactionGuide guideFor(Capsule capsule) {
-		synchronized (_nextTurnMonitor) {
-			TransactionTimestamp timestamp = new TransactionTimestamp(capsule, _nextTransaction, _pausableClock.realTime());
+		_nextTurnLock.lock();
+		try {
+			TransactionTimestamp timestamp = TransactionTimestamp.withExecutionNanos(capsule, _nextTransaction, _pausableClock.realTimeNanos());
 
 			// Count this transaction
 			Turn turn = _nextTurn;
@@ -72,13 +101,15 @@ public class CentralPublisher extends AbstractPublisher {
 			_nextTransaction++;
 
 			return new TransactionGuide(timestamp, turn);
+		} finally {
+			_nextTurnLock.unlock();
 		}
 	}
 
 	private void notifySubscribers(TransactionGuide guide) {
 		guide.startTurn();
 		try {
-			_pausableClock.advanceTo(guide.executionTime());
+			_pausableClock.advanceTo(guide.executionTimeMillis());
 			notifySubscribers(guide.timestamp());
 		} finally {
 			guide.endTurn();
@@ -87,22 +118,65 @@ public class CentralPublisher extends AbstractPublisher {
 
 
 	public void subscribe(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException {
-		synchronized (_pendingPublicationsMonitor) {
-			while (_pendingPublications != 0) Cool.wait(_pendingPublicationsMonitor);
+		TransactionSubscriber replayed = advancingRealTime(_pausableClock, subscriber);
+		if (_journalUpdated) initialTransaction = replayWithoutLocking(_journal, replayed, initialTransaction);
 
-			_journal.update(subscriber, initialTransaction);
+		_publicationsLock.writeLock().lock();  //Waits for all pending publications to be over.
+		try {
+			_journal.update(replayed, initialTransaction);
+			_journalUpdated = true;
 
-			synchronized (_nextTurnMonitor) {
+			_nextTurnLock.lock();
+			try {
 				_nextTransaction = _journal.nextTransaction();
+			} finally {
+				_nextTurnLock.unlock();
 			}
+			if (_durabilityBarrier != null) _durabilityBarrier.durable(_nextTransaction - 1);
 
 			super.addSubscriber(subscriber);
+		} finally {
+			_publicationsLock.writeLock().unlock();
 		}
 	}
 
 
+	/** Returns null unless early lock release was configured. */
+	public DurabilityBarrier durabilityBarrier() {
+		return _durabilityBarrier;
+	}
+
+
 	public void close() throws IOException {
 		_journal.close();
 	}
 
+
+	/** Notifies the subscribers of a transaction once it has been written, keeping what it throws for the publishing thread, which only rethrows it once the transaction is durable. */
+	private class Execution implements Runnable {
+
+		private final TransactionGuide _guide;
+		private RuntimeException _runtimeException;
+		private Error _error;
+
+		Execution(TransactionGuide guide) {
+			_guide = guide;
+		}
+
+		public void run() {
+			try {
+				notifySubscribers(_guide);
+			} catch (RuntimeException rx) {
+				_runtimeException = rx;
+			} catch (Error error) {
+				_error = error;
+			}
+		}
+
+		void rethrow() {
+			if (_runtimeException != null) throw _runtimeException;
+			if (_error != null) throw _error;
+		}
+	}
+
 }
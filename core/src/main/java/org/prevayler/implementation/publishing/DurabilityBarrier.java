@@ -0,0 +1,74 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import org.prevayler.foundation.Cool;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Tells which transactions are durable when a CentralPublisher applies transactions before they are durable (early lock release). Queries and snapshots wait here until every transaction they can see is durable, so they never see a transaction that could still be lost.
+ * <br>
+ * <br>If the journal fails, transactions that were applied may never become durable, so the barrier fails for good and waiting threads are released with an IllegalStateException.
+ */
+public class DurabilityBarrier {
+
+	private long _durableVersion; // Guarded by _lock
+	private Throwable _failure; // Guarded by _lock
+	private final Lock _lock = new ReentrantLock(); // Not a monitor, so that waiting threads don't pin virtual thread carriers
+	private final Condition _durabilityAdvanced = _lock.newCondition();
+
+
+	/** Notes that every transaction up to and including the given one is durable. Never moves the barrier back.
+	 */
+	public void durable(long systemVersion) {
+		_lock.lock();
+		try {
+			if (systemVersion <= _durableVersion) return;
+			_durableVersion = systemVersion;
+			_durabilityAdvanced.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Notes that transactions already applied may never become durable.
+	 */
+	public void fail(Throwable cause) {
+		_lock.lock();
+		try {
+			if (_failure == null) _failure = cause;
+			_durabilityAdvanced.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	/** Waits until every transaction up to and including the given one is durable.
+	 * @throws IllegalStateException If the journal has failed before that.
+	 */
+	public void awaitDurable(long systemVersion) {
+		_lock.lock();
+		try {
+			while (_durableVersion < systemVersion && _failure == null) {
+				Cool.await(_durabilityAdvanced);
+			}
+			if (_durableVersion < systemVersion) throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException. Transactions already executed may not be durable.", _failure);
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+	public long durableVersion() {
+		_lock.lock();
+		try {
+			return _durableVersion;
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+}
@@ -1,60 +1,281 @@
 //Prevayler(TM) - The Free-Software Prevalence Layer.
 //Copyright (C) 2001-2003 Klaus Wuestefeld
 //This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
-//Contributions: Frederic Langlet
 
 package org.prevayler.implementation.publishing;
 
 import org.prevayler.foundation.Cool;
 import org.prevayler.implementation.TransactionTimestamp;
 
-import java.util.LinkedList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
-/** An assyncronous buffer for transaction subscribers. 
+/** An assyncronous, bounded buffer for transaction subscribers. Transactions are queued by the publishing threads and delivered to the delegate subscriber, in batches, either by a dedicated daemon thread or by tasks run on a given Executor, never more than one at a time.
+ * <br>
+ * <br>When the delegate falls so far behind that the buffer is full, the OverflowPolicy decides what happens: either the publishers block until there is room again, or this POBox stops buffering, lets the delegate catch up and then resubscribes to the publisher, which replays the missed transactions from its journal.
  */
 public class POBox implements TransactionSubscriber, Runnable {
 
-	private final LinkedList _queue = new LinkedList();
+	public static final int DEFAULT_CAPACITY = 10000;
+	private static final int MAX_BATCH = 256;
+
+	public static enum OverflowPolicy {
+		/** Publishing threads block until the delegate has made room in the buffer. Slows down the whole system to the pace of the delegate. */
+		BLOCK,
+		/** Transactions are dropped from the buffer until the delegate has caught up, and are then replayed from the publisher's journal. The publisher must be able to replay from any transaction the delegate may have fallen behind on. */
+		DISCONNECT_AND_RESUBSCRIBE
+	}
+
+	private final BlockingQueue _queue;
+	private final int _capacity;
 	private final TransactionSubscriber _delegate;
-	
-	private final Object _emptynessMonitor = new Object();
-  
+	private final OverflowPolicy _overflowPolicy;
+	private final TransactionPublisher _publisher;
+	private final Executor _executor;
+	private final AtomicBoolean _drainScheduled = new AtomicBoolean(false);
+	private final Runnable _drainer = new Runnable() {
+		public void run() {
+			drain();
+		}
+	};
+
+	private volatile boolean _overflowed = false;
+	private volatile Thread _resubscribingThread;
+	private long _lastDeliveredVersion = 0; // Only accessed by the delivery thread
 
+	private final AtomicLong _pending = new AtomicLong();
+	private final Lock _lock = new ReentrantLock();
+	private final Condition _empty = _lock.newCondition();
+
+	private volatile int _maxQueueDepth = 0;
+	private final AtomicLong _blockedPublications = new AtomicLong();
+	private final AtomicLong _resubscriptions = new AtomicLong();
+	private volatile IOException _resubscriptionFailure;
+
+
+	/** Creates a POBox with the DEFAULT_CAPACITY that blocks publishers when full.
+	 */
 	public POBox(TransactionSubscriber delegate) {
+		this(delegate, DEFAULT_CAPACITY, OverflowPolicy.BLOCK, null);
+	}
+
+	/**
+	 * @param capacity The maximum number of transactions buffered for the delegate.
+	 * @param publisher The publisher this POBox is subscribed to. Only required for OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE.
+	 */
+	public POBox(TransactionSubscriber delegate, int capacity, OverflowPolicy overflowPolicy, TransactionPublisher publisher) {
+		this(delegate, capacity, overflowPolicy, publisher, null);
+	}
+
+	/**
+	 * @param capacity The maximum number of transactions buffered for the delegate.
+	 * @param publisher The publisher this POBox is subscribed to. Only required for OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE.
+	 * @param executor Runs the deliveries to the delegate, one batch after the other. If null, a dedicated daemon thread is started instead.
+	 */
+	public POBox(TransactionSubscriber delegate, int capacity, OverflowPolicy overflowPolicy, TransactionPublisher publisher, Executor executor) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		if (overflowPolicy == OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE && publisher == null) throw new IllegalArgumentException("A publisher is necessary in order to resubscribe.");
 		_delegate = delegate;
-		Cool.startDaemon(this);
+		_capacity = capacity;
+		_queue = new LinkedBlockingQueue(capacity);
+		_overflowPolicy = overflowPolicy;
+		_publisher = publisher;
+		_executor = executor;
+		if (_executor == null) Cool.startDaemon(this);
+	}
+
+
+	/** Tells this POBox the first transaction it is about to be subscribed from, so that a resubscription before anything was delivered replays from there rather than from the very first transaction. Must be called before subscribing.
+	 */
+	public void startAt(long initialTransaction) {
+		_lastDeliveredVersion = initialTransaction - 1;
+	}
+
+
+	public void receive(TransactionTimestamp transactionTimestamp) {
+		if (Thread.currentThread() == _resubscribingThread) {  // Replayed by the publisher while resubscribing.
+			deliver(transactionTimestamp);
+			return;
+		}
+		if (_overflowed) return;  // Will be replayed when resubscribing.
+
+		_pending.incrementAndGet();
+		if (!_queue.offer(transactionTimestamp)) overflow(transactionTimestamp);
+		recordQueueDepth();
+		scheduleDrain();
 	}
 
 
-	public synchronized void receive(TransactionTimestamp transactionTimestamp) {
-		_queue.add(transactionTimestamp);
-		notify();
+	private void overflow(TransactionTimestamp transactionTimestamp) {
+		if (_overflowPolicy == OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE) {
+			_overflowed = true;
+			transactionDone();
+			return;
+		}
+
+		scheduleDrain();  // The queue may have filled up before a drain could be scheduled.
+
+		_blockedPublications.incrementAndGet();
+		try {
+			_queue.put(transactionTimestamp);
+		} catch (InterruptedException e) {
+			transactionDone();
+			Cool.unexpected(e);
+		}
 	}
 
 
 	public void run() {
+		List batch = new ArrayList(MAX_BATCH);
 		while (true) {
-			TransactionTimestamp notification = waitForNotification();
-			_delegate.receive(notification);
+			if (_overflowed && _queue.isEmpty()) resubscribe();
+
+			batch.add(take());
+			_queue.drainTo(batch, MAX_BATCH - 1);
+			deliver(batch);
+		}
+	}
+
+
+	private void scheduleDrain() {
+		if (_executor == null) return;
+		if (_drainScheduled.compareAndSet(false, true)) _executor.execute(_drainer);
+	}
+
+
+	/** Runs on the Executor. Delivers until the queue is empty and then makes sure no transaction queued meanwhile is left without a drain scheduled.
+	 */
+	private void drain() {
+		List batch = new ArrayList(MAX_BATCH);
+		while (true) {
+			if (_overflowed && _queue.isEmpty()) resubscribe();
+
+			_queue.drainTo(batch, MAX_BATCH);
+			if (batch.isEmpty()) {
+				_drainScheduled.set(false);
+				if ((_queue.isEmpty() && !_overflowed) || !_drainScheduled.compareAndSet(false, true)) return;
+				continue;
+			}
+			deliver(batch);
 		}
 	}
 
 
-	private synchronized TransactionTimestamp waitForNotification() {
-		while (_queue.size() == 0) {
-			synchronized (_emptynessMonitor) { _emptynessMonitor.notify(); }
-			Cool.wait(this);
+	private void deliver(List batch) {
+		for (int i = 0; i < batch.size(); i++) {
+			deliver((TransactionTimestamp)batch.get(i));
+			transactionDone();
 		}
-		return (TransactionTimestamp)_queue.removeFirst();
+		batch.clear();
 	}
 
 
+	private Object take() {
+		try {
+			return _queue.take();
+		} catch (InterruptedException e) {
+			Cool.unexpected(e);
+			return null;
+		}
+	}
+
+
+	private void deliver(TransactionTimestamp transactionTimestamp) {
+		if (transactionTimestamp.systemVersion() <= _lastDeliveredVersion) return;  // Already delivered before a resubscription.
+		_delegate.receive(transactionTimestamp);
+		_lastDeliveredVersion = transactionTimestamp.systemVersion();
+	}
+
+
+	private void resubscribe() {
+		_publisher.cancelSubscription(this);
+		_overflowed = false;
+		_resubscribingThread = Thread.currentThread();
+		try {
+			_publisher.subscribe(this, _lastDeliveredVersion + 1);
+			_resubscriptions.incrementAndGet();
+		} catch (IOException e) {
+			_resubscriptionFailure = e;
+			throw new RuntimeException("Unable to resubscribe from transaction " + (_lastDeliveredVersion + 1) + ".", e);
+		} catch (ClassNotFoundException e) {
+			Cool.unexpected(e);
+		} finally {
+			_resubscribingThread = null;
+			signalEmptiness();
+		}
+	}
+
+
+	private void transactionDone() {
+		if (_pending.decrementAndGet() == 0) signalEmptiness();
+	}
+
+
+	private void signalEmptiness() {
+		_lock.lock();
+		try {
+			_empty.signalAll();
+		} finally {
+			_lock.unlock();
+		}
+	}
+
+
+	private void recordQueueDepth() {
+		int depth = _queue.size();
+		if (depth > _maxQueueDepth) _maxQueueDepth = depth;
+	}
+
+
+	/** Waits until every transaction received so far has been delivered to the delegate, including those to be replayed after an overflow.
+	 */
 	public void waitToEmpty() {
-		synchronized (_emptynessMonitor) {
-			while (_queue.size() != 0) Cool.wait(_emptynessMonitor);
+		_lock.lock();
+		try {
+			while (_pending.get() != 0 || _overflowed || _resubscribingThread != null) Cool.await(_empty);
+		} finally {
+			_lock.unlock();
 		}
 	}
 
 
-}
\ No newline at end of file
+	public int capacity() {
+		return _capacity;
+	}
+
+	/** The number of transactions currently buffered. */
+	public int queueDepth() {
+		return _queue.size();
+	}
+
+	/** The largest number of transactions ever observed in the buffer. */
+	public int maxQueueDepth() {
+		return _maxQueueDepth;
+	}
+
+	/** The number of times a publishing thread had to block because the buffer was full. */
+	public long blockedPublications() {
+		return _blockedPublications.get();
+	}
+
+	/** The number of times the buffer overflowed and this POBox successfully resubscribed. */
+	public long resubscriptions() {
+		return _resubscriptions.get();
+	}
+
+	/** The IOException that prevented the last resubscription, if any. Delivery stops after such a failure. */
+	public IOException resubscriptionFailure() {
+		return _resubscriptionFailure;
+	}
+
+}
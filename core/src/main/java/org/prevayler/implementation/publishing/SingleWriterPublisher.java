@@ -0,0 +1,255 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import org.prevayler.Clock;
+import org.prevayler.foundation.Turn;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.TransactionGuide;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.clock.PausableClock;
+import org.prevayler.implementation.journal.Journal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A TransactionPublisher in which publishing threads only enqueue their capsules. A single writer thread takes them from the queue in batches, assigns their system versions and execution times, appends each batch to the Journal as a single write (with a single sync), notifies the subscribers of each transaction in order and only then releases the publishing threads.
+ * <br>
+ * <br>Compared to CentralPublisher, publishing threads never hand turns to one another, so there is no lock convoy among them; the price is a thread handoff per publication. Prefer it when many threads publish concurrently.
+ */
+public class SingleWriterPublisher extends AbstractPublisher {
+
+	private static final int MAX_BATCH = 1024;
+
+	private final PausableClock _pausableClock;
+	private final Journal _journal;
+
+	private final BlockingQueue _queue = new LinkedBlockingQueue();
+	private final Thread _writer;
+	private final Lock _writerLock = new ReentrantLock(); // Held by the writer while it processes a batch, and by new subscriptions.
+
+	private long _nextTransaction; // Guarded by _writerLock
+	private volatile boolean _journalUpdated = false; // Once the Journal has been updated, late subscribers can replay most of it without the lock.
+	private volatile boolean _closed = false;
+	private volatile Throwable _abortCause;
+	private volatile Throwable _writerExitCause; // Set by the writer thread before it fails whatever is left in the queue and exits
+
+
+	public SingleWriterPublisher(Clock clock, Journal journal) {
+		super(new PausableClock(clock));
+		_pausableClock = (PausableClock) _clock; //This is just to avoid casting the inherited _clock every time.
+		_journal = journal;
+
+		_writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "Prevayler single writer");
+		_writer.setDaemon(true);
+		_writer.start();
+	}
+
+
+	public void publish(Capsule capsule) {
+		checkAcceptingPublications();
+		capsule.prepareTransactionToExecute(); // Deserialized here, in parallel with other publishing threads, instead of on the writer thread.
+		Publication publication = new Publication(capsule);
+		_queue.add(publication);
+		Throwable writerExitCause = _writerExitCause;
+		if (writerExitCause != null) failAll(_queue, writerExitCause); // Enqueued too late to be seen by the writer.
+		publication.waitForCompletion();
+	}
+
+
+	/** The number of publications waiting for the writer thread. */
+	public int queueDepth() {
+		return _queue.size();
+	}
+
+
+	private void checkAcceptingPublications() {
+		if (_abortCause != null) throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.", _abortCause);
+		if (_closed) throw new IllegalStateException("This publisher has been closed.");
+	}
+
+
+	/** Runs on the writer thread. However it exits, it completes every publication it has not processed, and every one still in the queue, with the cause.
+	 */
+	private void write() {
+		List batch = new ArrayList(MAX_BATCH);
+		Throwable exitCause = new IllegalStateException("This publisher has been closed.");
+		try {
+			while (true) {
+				try {
+					batch.add(_queue.take());
+				} catch (InterruptedException e) {
+					exitCause = new IllegalStateException("The writer thread was interrupted.");
+					return;
+				}
+				_queue.drainTo(batch, MAX_BATCH - 1);
+
+				int close = batch.indexOf(CLOSE);
+				if (close >= 0) {
+					process(batch.subList(0, close));
+					return;
+				}
+
+				process(batch);
+				batch.clear();
+			}
+		} catch (RuntimeException rx) {
+			exitCause = rx;
+			throw rx;
+		} catch (Error error) {
+			exitCause = error;
+			throw error;
+		} finally {
+			_writerExitCause = exitCause;
+			failAll(batch, exitCause);
+			failAll(_queue, exitCause);
+		}
+	}
+
+
+	private void process(List batch) {
+		if (batch.isEmpty()) return;
+		if (_abortCause != null) {
+			failAll(batch, new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.", _abortCause));
+			return;
+		}
+
+		_writerLock.lock();
+		_pausableClock.pause();
+		try {
+			TransactionGuide[] guides = new TransactionGuide[batch.size()];
+			for (int i = 0; i < guides.length; i++) {
+				Publication publication = (Publication) batch.get(i);
+				TransactionTimestamp timestamp = TransactionTimestamp.withExecutionNanos(publication._capsule, _nextTransaction + i, _pausableClock.realTimeNanos());
+				guides[i] = new TransactionGuide(timestamp, Turn.first());
+			}
+
+			try {
+				_journal.append(guides);
+			} catch (RuntimeException rx) {
+				_abortCause = rx;
+				failAll(batch, rx);
+				return;
+			} catch (Error error) {
+				_abortCause = error;
+				failAll(batch, error);
+				return;
+			}
+			_nextTransaction += guides.length;
+
+			for (int i = 0; i < guides.length; i++) {
+				Publication publication = (Publication) batch.get(i);
+				try {
+					_pausableClock.advanceTo(guides[i].executionTimeMillis());
+					notifySubscribers(guides[i].timestamp());
+					publication.complete(null);
+				} catch (RuntimeException rx) {
+					publication.complete(rx);
+				} catch (Error error) {
+					publication.complete(error);
+				}
+			}
+		} finally {
+			_pausableClock.resume();
+			_writerLock.unlock();
+		}
+	}
+
+
+	private void failAll(List publications, Throwable cause) {
+		for (int i = 0; i < publications.size(); i++) {
+			Publication publication = (Publication) publications.get(i);
+			if (publication != CLOSE) publication.complete(cause);
+		}
+	}
+
+
+	/** Each publication drained from the queue is completed by the thread that drained it. */
+	private void failAll(BlockingQueue queue, Throwable cause) {
+		List remaining = new ArrayList();
+		queue.drainTo(remaining);
+		failAll(remaining, cause);
+	}
+
+
+	public void subscribe(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException {
+		TransactionSubscriber replayed = advancingRealTime(_pausableClock, subscriber);
+		if (_journalUpdated) initialTransaction = replayWithoutLocking(_journal, replayed, initialTransaction);
+
+		_writerLock.lock();
+		try {
+			_journal.update(replayed, initialTransaction);
+			_journalUpdated = true;
+			_nextTransaction = _journal.nextTransaction();
+			super.addSubscriber(subscriber);
+		} finally {
+			_writerLock.unlock();
+		}
+	}
+
+
+	/** Lets the writer finish the publications already enqueued, fails any enqueued after them and then closes the Journal.
+	 */
+	public void close() throws IOException {
+		if (!_closed) {
+			_closed = true;
+			_queue.add(CLOSE);
+			try {
+				_writer.join();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while waiting for the writer thread to finish.");
+			}
+		}
+		_journal.close();
+	}
+
+
+	private static final Publication CLOSE = new Publication(null);
+
+
+	static private class Publication {
+		final Capsule _capsule;
+		private final CountDownLatch _done = new CountDownLatch(1);
+		private Throwable _failure; // Safely published by _done
+
+		Publication(Capsule capsule) {
+			_capsule = capsule;
+		}
+
+		/** Only the first completion counts. Called only by the thread that owns the publication: the writer, or whoever drained it from the queue. */
+		void complete(Throwable failure) {
+			if (_done.getCount() == 0) return;
+			_failure = failure;
+			_done.countDown();
+		}
+
+		void waitForCompletion() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					_done.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true; // The transaction may already be journaled, so it must not be abandoned halfway.
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+
+			if (_failure instanceof RuntimeException) throw (RuntimeException) _failure;
+			if (_failure instanceof Error) throw (Error) _failure;
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.util.Date;
+
+import org.prevayler.Transaction;
+
+/** The part of a CrossShardTransaction journaled and executed by one of the shards.
+ */
+class CrossShardPart<P> implements Transaction<Shard<P>> {
+
+	private static final long serialVersionUID = 8146027751183320461L;
+
+	private final CrossShardTransaction<? super P> _transaction;
+	private final int _shard;
+	private final long _globalSequence;
+
+	CrossShardPart(CrossShardTransaction<? super P> transaction, int shard, long globalSequence) {
+		_transaction = transaction;
+		_shard = shard;
+		_globalSequence = globalSequence;
+	}
+
+	public void executeOn(Shard<P> shard, Date executionTime) {
+		shard.globalSequence(_globalSequence);
+		_transaction.executeOn(shard.system(), _shard, executionTime);
+	}
+
+}
@@ -0,0 +1,24 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/** A Transaction that must change the state of more than one shard of a ShardedPrevayler.
+ * <br>It is journaled once in each of the shards it involves and executed once per shard, always in ascending shard order and always under the same global sequence number.
+ * @param <P> The type or any supertype of the shards' Prevalent Systems.
+ * @see ShardedPrevayler#execute(CrossShardTransaction, int[])
+ */
+public interface CrossShardTransaction<P> extends Serializable {
+
+	/** This method is called by ShardedPrevayler once for each of the shards this transaction involves. It must change only the given shard's Prevalent System.
+	 * @param prevalentSystem The Prevalent System of the given shard.
+	 * @param shard The index of the shard being changed.
+	 * @param executionTime The time at which this part of the transaction is being executed, according to the shard's Clock.
+	 */
+	public void executeOn(P prevalentSystem, int shard, Date executionTime);
+
+}
@@ -0,0 +1,34 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.io.Serializable;
+
+/** The Prevalent System actually persisted by each of the Prevaylers behind a ShardedPrevayler. Holds the application's Prevalent System for that shard and the last global sequence number of the CrossShardTransactions it has executed, so that the sequence survives snapshots and recovery.
+ */
+public class Shard<P> implements Serializable {
+
+	private static final long serialVersionUID = 2952447012786563094L;
+
+	private final P _system;
+	private long _lastGlobalSequence;
+
+	public Shard(P system) {
+		_system = system;
+	}
+
+	public P system() {
+		return _system;
+	}
+
+	long lastGlobalSequence() {
+		return _lastGlobalSequence;
+	}
+
+	void globalSequence(long sequence) {
+		if (sequence > _lastGlobalSequence) _lastGlobalSequence = sequence;
+	}
+
+}
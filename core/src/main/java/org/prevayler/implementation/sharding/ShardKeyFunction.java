@@ -0,0 +1,20 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.io.Serializable;
+
+/** Extracts the shard key from the Transactions and Queries executed on a ShardedPrevayler. Keys with equal hashCode() are always routed to the same shard.
+ * <br>The mapping must be stable across system restarts, otherwise a Transaction recovered from one shard's journal would have been routed to another shard by the running system. Keys that are Integers are therefore a good choice: a non-negative Integer key k is routed to shard (k % numberOfShards).
+ * @see ShardedPrevayler
+ */
+public interface ShardKeyFunction extends Serializable {
+
+	/** @param transactionOrQuery The Transaction, TransactionWithQuery or Query about to be executed.
+	 * @return The key that identifies the shard on which transactionOrQuery must execute. Must not be null.
+	 */
+	public Object keyFor(Object transactionOrQuery);
+
+}
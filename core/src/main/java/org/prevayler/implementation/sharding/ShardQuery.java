@@ -0,0 +1,25 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.util.Date;
+
+import org.prevayler.Query;
+
+class ShardQuery<P,R> implements Query<Shard<P>,R> {
+
+	private static final long serialVersionUID = -1137263480155273942L;
+
+	private final Query<? super P,R> _delegate;
+
+	ShardQuery(Query<? super P,R> delegate) {
+		_delegate = delegate;
+	}
+
+	public R query(Shard<P> shard, Date executionTime) throws Exception {
+		return _delegate.query(shard.system(), executionTime);
+	}
+
+}
@@ -0,0 +1,49 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.util.Date;
+
+import org.prevayler.ImmutableTransaction;
+import org.prevayler.Transaction;
+
+final class ShardTransaction<P> implements Transaction<Shard<P>> {
+
+	private static final long serialVersionUID = -5436812003476115429L;
+
+	private final Transaction<? super P> _delegate;
+
+	static <P> Transaction<Shard<P>> wrap(Transaction<? super P> delegate) {
+		return delegate instanceof ImmutableTransaction ? new Immutable<P>(delegate) : new ShardTransaction<P>(delegate);
+	}
+
+	private ShardTransaction(Transaction<? super P> delegate) {
+		_delegate = delegate;
+	}
+
+	public void executeOn(Shard<P> shard, Date executionTime) {
+		_delegate.executeOn(shard.system(), executionTime);
+	}
+
+
+	/** Keeps the ImmutableTransaction fast path when the wrapped transaction is immutable. Final with a final field, so it is exactly as immutable as the transaction it wraps.
+	 */
+	static private final class Immutable<P> implements Transaction<Shard<P>>, ImmutableTransaction {
+
+		private static final long serialVersionUID = 2L;
+
+		private final Transaction<? super P> _delegate;
+
+		Immutable(Transaction<? super P> delegate) {
+			_delegate = delegate;
+		}
+
+		public void executeOn(Shard<P> shard, Date executionTime) {
+			_delegate.executeOn(shard.system(), executionTime);
+		}
+
+	}
+
+}
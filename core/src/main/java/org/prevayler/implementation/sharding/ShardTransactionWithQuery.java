@@ -0,0 +1,49 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.util.Date;
+
+import org.prevayler.ImmutableTransaction;
+import org.prevayler.TransactionWithQuery;
+
+final class ShardTransactionWithQuery<P,R> implements TransactionWithQuery<Shard<P>,R> {
+
+	private static final long serialVersionUID = 6392071834529910271L;
+
+	private final TransactionWithQuery<? super P,R> _delegate;
+
+	static <P,R> TransactionWithQuery<Shard<P>,R> wrap(TransactionWithQuery<? super P,R> delegate) {
+		return delegate instanceof ImmutableTransaction ? new Immutable<P,R>(delegate) : new ShardTransactionWithQuery<P,R>(delegate);
+	}
+
+	private ShardTransactionWithQuery(TransactionWithQuery<? super P,R> delegate) {
+		_delegate = delegate;
+	}
+
+	public R executeAndQuery(Shard<P> shard, Date executionTime) throws Exception {
+		return _delegate.executeAndQuery(shard.system(), executionTime);
+	}
+
+
+	/** Keeps the ImmutableTransaction fast path when the wrapped transaction is immutable. Final with a final field, so it is exactly as immutable as the transaction it wraps.
+	 */
+	static private final class Immutable<P,R> implements TransactionWithQuery<Shard<P>,R>, ImmutableTransaction {
+
+		private static final long serialVersionUID = 2L;
+
+		private final TransactionWithQuery<? super P,R> _delegate;
+
+		Immutable(TransactionWithQuery<? super P,R> delegate) {
+			_delegate = delegate;
+		}
+
+		public R executeAndQuery(Shard<P> shard, Date executionTime) throws Exception {
+			return _delegate.executeAndQuery(shard.system(), executionTime);
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.prevayler.Prevayler;
+import org.prevayler.Query;
+import org.prevayler.SureTransactionWithQuery;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+
+/** Partitions an application's state across N independent Prevaylers, each with its own journal, PrevalentSystemGuard and transaction pipeline. Transactions that go to different shards are journaled and executed fully in parallel and each shard can take its snapshots independently.
+ * <br>
+ * <br>Each Transaction, TransactionWithQuery and Query is routed to exactly one shard by the ShardKeyFunction. The rare transactions that must change more than one shard are executed as CrossShardTransactions via {@link #execute(CrossShardTransaction, int[])}.
+ * @param <P> The type of the Prevalent System of each shard.
+ * @see org.prevayler.PrevaylerFactory#createShardedPrevayler(int, ShardKeyFunction)
+ */
+public class ShardedPrevayler<P> {
+
+	private final Prevayler<Shard<P>>[] _shards;
+	private final ShardKeyFunction _keyFunction;
+
+	private final Object _crossShardMonitor = new Object();
+	private long _lastGlobalSequence;
+
+	public ShardedPrevayler(Prevayler<Shard<P>>[] shards, ShardKeyFunction keyFunction) {
+		if (shards.length == 0) throw new IllegalArgumentException("There must be at least one shard.");
+		_shards = shards;
+		_keyFunction = keyFunction;
+		for (int i = 0; i < _shards.length; i++) {
+			Shard<P> shard = _shards[i].prevalentSystem();
+			synchronized (shard) {
+				_lastGlobalSequence = Math.max(_lastGlobalSequence, shard.lastGlobalSequence());
+			}
+		}
+	}
+
+	public int numberOfShards() {
+		return _shards.length;
+	}
+
+	/** Returns the index of the shard to which transactionOrQuery will be routed.
+	 */
+	public int shardFor(Object transactionOrQuery) {
+		Object key = _keyFunction.keyFor(transactionOrQuery);
+		if (key == null) throw new IllegalArgumentException("The ShardKeyFunction returned a null key for " + transactionOrQuery);
+		return (key.hashCode() & Integer.MAX_VALUE) % _shards.length;
+	}
+
+	/** Returns the Prevayler that persists the given shard.
+	 */
+	public Prevayler<Shard<P>> shard(int shard) {
+		return _shards[shard];
+	}
+
+	/** Returns the Prevalent System of the given shard.
+	 */
+	public P prevalentSystem(int shard) {
+		return _shards[shard].prevalentSystem().system();
+	}
+
+	/** Executes the given Transaction on the shard chosen by the ShardKeyFunction.
+	 * @see Prevayler#execute(Transaction)
+	 */
+	public void execute(Transaction<? super P> transaction) {
+		shardPrevayler(transaction).execute(ShardTransaction.<P>wrap(transaction));
+	}
+
+	/** Executes the given Query on the shard chosen by the ShardKeyFunction.
+	 * @see Prevayler#execute(Query)
+	 */
+	public <R> R execute(Query<? super P,R> sensitiveQuery) throws Exception {
+		return shardPrevayler(sensitiveQuery).execute(new ShardQuery<P,R>(sensitiveQuery));
+	}
+
+	/** Executes the given TransactionWithQuery on the shard chosen by the ShardKeyFunction.
+	 * @see Prevayler#execute(TransactionWithQuery)
+	 */
+	public <R> R execute(TransactionWithQuery<? super P,R> transactionWithQuery) throws Exception {
+		return shardPrevayler(transactionWithQuery).execute(ShardTransactionWithQuery.<P,R>wrap(transactionWithQuery));
+	}
+
+	/** The same as execute(TransactionWithQuery) except no Exception is thrown.
+	 * @see Prevayler#execute(SureTransactionWithQuery)
+	 */
+	public <R> R execute(SureTransactionWithQuery<? super P,R> sureTransactionWithQuery) {
+		try {
+			return execute((TransactionWithQuery<? super P,R>) sureTransactionWithQuery);
+		} catch (RuntimeException runtime) {
+			throw runtime;
+		} catch (Exception checked) {
+			throw new RuntimeException("Unexpected Exception thrown.", checked);
+		}
+	}
+
+	/** Executes a transaction that must change more than one shard. The transaction is journaled and executed by each of the given shards, in ascending shard order, under a global sequence number that is greater than that of any CrossShardTransaction executed before it. CrossShardTransactions are executed one at a time; ordinary transactions keep executing on all shards meanwhile.
+	 * <br>
+	 * <br>This is NOT an atomic commit: each shard journals its own part, so a crash in the middle of this method may leave the lower shards changed and the higher ones not. Transactions that need all-or-nothing semantics across shards must be designed to tolerate or detect that, by using the returned global sequence, for example.
+	 * @param shards The indexes of the shards involved. Duplicates are ignored.
+	 * @return The global sequence number under which the transaction was executed.
+	 */
+	public long execute(CrossShardTransaction<? super P> transaction, int[] shards) {
+		int[] ordered = ordered(shards);
+		synchronized (_crossShardMonitor) {
+			long sequence = ++_lastGlobalSequence;
+			for (int i = 0; i < ordered.length; i++) {
+				if (i > 0 && ordered[i] == ordered[i - 1]) continue;
+				_shards[ordered[i]].execute(new CrossShardPart<P>(transaction, ordered[i], sequence));
+			}
+			return sequence;
+		}
+	}
+
+	/** Returns the global sequence number of the last CrossShardTransaction executed or recovered.
+	 */
+	public long lastGlobalSequence() {
+		synchronized (_crossShardMonitor) {
+			return _lastGlobalSequence;
+		}
+	}
+
+	/** Produces a snapshot of a single shard.
+	 * @see Prevayler#takeSnapshot()
+	 */
+	public File takeSnapshot(int shard) throws Exception {
+		return _shards[shard].takeSnapshot();
+	}
+
+	/** Produces a snapshot of every shard, one shard at a time.
+	 * @return The snapshot files written, indexed by shard.
+	 */
+	public File[] takeSnapshots() throws Exception {
+		File[] result = new File[_shards.length];
+		for (int i = 0; i < _shards.length; i++) result[i] = takeSnapshot(i);
+		return result;
+	}
+
+	/** Closes all shards. Every shard is closed even if closing one of them fails; the first IOException encountered is then rethrown.
+	 */
+	public void close() throws IOException {
+		IOException exception = null;
+		for (int i = 0; i < _shards.length; i++) {
+			try {
+				_shards[i].close();
+			} catch (IOException e) {
+				if (exception == null) exception = e;
+			}
+		}
+		if (exception != null) throw exception;
+	}
+
+	private Prevayler<Shard<P>> shardPrevayler(Object transactionOrQuery) {
+		return _shards[shardFor(transactionOrQuery)];
+	}
+
+	private int[] ordered(int[] shards) {
+		if (shards.length == 0) throw new IllegalArgumentException("A CrossShardTransaction must involve at least one shard.");
+		int[] result = (int[]) shards.clone();
+		Arrays.sort(result);
+		if (result[0] < 0 || result[result.length - 1] >= _shards.length) throw new IllegalArgumentException("Shard index out of range: " + Arrays.toString(shards));
+		return result;
+	}
+
+}
@@ -0,0 +1,167 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.publishing.AsynchronousTransactionSubscriber;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Takes snapshots of a Prevayler on a background thread whenever its SnapshotPolicy says they are due. It is subscribed to the Prevayler's TransactionPublisher to count the transactions, and their serialized bytes, journaled since the last snapshot. It is told of every snapshot written, including those taken by calling Prevayler.takeSnapshot() directly, so that they too restart the count.
+ * <br>
+ * <br>The policy is checked on every transaction and once a minute, so that snapshots deferred by a quiet window are taken when the window ends. Only one snapshot is taken at a time. After a failure, the next attempt waits for at least a minute.
+ */
+public class AutomaticSnapshots implements AsynchronousTransactionSubscriber, Closeable {
+
+	private static final long CHECK_INTERVAL_MILLIS = 60 * 1000;
+
+	private final Prevayler _prevayler;
+	private final SnapshotPolicy _policy;
+	private final SnapshotListener _listener;
+	private final ScheduledExecutorService _executor;
+
+	private final AtomicLong _lastVersion;
+	private final AtomicLong _snapshotVersion;
+	private final AtomicLong _journalBytes = new AtomicLong();
+	private final AtomicBoolean _running = new AtomicBoolean(false);
+	private volatile long _retryAfter = 0;
+
+
+	/**
+	 * @param lastSnapshotVersion The version of the latest snapshot already taken. The caller must subscribe this object to the Prevayler's TransactionPublisher from the next transaction on.
+	 * @param listener May be null.
+	 */
+	public AutomaticSnapshots(Prevayler prevayler, SnapshotPolicy policy, SnapshotListener listener, long lastSnapshotVersion) {
+		this(prevayler, policy, listener, lastSnapshotVersion, lastSnapshotVersion, 0);
+	}
+
+	/** Starts off with the transactions already journaled since the latest snapshot counted, so that the caller can subscribe this object to the Prevayler's TransactionPublisher from the transaction after systemVersion on, instead of replaying the journal just to count them.
+	 * @param systemVersion The version of the prevalent system now.
+	 * @param journalBytes The bytes journaled since the latest snapshot, or an estimate.
+	 */
+	public AutomaticSnapshots(Prevayler prevayler, SnapshotPolicy policy, SnapshotListener listener, long lastSnapshotVersion, long systemVersion, long journalBytes) {
+		_prevayler = prevayler;
+		_policy = policy;
+		_listener = listener;
+		_lastVersion = new AtomicLong(systemVersion);
+		_snapshotVersion = new AtomicLong(lastSnapshotVersion);
+		_journalBytes.set(journalBytes);
+
+		_executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Prevayler automatic snapshots");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		_executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				checkPolicy();
+			}
+		}, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	public void receive(TransactionTimestamp transactionTimestamp) {
+		long version = transactionTimestamp.systemVersion();
+		_lastVersion.set(version);
+		if (version > _snapshotVersion.get()) _journalBytes.addAndGet(transactionTimestamp.capsule().serialized().length);  // Not if a snapshot already includes it.
+		checkPolicy();
+	}
+
+
+	/** Called whenever a snapshot has been written, by this object or not. Restarts the counts from its version, unless a later snapshot has already been written.
+	 */
+	void snapshotWritten(File snapshot) {
+		long version = PrevaylerDirectory.snapshotVersion(snapshot);
+		while (true) {
+			long current = _snapshotVersion.get();
+			if (version <= current) return;
+			if (_snapshotVersion.compareAndSet(current, version)) break;
+		}
+		_journalBytes.set(0);  // Bytes of transactions received after the snapshot's version, if any, are not counted.
+	}
+
+
+	private void checkPolicy() {
+		if (!_policy.isDue(transactionsSinceSnapshot(), _journalBytes.get())) return;
+		if (System.currentTimeMillis() < _retryAfter) return;
+		if (_policy.isQuiet(new Date(System.currentTimeMillis()))) return;  // The wall clock, not the prevalent clock, which may be broken or paused.
+		if (!_running.compareAndSet(false, true)) return;
+
+		try {
+			_executor.execute(new Runnable() {
+				public void run() {
+					takeSnapshot();
+				}
+			});
+		} catch (RejectedExecutionException closed) {
+			_running.set(false);
+		}
+	}
+
+
+	private long transactionsSinceSnapshot() {
+		return Math.max(0, _lastVersion.get() - _snapshotVersion.get());  // A snapshot can be written before every transaction it includes has been received.
+	}
+
+
+	private void takeSnapshot() {
+		boolean taken = false;
+		try {
+			long previousVersion = _snapshotVersion.get();
+			long start = System.currentTimeMillis();
+			File snapshot = _prevayler.takeSnapshot();  // Calls snapshotWritten().
+			long duration = System.currentTimeMillis() - start;
+
+			long transactions = PrevaylerDirectory.snapshotVersion(snapshot) - previousVersion;
+			taken = true;
+			if (_listener != null) _listener.snapshotTaken(snapshot, transactions, duration, sizeOf(snapshot));
+		} catch (Exception exception) {
+			_retryAfter = System.currentTimeMillis() + CHECK_INTERVAL_MILLIS;
+			if (_listener != null) _listener.snapshotFailed(exception);
+		} finally {
+			_running.set(false);
+		}
+		if (taken) checkPolicy();  // Enough transactions may have arrived while the snapshot was being taken.
+	}
+
+
+	private static long sizeOf(File snapshot) {
+		long result = snapshot.length();
+		for (Iterator it = PrevaylerDirectory.snapshotSegmentFiles(snapshot).iterator(); it.hasNext();) {
+			result += ((File) it.next()).length();
+		}
+		return result;
+	}
+
+
+	/** Stops checking the policy, waiting for a snapshot being taken, if any.
+	 */
+	public void close() throws IOException {
+		_executor.shutdown();  // Also cancels the periodic policy checks.
+		try {
+			while (!_executor.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a snapshot to be taken.");
+		}
+	}
+
+}
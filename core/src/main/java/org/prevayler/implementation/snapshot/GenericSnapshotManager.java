@@ -1,15 +1,13 @@
 package org.prevayler.implementation.snapshot;
 
+import org.prevayler.SnapshotPartitioner;
 import org.prevayler.foundation.serialization.JavaSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.implementation.PrevalentSystemGuard;
 import org.prevayler.implementation.PrevaylerDirectory;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
@@ -20,6 +18,8 @@ public class GenericSnapshotManager<P>{
 	private String _primarySuffix;
 	private PrevaylerDirectory _directory;
 	private PrevalentSystemGuard<P> _recoveredPrevalentSystem;
+	private volatile SnapshotRetention _retention;
+	private volatile AutomaticSnapshots _automaticSnapshots;
 
 	public GenericSnapshotManager(Map snapshotSerializers, String primarySnapshotSuffix, P newPrevalentSystem, PrevaylerDirectory directory, Serializer journalSerializer)
 			throws Exception {
@@ -54,6 +54,19 @@ public class GenericSnapshotManager<P>{
 	}
 
 
+	/** Sets the SnapshotRetention to be notified of every snapshot written from now on.
+	 */
+	public void retention(SnapshotRetention retention) {
+		_retention = retention;
+	}
+
+	/** Sets the AutomaticSnapshots to be notified of every snapshot written from now on, so that snapshots taken on demand also restart its counts.
+	 */
+	public void automaticSnapshots(AutomaticSnapshots automaticSnapshots) {
+		_automaticSnapshots = automaticSnapshots;
+	}
+
+
 	public Serializer primarySerializer() {
 		return (Serializer) _strategies.get(_primarySuffix);
 	}
@@ -62,28 +75,41 @@ public class GenericSnapshotManager<P>{
 		return _recoveredPrevalentSystem;
 	}
 
+	/** Reads the latest snapshot in the prevalence directory, which may be more recent than the one recovered when this manager was created. Returns null if there is no snapshot.
+	 */
+	public PrevalentSystemGuard<P> readLatestSnapshot(Serializer journalSerializer) throws Exception {
+		File latestSnapshot = _directory.latestSnapshot();
+		if (latestSnapshot == null) return null;
+		return new PrevalentSystemGuard<P>(readSnapshot(latestSnapshot), PrevaylerDirectory.snapshotVersion(latestSnapshot), journalSerializer);
+	}
+
+	/** Returns zero if there is no snapshot in the prevalence directory.
+	 */
+	public long latestSnapshotVersion() throws IOException {
+		File latestSnapshot = _directory.latestSnapshot();
+		return latestSnapshot == null ? 0 : PrevaylerDirectory.snapshotVersion(latestSnapshot);
+	}
+
 	public File writeSnapshot(P prevalentSystem, long version) throws Exception {
 		File tempFile = _directory.createTempFile("snapshot" + version + "temp", "generatingSnapshot");
+		File permanent = snapshotFile(version);
 
-		writeSnapshot(prevalentSystem, tempFile);
+		Object manifest = prevalentSystem instanceof SnapshotPartitioner
+			? PartitionedSnapshot.writeSegments((SnapshotPartitioner) prevalentSystem, permanent, _directory, primarySerializer())  // The segments are useless until the manifest is renamed below.
+			: prevalentSystem;
+		SnapshotContainer.write(tempFile, version, primarySerializer(), manifest);
 
-		File permanent = snapshotFile(version);
 		permanent.delete();
 		if (!tempFile.renameTo(permanent)) throw new IOException(
 				"Temporary snapshot file generated: " + tempFile + "\nUnable to rename it permanently to: " + permanent);
 
+		AutomaticSnapshots automaticSnapshots = _automaticSnapshots;
+		if (automaticSnapshots != null) automaticSnapshots.snapshotWritten(permanent);
+		SnapshotRetention retention = _retention;
+		if (retention != null) retention.snapshotWritten(permanent);
 	    return permanent;
 	}
 
-	private void writeSnapshot(P prevalentSystem, File snapshotFile) throws Exception {
-		OutputStream out = new FileOutputStream(snapshotFile);
-		try {
-			primarySerializer().writeObject(out, prevalentSystem);
-		} finally {
-			out.close();
-		}
-	}
-
 
 	private File snapshotFile(long version) {
 		return _directory.snapshotFile(version, _primarySuffix);
@@ -95,12 +121,9 @@ public class GenericSnapshotManager<P>{
 				snapshotFile.toString() + " cannot be read; only " + _strategies.keySet().toString() + " supported");
 
 		Serializer serializer = (Serializer) _strategies.get(suffix);
-		FileInputStream in = new FileInputStream(snapshotFile);
-		try {
-			return (P)(serializer.readObject(in));
-		} finally {
-			in.close();
-		}
+		Object manifest = SnapshotContainer.read(snapshotFile, serializer);
+		if (manifest instanceof PartitionedSnapshot) return (P) ((PartitionedSnapshot) manifest).restore(snapshotFile, serializer);
+		return (P) manifest;
 	}
 
 }
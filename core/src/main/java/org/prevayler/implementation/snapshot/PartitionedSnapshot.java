@@ -0,0 +1,125 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.SnapshotPartitioner;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** The manifest written to the snapshot file of a prevalent system that is a SnapshotPartitioner. Its segments are in the segment files beside the snapshot file.
+ */
+class PartitionedSnapshot implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final ExecutorService SEGMENT_THREADS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "Prevayler snapshot segment");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final Class _systemClass;
+	private final int _segmentCount;
+
+
+	private PartitionedSnapshot(Class systemClass, int segmentCount) {
+		_systemClass = systemClass;
+		_segmentCount = segmentCount;
+	}
+
+
+	/** Writes the segments of the system to the segment files of snapshotFile, in parallel, and returns the manifest to be written to snapshotFile itself.
+	 */
+	static PartitionedSnapshot writeSegments(SnapshotPartitioner system, File snapshotFile, PrevaylerDirectory directory, final Serializer serializer) throws Exception {
+		final Object[] segments = system.snapshotSegments();
+		final long version = PrevaylerDirectory.snapshotVersion(snapshotFile);
+
+		List tasks = new ArrayList(segments.length);
+		for (int i = 0; i < segments.length; i++) {
+			final Object segment = segments[i];
+			final File tempFile = directory.createTempFile("segment" + i + "temp", "generatingSnapshot");
+			final File permanent = PrevaylerDirectory.snapshotSegmentFile(snapshotFile, i);
+			tasks.add(new Callable() {
+				public Object call() throws Exception {
+					SnapshotContainer.write(tempFile, version, serializer, segment);
+					permanent.delete();
+					if (!tempFile.renameTo(permanent)) throw new IOException(
+							"Temporary snapshot segment file generated: " + tempFile + "\nUnable to rename it permanently to: " + permanent);
+					return null;
+				}
+			});
+		}
+		runInParallel(tasks);
+
+		return new PartitionedSnapshot(system.getClass(), segments.length);
+	}
+
+
+	/** Reads the segment files of snapshotFile, in parallel, and restores them into a new instance of the prevalent system's class.
+	 */
+	Object restore(File snapshotFile, final Serializer serializer) throws Exception {
+		List tasks = new ArrayList(_segmentCount);
+		for (int i = 0; i < _segmentCount; i++) {
+			final File segmentFile = PrevaylerDirectory.snapshotSegmentFile(snapshotFile, i);
+			tasks.add(new Callable() {
+				public Object call() throws Exception {
+					return SnapshotContainer.read(segmentFile, serializer);
+				}
+			});
+		}
+		Object[] segments = runInParallel(tasks);
+
+		SnapshotPartitioner system = newSystem();
+		system.restoreSnapshotSegments(segments);
+		return system;
+	}
+
+
+	private SnapshotPartitioner newSystem() throws Exception {
+		Constructor constructor;
+		try {
+			constructor = _systemClass.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IOException(_systemClass + " is a SnapshotPartitioner but has no no-argument constructor with which to restore it from its segments.");
+		}
+		constructor.setAccessible(true);
+		return (SnapshotPartitioner) constructor.newInstance();
+	}
+
+
+	private static Object[] runInParallel(List tasks) throws Exception {
+		Object[] results = new Object[tasks.size()];
+		if (tasks.isEmpty()) return results;
+
+		List futures = SEGMENT_THREADS.invokeAll(tasks);
+		for (int i = 0; i < results.length; i++) {
+			try {
+				results[i] = ((Future) futures.get(i)).get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof Exception) throw (Exception) cause;
+				if (cause instanceof Error) throw (Error) cause;
+				throw e;
+			}
+		}
+		return results;
+	}
+
+}
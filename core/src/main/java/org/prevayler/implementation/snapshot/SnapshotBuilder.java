@@ -0,0 +1,159 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.foundation.monitor.SimpleMonitor;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.PrevalentSystemGuard;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.journal.PersistentJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Builds snapshots out of band: keeps a shadow copy of the prevalent system, brings it up to date by replaying the journal files in the prevalence directory and writes a snapshot of it there. The live Prevayler is not touched at all, so this can run on a low-priority background thread (see start()) or in a separate JVM (see main()).
+ * <br>
+ * <br>The shadow starts from the snapshot recovered by the given GenericSnapshotManager and is kept between builds, so each build only replays the transactions journaled since the previous one. If a newer snapshot appears in the directory, the shadow is reloaded from it instead.
+ */
+public class SnapshotBuilder<P> {
+
+	private final GenericSnapshotManager<P> _snapshotManager;
+	private final PersistentJournal _journal;
+	private final Serializer _journalSerializer;
+
+	private PrevalentSystemGuard<P> _shadow; // Guarded by _buildLock. Null after an Error, until reloaded.
+	private final Lock _buildLock = new ReentrantLock();
+
+	private Thread _thread;
+	private volatile Exception _lastFailure;
+
+
+	/**
+	 * @param journal Only used to replay the journal files. It must not be the journal of a running Prevayler.
+	 */
+	public SnapshotBuilder(GenericSnapshotManager<P> snapshotManager, PersistentJournal journal, Serializer journalSerializer) {
+		_snapshotManager = snapshotManager;
+		_journal = journal;
+		_journalSerializer = journalSerializer;
+		_shadow = shadow(snapshotManager.recoveredPrevalentSystem());
+	}
+
+
+	/** Replays the transactions journaled since the last build and writes a snapshot of the result.
+	 * @return The snapshot file written, or null if there were no new transactions.
+	 */
+	public File build() throws Exception {
+		_buildLock.lock();
+		try {
+			if (_shadow == null || _snapshotManager.latestSnapshotVersion() > _shadow.systemVersion()) reloadShadow();
+
+			long version = _shadow.systemVersion();
+			try {
+				_journal.replay(_shadow, version + 1);
+			} catch (Error error) {
+				_shadow = null;
+				throw error;
+			}
+			if (_shadow.systemVersion() == version) return null;
+
+			return _shadow.takeSnapshot(_snapshotManager);
+		} finally {
+			_buildLock.unlock();
+		}
+	}
+
+
+	private void reloadShadow() throws Exception {
+		PrevalentSystemGuard<P> latest = _snapshotManager.readLatestSnapshot(_journalSerializer);
+		if (latest == null) throw new IOException("There is no snapshot from which to rebuild the shadow prevalent system.");
+		_shadow = shadow(latest);
+	}
+
+
+	private PrevalentSystemGuard<P> shadow(PrevalentSystemGuard<P> guard) {
+		guard.ignoreRuntimeExceptions();  // As during recovery: they were already thrown when the transactions were first executed.
+		return guard;
+	}
+
+
+	/** Starts a daemon thread, with minimum priority, that calls build() every intervalMillis until stop() is called.
+	 */
+	public synchronized void start(final long intervalMillis) {
+		if (_thread != null) throw new IllegalStateException("Already started.");
+		_thread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(intervalMillis);
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						build();
+					} catch (Exception e) {
+						_lastFailure = e;
+					}
+				}
+			}
+		}, "Prevayler snapshot builder");
+		_thread.setDaemon(true);
+		_thread.setPriority(Thread.MIN_PRIORITY);
+		_thread.start();
+	}
+
+
+	/** Stops the thread started by start(), waiting for any build in progress to finish.
+	 */
+	public synchronized void stop() throws InterruptedException {
+		if (_thread == null) return;
+		_thread.interrupt();
+		_thread.join();
+		_thread = null;
+	}
+
+
+	/** The Exception thrown by the most recent failed background build, if any.
+	 */
+	public Exception lastFailure() {
+		return _lastFailure;
+	}
+
+
+	/** Builds snapshots for a prevalence directory written with the default Java serialization and file suffixes. There must already be a snapshot in the directory from which to start.
+	 * <br>
+	 * <br>Usage: java org.prevayler.implementation.snapshot.SnapshotBuilder prevalenceDirectory [intervalSeconds]
+	 * <br>Without an interval, a single snapshot is built.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java " + SnapshotBuilder.class.getName() + " prevalenceDirectory [intervalSeconds]");
+			System.exit(1);
+		}
+
+		PrevaylerDirectory directory = new PrevaylerDirectory(args[0]);
+		if (directory.latestSnapshot() == null) {
+			System.err.println("There is no snapshot in " + args[0] + " from which to start.");
+			System.exit(1);
+		}
+
+		JavaSerializer serializer = new JavaSerializer();
+		GenericSnapshotManager<Object> snapshotManager = new GenericSnapshotManager<Object>(Collections.singletonMap("snapshot", serializer), "snapshot", null, directory, serializer);
+		PersistentJournal journal = new PersistentJournal(directory, 0, 0, false, "journal", new SimpleMonitor());
+		SnapshotBuilder<Object> builder = new SnapshotBuilder<Object>(snapshotManager, journal, serializer);
+
+		Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+		while (true) {
+			File snapshot = builder.build();
+			System.out.println(snapshot == null ? "No new transactions." : "Snapshot written: " + snapshot);
+			if (args.length == 1) return;
+			Thread.sleep(Long.parseLong(args[1]) * 1000);
+		}
+	}
+
+}
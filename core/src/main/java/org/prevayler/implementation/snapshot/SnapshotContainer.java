@@ -0,0 +1,299 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.foundation.serialization.Serializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/** The format of snapshot files: a header followed by the serialized prevalent system. The header holds the snapshot version, the class name of the Serializer used, the size of the serialized payload and its CRC32, so a snapshot can be verified without being deserialized. Reading a snapshot with a Serializer of another class fails with an IOException naming both, instead of with whatever the Serializer makes of the payload. The class name cannot tell apart configurations of the same class, such as XStreamSerializer's formats, which are kept apart by their file suffixes instead.
+ * <br>
+ * <br>Files are written and read through FileChannels with large buffers. Files without the header, written by earlier Prevayler versions, are still read as a bare serialized payload.
+ * <br>
+ * <br>Header layout: 8 magic bytes, format version (int), snapshot version (long), payload size (long), payload CRC32 (long), Serializer class name (modified UTF-8, as in DataOutput.writeUTF).
+ */
+public class SnapshotContainer {
+
+	private static final byte[] MAGIC = { 'P', 'R', 'V', 'L', 'S', 'N', 'A', 'P' };
+	private static final int FORMAT_VERSION = 1;
+	private static final int SIZE_AND_CRC_POSITION = MAGIC.length + 4 + 8;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final long _snapshotVersion;
+	private final String _serializerName;
+	private final long _size;
+	private final long _crc;
+
+
+	private SnapshotContainer(long snapshotVersion, String serializerName, long size, long crc) {
+		_snapshotVersion = snapshotVersion;
+		_serializerName = serializerName;
+		_size = size;
+		_crc = crc;
+	}
+
+
+	public long snapshotVersion() {
+		return _snapshotVersion;
+	}
+
+	/** The class name of the Serializer that wrote the snapshot. */
+	public String serializerName() {
+		return _serializerName;
+	}
+
+	/** The size of the serialized payload, in bytes. */
+	public long size() {
+		return _size;
+	}
+
+	public long crc() {
+		return _crc;
+	}
+
+
+	/** Serializes the object to the file, preceded by a header. The payload size and CRC in the header are filled in once the payload has been written.
+	 */
+	public static void write(File file, long snapshotVersion, Serializer serializer, Object object) throws Exception {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			randomAccessFile.setLength(0);
+			FileChannel channel = randomAccessFile.getChannel();
+			ByteBuffer header = header(snapshotVersion, serializer);
+			writeFully(channel, header, 0);
+			channel.position(header.limit());
+
+			CheckedOutput payload = new CheckedOutput(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+			serializer.writeObject(payload, object);
+			payload.flush();
+
+			ByteBuffer sizeAndCrc = ByteBuffer.allocate(16);
+			sizeAndCrc.putLong(payload._count).putLong(payload._crc.getValue());
+			sizeAndCrc.flip();
+			writeFully(channel, sizeAndCrc, SIZE_AND_CRC_POSITION);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+
+	/** Deserializes the payload of the file, checking its size and CRC, or the whole file if it has no header.
+	 * @throws IOException If the payload does not match the size or CRC in the header.
+	 */
+	public static Object read(File file, Serializer serializer) throws Exception {
+		FileInputStream fileStream = new FileInputStream(file);
+		try {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(fileStream.getChannel()), BUFFER_SIZE);
+			SnapshotContainer header = readHeader(in);
+			if (header == null) return serializer.readObject(in);  // A snapshot written before this format existed.
+			header.checkSerializer(file, serializer);
+
+			CheckedInput payload = new CheckedInput(in, header._size);
+			Object result = serializer.readObject(payload);
+			payload.skipToEnd();
+			header.check(file, payload);
+			return result;
+		} finally {
+			fileStream.close();
+		}
+	}
+
+
+	/** Checks the payload of the file against the size and CRC in its header, without deserializing it.
+	 * @return The header, or null if the file has no header and so cannot be verified.
+	 * @throws IOException If the payload does not match the header.
+	 */
+	public static SnapshotContainer verify(File file) throws IOException {
+		FileInputStream fileStream = new FileInputStream(file);
+		try {
+			InputStream in = new BufferedInputStream(Channels.newInputStream(fileStream.getChannel()), BUFFER_SIZE);
+			SnapshotContainer header = readHeader(in);
+			if (header == null) return null;
+
+			CheckedInput payload = new CheckedInput(in, header._size);
+			payload.skipToEnd();
+			header.check(file, payload);
+			return header;
+		} finally {
+			fileStream.close();
+		}
+	}
+
+
+	private void check(File file, CheckedInput payload) throws IOException {
+		if (payload._count != _size) throw new IOException(file + " is truncated: its payload has " + payload._count + " bytes instead of " + _size + ".");
+		if (payload._crc.getValue() != _crc) throw new IOException(file + " is corrupted: its payload CRC is " + payload._crc.getValue() + " instead of " + _crc + ".");
+	}
+
+
+	private void checkSerializer(File file, Serializer serializer) throws IOException {
+		String name = serializer.getClass().getName();
+		if (!_serializerName.equals(name)) throw new IOException(file + " was written by " + _serializerName + " and cannot be read by " + name + ".");
+	}
+
+
+	private static ByteBuffer header(long snapshotVersion, Serializer serializer) throws IOException {
+		ByteArrayOutputStream name = new ByteArrayOutputStream();
+		new DataOutputStream(name).writeUTF(serializer.getClass().getName());
+		ByteBuffer header = ByteBuffer.allocate(SIZE_AND_CRC_POSITION + 16 + name.size());
+		header.put(MAGIC).putInt(FORMAT_VERSION).putLong(snapshotVersion).putLong(0).putLong(0);
+		header.put(name.toByteArray());
+		header.flip();
+		return header;
+	}
+
+
+	/** Returns null, leaving the stream at its start, if it does not begin with the magic bytes. */
+	private static SnapshotContainer readHeader(InputStream in) throws IOException {
+		in.mark(MAGIC.length);
+		byte[] magic = new byte[MAGIC.length];
+		int read = 0;
+		while (read < magic.length) {
+			int count = in.read(magic, read, magic.length - read);
+			if (count == -1) break;
+			read += count;
+		}
+		if (read < magic.length || !Arrays.equals(magic, MAGIC)) {
+			in.reset();
+			return null;
+		}
+
+		DataInputStream data = new DataInputStream(in);
+		int formatVersion = data.readInt();
+		if (formatVersion != FORMAT_VERSION) throw new IOException("Unknown snapshot format version: " + formatVersion);
+		long snapshotVersion = data.readLong();
+		long size = data.readLong();
+		long crc = data.readLong();
+		String serializerName = data.readUTF();
+		return new SnapshotContainer(snapshotVersion, serializerName, size, crc);
+	}
+
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+	}
+
+
+	/** Verifies the snapshot files given as arguments.
+	 * <br>
+	 * <br>Usage: java org.prevayler.implementation.snapshot.SnapshotContainer snapshotFile...
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.err.println("Usage: java " + SnapshotContainer.class.getName() + " snapshotFile...");
+			System.exit(1);
+		}
+
+		boolean allOk = true;
+		for (int i = 0; i < args.length; i++) {
+			try {
+				SnapshotContainer header = verify(new File(args[i]));
+				if (header == null) System.out.println(args[i] + ": no header, cannot be verified.");
+				else System.out.println(args[i] + ": OK. Version " + header._snapshotVersion + ", " + header._size + " bytes serialized by " + header._serializerName + ".");
+			} catch (IOException e) {
+				allOk = false;
+				System.out.println(args[i] + ": " + e.getMessage());
+			}
+		}
+		if (!allOk) System.exit(2);
+	}
+
+
+	/** Keeps the Serializer from closing the FileChannel when it closes the stream it was given. */
+	static private class CheckedOutput extends FilterOutputStream {
+		final CRC32 _crc = new CRC32();
+		long _count;
+
+		CheckedOutput(OutputStream out) {
+			super(out);
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			_crc.update(b);
+			_count++;
+		}
+
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			_crc.update(bytes, offset, length);
+			_count += length;
+		}
+
+		public void close() throws IOException {
+			flush();
+		}
+	}
+
+
+	/** Reads at most the given number of bytes, which is where the payload ends, and never closes the underlying stream. */
+	static private class CheckedInput extends FilterInputStream {
+		final CRC32 _crc = new CRC32();
+		private final long _limit;
+		long _count;
+
+		CheckedInput(InputStream in, long limit) {
+			super(in);
+			_limit = limit;
+		}
+
+		public int read() throws IOException {
+			if (_count >= _limit) return -1;
+			int result = in.read();
+			if (result == -1) return -1;
+			_crc.update(result);
+			_count++;
+			return result;
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (_count >= _limit) return -1;
+			int count = in.read(bytes, offset, (int) Math.min(length, _limit - _count));
+			if (count == -1) return -1;
+			_crc.update(bytes, offset, count);
+			_count += count;
+			return count;
+		}
+
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			int count = read(buffer, 0, buffer.length);
+			return count == -1 ? 0 : count;
+		}
+
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), _limit - _count);
+		}
+
+		public boolean markSupported() {
+			return false;
+		}
+
+		void skipToEnd() throws IOException {
+			byte[] buffer = new byte[8192];
+			while (read(buffer, 0, buffer.length) != -1) {}
+		}
+
+		public void close() {}
+	}
+
+}
@@ -0,0 +1,23 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import java.io.File;
+
+/** Notified of every snapshot taken, or attempted, by AutomaticSnapshots. Called on the thread taking the snapshot.
+ */
+public interface SnapshotListener {
+
+	/**
+	 * @param snapshot The snapshot file written.
+	 * @param transactions The number of transactions journaled since the previous snapshot that triggered this one.
+	 * @param durationMillis How long it took to take the snapshot.
+	 * @param sizeInBytes The size of the snapshot file, plus its segment files if it was partitioned.
+	 */
+	void snapshotTaken(File snapshot, long transactions, long durationMillis, long sizeInBytes);
+
+	void snapshotFailed(Exception exception);
+
+}
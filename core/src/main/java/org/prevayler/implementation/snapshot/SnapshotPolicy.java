@@ -0,0 +1,68 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Decides when AutomaticSnapshots takes a snapshot: as soon as the number of transactions or the approximate number of journal bytes since the last snapshot crosses its threshold, unless it is inside one of the quiet windows, in which case the snapshot is deferred until the window is over. This keeps recovery time bounded however bursty the traffic is.
+ */
+public class SnapshotPolicy {
+
+	private final long _transactionThreshold;
+	private final long _journalBytesThreshold;
+	private final List _quietWindows = new CopyOnWriteArrayList(); // int[] {fromMinuteOfDay, toMinuteOfDay}
+
+
+	/**
+	 * @param transactionThreshold The number of transactions since the last snapshot that triggers a new one, or zero for no such threshold.
+	 * @param journalBytesThreshold The number of journaled bytes since the last snapshot that triggers a new one, or zero for no such threshold.
+	 */
+	public SnapshotPolicy(long transactionThreshold, long journalBytesThreshold) {
+		if (transactionThreshold < 0 || journalBytesThreshold < 0) throw new IllegalArgumentException("Thresholds cannot be negative.");
+		if (transactionThreshold == 0 && journalBytesThreshold == 0) throw new IllegalArgumentException("At least one threshold must be given.");
+		_transactionThreshold = transactionThreshold;
+		_journalBytesThreshold = journalBytesThreshold;
+	}
+
+
+	/** Adds a daily window, in the local time zone, during which no automatic snapshot is taken. A window may span midnight, such as 22:00 to 06:00.
+	 */
+	public SnapshotPolicy addQuietWindow(int fromHour, int fromMinute, int toHour, int toMinute) {
+		_quietWindows.add(new int[] { minuteOfDay(fromHour, fromMinute), minuteOfDay(toHour, toMinute) });
+		return this;
+	}
+
+
+	public boolean isDue(long transactionsSinceSnapshot, long journalBytesSinceSnapshot) {
+		if (_transactionThreshold != 0 && transactionsSinceSnapshot >= _transactionThreshold) return true;
+		return _journalBytesThreshold != 0 && journalBytesSinceSnapshot >= _journalBytesThreshold;
+	}
+
+
+	public boolean isQuiet(Date time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(time);
+		int minute = minuteOfDay(calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE));
+
+		for (int i = 0; i < _quietWindows.size(); i++) {
+			int[] window = (int[]) _quietWindows.get(i);
+			boolean inside = window[0] <= window[1]
+				? minute >= window[0] && minute < window[1]
+				: minute >= window[0] || minute < window[1];  // Spans midnight.
+			if (inside) return true;
+		}
+		return false;
+	}
+
+
+	private static int minuteOfDay(int hour, int minute) {
+		if (hour < 0 || hour > 23 || minute < 0 || minute > 59) throw new IllegalArgumentException("Invalid time of day: " + hour + ":" + minute);
+		return hour * 60 + minute;
+	}
+
+}
@@ -0,0 +1,206 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.foundation.FileManager;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/** Keeps the prevalence directory from growing forever: once a snapshot is written, the snapshot and journal files no longer needed to recover from the latest snapshots kept are compressed into an archive directory, or deleted if there is none.
+ * <br>
+ * <br>Files are pruned on a background thread with minimum priority, and the archive I/O can be limited to a number of bytes per second so that it does not compete with the journal's disk syncs. Only one prune runs at a time; snapshots written while one is running cause a single further prune.
+ * <br>
+ * <br>Journal files older than the oldest snapshot kept are pruned too, so replication clients and new subscribers can no longer catch up from before that snapshot.
+ * @see PrevaylerDirectory#obsoleteFiles(int)
+ */
+public class SnapshotRetention implements Closeable {
+
+	public static final long UNTHROTTLED = 0;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final PrevaylerDirectory _directory;
+	private final int _snapshotsToKeep;
+	private final File _archiveDirectory;
+	private final long _bytesPerSecond;
+	private final ExecutorService _executor;
+
+	private final AtomicBoolean _pruneScheduled = new AtomicBoolean(false);
+	private final AtomicLong _prunedFiles = new AtomicLong();
+	private volatile Exception _lastFailure;
+
+
+	/**
+	 * @param snapshotsToKeep The number of latest snapshots that can still be recovered from. At least one.
+	 * @param archiveDirectory Where obsolete files are compressed to, each as its name plus ".gz". If null, obsolete files are deleted.
+	 * @param bytesPerSecond The maximum rate at which obsolete files are read for archiving, or UNTHROTTLED.
+	 */
+	public SnapshotRetention(PrevaylerDirectory directory, int snapshotsToKeep, File archiveDirectory, long bytesPerSecond) {
+		if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept: " + snapshotsToKeep);
+		if (bytesPerSecond < 0) throw new IllegalArgumentException("bytesPerSecond cannot be negative: " + bytesPerSecond);
+		_directory = directory;
+		_snapshotsToKeep = snapshotsToKeep;
+		_archiveDirectory = archiveDirectory;
+		_bytesPerSecond = bytesPerSecond;
+
+		_executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Prevayler snapshot retention");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+
+	/** Called by GenericSnapshotManager once a snapshot file is in place. Schedules a prune on the background thread.
+	 */
+	public void snapshotWritten(File snapshot) {
+		schedulePrune();
+	}
+
+
+	/** Schedules a prune on the background thread, unless one is already waiting to run.
+	 */
+	public void schedulePrune() {
+		if (!_pruneScheduled.compareAndSet(false, true)) return;
+		try {
+			_executor.execute(new Runnable() {
+				public void run() {
+					_pruneScheduled.set(false);  // Before listing the files, so a snapshot written from here on is not missed.
+					try {
+						prune();
+					} catch (Exception e) {
+						_lastFailure = e;
+					}
+				}
+			});
+		} catch (RejectedExecutionException closed) {
+			_pruneScheduled.set(false);
+		}
+	}
+
+
+	/** Archives or deletes, on the calling thread, the files no longer needed to recover from the latest snapshots kept.
+	 * @return The number of files pruned.
+	 */
+	public synchronized int prune() throws IOException {
+		Throttle throttle = new Throttle(_bytesPerSecond);
+		int result = 0;
+		for (Iterator it = _directory.obsoleteFiles(_snapshotsToKeep).iterator(); it.hasNext();) {
+			File file = (File) it.next();
+			if (_archiveDirectory != null) archive(file, throttle);
+			if (!file.delete()) throw new IOException("Unable to delete " + file);
+			_prunedFiles.incrementAndGet();
+			result++;
+		}
+		return result;
+	}
+
+
+	private void archive(File file, Throttle throttle) throws IOException {
+		FileManager.produceDirectory(_archiveDirectory);
+		File archived = new File(_archiveDirectory, file.getName() + ".gz");
+		File tempFile = new File(_archiveDirectory, archived.getName() + ".tmp");
+
+		boolean archivedOk = false;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileOutputStream fileOut = new FileOutputStream(tempFile);
+			try {
+				GZIPOutputStream out = new GZIPOutputStream(fileOut, BUFFER_SIZE);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					throttle.pass(count);
+					out.write(buffer, 0, count);
+				}
+				out.finish();
+				out.flush();
+				fileOut.getFD().sync();  // The original is deleted next.
+			} finally {
+				fileOut.close();
+			}
+			archivedOk = true;
+		} finally {
+			in.close();
+			if (!archivedOk) tempFile.delete();
+		}
+
+		archived.delete();
+		if (!tempFile.renameTo(archived)) throw new IOException(
+				"Temporary archive file generated: " + tempFile + "\nUnable to rename it permanently to: " + archived);
+	}
+
+
+	/** The number of files archived or deleted so far.
+	 */
+	public long prunedFiles() {
+		return _prunedFiles.get();
+	}
+
+
+	/** The Exception thrown by the most recent failed background prune, if any.
+	 */
+	public Exception lastFailure() {
+		return _lastFailure;
+	}
+
+
+	/** Stops pruning. A file being archived is left in place, to be archived by the next prune after a restart.
+	 */
+	public void close() throws IOException {
+		_executor.shutdownNow();  // Interrupts a throttled archive instead of waiting for it.
+		try {
+			while (!_executor.awaitTermination(1, TimeUnit.SECONDS)) {}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the prune in progress to stop.");
+		}
+	}
+
+
+	/** Sleeps as needed to keep the average rate of bytes passed at or below the limit. */
+	static private class Throttle {
+		private final long _bytesPerSecond;
+		private final long _start = System.currentTimeMillis();
+		private long _bytes;
+
+		Throttle(long bytesPerSecond) {
+			_bytesPerSecond = bytesPerSecond;
+		}
+
+		void pass(int bytes) throws InterruptedIOException {
+			if (_bytesPerSecond == UNTHROTTLED) return;
+			_bytes += bytes;
+			long due = _bytes * 1000 / _bytesPerSecond;
+			long ahead = due - (System.currentTimeMillis() - _start);
+			if (ahead <= 0) return;
+			try {
+				Thread.sleep(ahead);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while archiving.");
+			}
+		}
+	}
+
+}
@@ -1,12 +1,22 @@
 package org.prevayler.foundation.serialization;
 
 import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.io.binary.BinaryStreamReader;
+import com.thoughtworks.xstream.io.binary.BinaryStreamWriter;
+import com.thoughtworks.xstream.io.xml.StaxDriver;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 
 /**
  * Writes and reads objects using XML. This serializer can be used for snapshots, journals or both.
@@ -25,29 +35,76 @@ import java.io.OutputStreamWriter;
  * not found in the classpath making the XPP3 library entirely optional... well, not quite.  See <a href="http://jira.codehaus.org/browse/XSTR-71">XSTR-71</a>.
  * The current decision in that issue forces XPP3 to be a required runtime dependency when using XStream unless one specifically configures another driver, such as
  * the DomDriver.</p>
+ *
+ * <p>For large snapshots, use the STREAMING_XML or BINARY format. Both refer to objects already written by a numeric id
+ * instead of by their XPath, which XStream would otherwise have to keep for every object in the graph, and neither
+ * indents its output. STREAMING_XML reads and writes through the StAX parser built into the JDK, without XPP3. BINARY
+ * writes XStream's binary token format, which is not XML at all but is much smaller and faster to read.</p>
  */
 public class XStreamSerializer implements Serializer {
 
+	/** Pretty-printed XML, with references to objects already written as XPaths. The default. */
+	public static final int XML = 0;
+
+	/** Unindented XML written and read through StAX, with references to objects already written as ids. */
+	public static final int STREAMING_XML = 1;
+
+	/** XStream's binary token format, with references to objects already written as ids. */
+	public static final int BINARY = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	private ThreadLocal _xstreams = new ThreadLocal() {
 		protected Object initialValue() {
-			return createXStream();
+			XStream result = createXStream();
+			if (_format != XML) result.setMode(XStream.ID_REFERENCES);
+			return result;
+		}
+	};
+
+	private ThreadLocal _staxDrivers = new ThreadLocal() {
+		protected Object initialValue() {
+			return new StaxDriver();
 		}
 	};
 
 	private String _encoding;
 
+	private final int _format;
+
 	/**
 	 * Use the default character encoding for XML serialization.
 	 */
 	public XStreamSerializer() {
-		_encoding = null;
+		this(null);
 	}
 
 	/**
 	 * Use the specified character encoding for XML serialization.
 	 */
 	public XStreamSerializer(String encoding) {
+		this(encoding, XML);
+	}
+
+	/**
+	 * Use the specified character encoding, or the default one if null, and format: XML, STREAMING_XML or BINARY. The encoding does not apply to the BINARY format.
+	 */
+	public XStreamSerializer(String encoding, int format) {
+		if (format != XML && format != STREAMING_XML && format != BINARY) throw new IllegalArgumentException("Unknown format: " + format);
 		_encoding = encoding;
+		_format = format;
+	}
+
+	/** XML, STREAMING_XML or BINARY. */
+	public int format() {
+		return _format;
+	}
+
+	/** The start of the suffix PrevaylerFactory gives journal and snapshot files in this format: "xstream" for XML, "xstreamstax" for STREAMING_XML and "xstreambinary" for BINARY. Files written in one format are thus never read as another. */
+	public String suffixPrefix() {
+		if (_format == STREAMING_XML) return "xstreamstax";
+		if (_format == BINARY) return "xstreambinary";
+		return "xstream";
 	}
 
 	private XStream getXStream() {
@@ -55,13 +112,33 @@ public class XStreamSerializer implements Serializer {
 	}
 
 	public void writeObject(OutputStream stream, Object object) throws IOException {
-		OutputStreamWriter writer = _encoding == null ? new OutputStreamWriter(stream) : new OutputStreamWriter(stream, _encoding);
-		getXStream().toXML(object, writer);
+		if (_format == BINARY) {
+			BufferedOutputStream buffer = new BufferedOutputStream(stream, BUFFER_SIZE);
+			marshal(object, new BinaryStreamWriter(buffer));
+			buffer.flush();
+			return;
+		}
+
+		Writer writer = new BufferedWriter(_encoding == null ? new OutputStreamWriter(stream) : new OutputStreamWriter(stream, _encoding), BUFFER_SIZE);
+		if (_format == STREAMING_XML) {
+			marshal(object, ((StaxDriver) _staxDrivers.get()).createWriter(writer));
+		} else {
+			getXStream().toXML(object, writer);
+		}
+		writer.flush();
+	}
+
+	private void marshal(Object object, HierarchicalStreamWriter writer) {
+		getXStream().marshal(object, writer);
 		writer.flush();
 	}
 
 	public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
-		return getXStream().fromXML(_encoding == null ? new InputStreamReader(stream) : new InputStreamReader(stream, _encoding));
+		if (_format == BINARY) return getXStream().unmarshal(new BinaryStreamReader(new BufferedInputStream(stream, BUFFER_SIZE)));
+
+		Reader reader = new BufferedReader(_encoding == null ? new InputStreamReader(stream) : new InputStreamReader(stream, _encoding), BUFFER_SIZE);
+		if (_format == STREAMING_XML) return getXStream().unmarshal(((StaxDriver) _staxDrivers.get()).createReader(reader));
+		return getXStream().fromXML(reader);
 	}
 
 	/**
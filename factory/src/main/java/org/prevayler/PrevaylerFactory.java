@@ -5,14 +5,20 @@
 
 package org.prevayler;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
+import org.prevayler.foundation.DeepCopier;
 import org.prevayler.foundation.monitor.Monitor;
 import org.prevayler.foundation.monitor.SimpleMonitor;
 import org.prevayler.foundation.network.OldNetworkImpl;
+import org.prevayler.foundation.serialization.ClassDescriptorDictionary;
+import org.prevayler.foundation.serialization.CompactSerializer;
+import org.prevayler.foundation.serialization.DictionaryJavaSerializer;
 import org.prevayler.foundation.serialization.JavaSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.foundation.serialization.XStreamSerializer;
@@ -22,12 +28,22 @@ import org.prevayler.implementation.clock.MachineClock;
 import org.prevayler.implementation.journal.Journal;
 import org.prevayler.implementation.journal.PersistentJournal;
 import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.AdmissionControl;
 import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.SingleWriterPublisher;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.replication.ClientPublisher;
 import org.prevayler.implementation.replication.ServerListener;
+import org.prevayler.implementation.sharding.Shard;
+import org.prevayler.implementation.sharding.ShardKeyFunction;
+import org.prevayler.implementation.sharding.ShardedPrevayler;
+import org.prevayler.implementation.snapshot.AutomaticSnapshots;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 import org.prevayler.implementation.snapshot.NullSnapshotManager;
+import org.prevayler.implementation.snapshot.SnapshotBuilder;
+import org.prevayler.implementation.snapshot.SnapshotListener;
+import org.prevayler.implementation.snapshot.SnapshotPolicy;
+import org.prevayler.implementation.snapshot.SnapshotRetention;
 
 /** Provides easy access to all Prevayler configurations and implementations available in this distribution. Static methods are also provided as short-cuts for the most common configurations. 
  * <br>
@@ -45,12 +61,26 @@ public class PrevaylerFactory<P>{
 	private boolean _transactionDeepCopyMode = true;
 
 	private boolean _transientMode;
+	private boolean _inMemoryMode;
 	private String _prevalenceDirectory;
-	private NullSnapshotManager<P> _nullSnapshotManager;
+	private String _snapshotAttemptErrorMessage;  // Set if the created Prevaylers are unable to take snapshots.
 
 	private long _journalSizeThreshold;
 	private long _journalAgeThreshold;
     private boolean _journalDiskSync = true;
+	private boolean _singleWriter;
+	private boolean _earlyLockRelease;
+	private boolean _nonBlockingSnapshots;
+	private SnapshotPolicy _snapshotPolicy;
+	private SnapshotListener _snapshotListener;
+	private int _snapshotsToKeep;
+	private String _snapshotArchiveDirectory;
+	private long _snapshotArchiveBytesPerSecond = SnapshotRetention.UNTHROTTLED;
+
+	private int _maxTransactionsInFlight = AdmissionControl.UNLIMITED;
+	private long _maxAdmissionWaitMillis;
+	private double _maxTransactionsPerSecond = AdmissionControl.UNLIMITED;
+	private int _transactionBurst;
 	
 	private int _serverPort = -1;
 	private String _remoteServerIpAddress;
@@ -127,7 +157,7 @@ public class PrevaylerFactory<P>{
 	public static <P> Prevayler<P> createTransientPrevayler(P newPrevalentSystem) {
 		PrevaylerFactory<P> factory = new PrevaylerFactory<P>();
 		factory.configurePrevalentSystem(newPrevalentSystem);
-		factory.configureNullSnapshotManager(new NullSnapshotManager<P>(newPrevalentSystem, "Transient Prevaylers are unable to take snapshots."));
+		factory.configureNullSnapshotManager("Transient Prevaylers are unable to take snapshots.");
 		factory.configureTransientMode(true);
 		try {
 			return factory.create();
@@ -138,6 +168,25 @@ public class PrevaylerFactory<P>{
 	}
 
 
+	/** Creates a Prevayler that executes Transactions entirely in memory: they are neither written to disk nor deep-copied, are only serialized if something actually needs their bytes, and no history of them is kept. This is the fastest configuration, meant for caches and automated tests that do not need persistence at all.
+	 * 
+	 * Attempts to take snapshots on this Prevayler will throw an IOException.
+	 * @param newPrevalentSystem The newly started, "empty" prevalent system.
+	 * @see #configureInMemoryMode(boolean)
+	 */
+	public static <P> Prevayler<P> createInMemoryPrevayler(P newPrevalentSystem) {
+		PrevaylerFactory<P> factory = new PrevaylerFactory<P>();
+		factory.configurePrevalentSystem(newPrevalentSystem);
+		factory.configureInMemoryMode(true);
+		try {
+			return factory.create();
+		} catch (Exception e) {
+			e.printStackTrace(); //In-memory Prevayler creation should not fail.
+			return null;
+		}
+	}
+
+
 	/** @deprecated Use createCheckpointPrevayler() instead of this method. Deprecated since Prevayler2.00.001.
 	 */
 	public static <P> Prevayler<P> createTransientPrevayler(P newPrevalentSystem, String snapshotDirectory) {
@@ -206,6 +255,18 @@ public class PrevaylerFactory<P>{
 		_transientMode = transientMode;		
 	}
 	
+	/** Determines whether the Prevayler created by this factory should run entirely in memory. The default is <code>false</code>.
+	 * 
+	 * @param inMemoryMode
+	 * <br>
+	 * <br>If <code>true</code>, the created Prevayler will be transient, as with configureTransientMode(true), and will additionally execute Transactions directly instead of deep copies (regardless of configureTransactionDeepCopy()), serialize them only if something actually needs their bytes and keep no history of them. No snapshot is read, so the configured prevalent system is always the starting point, and attempts to take snapshots throw an IOException. Replication servers cannot be used in this mode since there is no history for clients to catch up from.
+	 * <br>
+	 * <br>If <code>false</code> (default), transient and transaction deep copy modes are as configured.
+	 */
+	public void configureInMemoryMode(boolean inMemoryMode) {
+		_inMemoryMode = inMemoryMode;
+	}
+
 	/** Reserved for future implementation.
 	 */
 	public void configureReplicationClient(String remoteServerIpAddress, int remoteServerPort) {
@@ -221,8 +282,8 @@ public class PrevaylerFactory<P>{
 	}
 
 
-	private void configureNullSnapshotManager(NullSnapshotManager<P> snapshotManager) {
-		_nullSnapshotManager = snapshotManager;
+	private void configureNullSnapshotManager(String snapshotAttemptErrorMessage) {
+		_snapshotAttemptErrorMessage = snapshotAttemptErrorMessage;
 	}
 
 	/**
@@ -263,12 +324,130 @@ public class PrevaylerFactory<P>{
     }
 
 	
+	/**
+	 * Configures whether transactions are journaled and executed by a single writer thread. The default is <code>false</code>.
+	 *
+	 * @param singleWriter
+	 * <br>
+	 * <br>If <code>true</code>, threads calling execute() only enqueue their transactions. A single writer thread journals them in batches, with one sync per batch, executes them in order and then releases the calling threads. This avoids contention among calling threads and usually gives higher throughput when many threads execute transactions concurrently.
+	 * <br>
+	 * <br>If <code>false</code> (default), each calling thread journals and executes its own transaction, taking turns with the others.
+	 * @see org.prevayler.implementation.publishing.SingleWriterPublisher
+	 */
+	public void configureSingleWriter(boolean singleWriter) {
+		_singleWriter = singleWriter;
+	}
+
+
+	/**
+	 * Configures whether transactions are executed before they are durable. The default is <code>false</code>.
+	 *
+	 * @param earlyLockRelease
+	 * <br>
+	 * <br>If <code>true</code>, each transaction is executed as soon as it has been written to the journal's buffer, while it and the transactions before it are still being synced, and execute() only returns once it is durable. The next transaction can therefore execute without waiting for the disk, which gives much higher throughput when many threads execute transactions concurrently. Queries and snapshots wait until every transaction they can see is durable, which costs each of them at least the time of a sync, and more under a steady stream of transactions, since those executed while they wait are then waited for too. Transactions are never held back by a waiting query or snapshot. If writing the journal fails, all queries fail from then on, since transactions that were executed may have been lost.
+	 * <br>
+	 * <br>Reading prevalentSystem() directly, outside a Query, can see transactions that are not durable yet. Cannot be combined with a single writer or with replication.
+	 * <br>
+	 * <br>If <code>false</code> (default), each transaction is executed only after it is durable.
+	 * @see org.prevayler.implementation.publishing.DurabilityBarrier
+	 */
+	public void configureEarlyLockRelease(boolean earlyLockRelease) {
+		_earlyLockRelease = earlyLockRelease;
+	}
+
+
+	/**
+	 * Configures how many transactions may be in flight at once. By default there is no limit.
+	 *
+	 * @param maxTransactionsInFlight The maximum number of transactions being journaled and executed at once, including those waiting for their turn, or AdmissionControl.UNLIMITED.
+	 * @param maxWaitMillis How long execute() will wait for a transaction to be admitted before throwing a TransactionRejectedException. Zero rejects transactions immediately. Also applies to the rate limit.
+	 * <br>
+	 * <br>When the disk stalls, excess callers are rejected instead of piling up and making latency explode for everyone. Rejected transactions are neither journaled nor executed and can safely be retried.
+	 * @see #configureTransactionRateLimit(double, int)
+	 */
+	public void configureAdmissionControl(int maxTransactionsInFlight, long maxWaitMillis) {
+		_maxTransactionsInFlight = maxTransactionsInFlight;
+		_maxAdmissionWaitMillis = maxWaitMillis;
+	}
+
+
+	/**
+	 * Configures a token-bucket limit on the rate at which transactions are admitted. By default there is no limit.
+	 *
+	 * @param transactionsPerSecond The sustained rate, or AdmissionControl.UNLIMITED.
+	 * @param burst How many transactions may be admitted at once after a quiet period.
+	 * @see #configureAdmissionControl(int, long)
+	 */
+	public void configureTransactionRateLimit(double transactionsPerSecond, int burst) {
+		_maxTransactionsPerSecond = transactionsPerSecond;
+		_transactionBurst = burst;
+	}
+
+
+	/**
+	 * Configures whether snapshots are taken without blocking transactions and queries. The default is <code>false</code>.
+	 *
+	 * @param nonBlockingSnapshots
+	 * <br>
+	 * <br>If <code>true</code>, Prevayler keeps a deep copy of the prevalent system that is brought up to date asynchronously and takeSnapshot() writes the snapshot from that copy. The live system is only paused for as long as it takes to read its current version, but twice the memory is needed and the copy must be able to catch up by replaying the journal, so this cannot be used in in-memory mode.
+	 * <br>
+	 * <br>If <code>false</code> (default), transactions and queries wait while the snapshot is written.
+	 */
+	public void configureNonBlockingSnapshots(boolean nonBlockingSnapshots) {
+		_nonBlockingSnapshots = nonBlockingSnapshots;
+	}
+
+
+	/**
+	 * Configures snapshots to be taken automatically, on a background thread, whenever the given policy says they are due. By default snapshots are only taken when takeSnapshot() is called.
+	 *
+	 * @param policy Triggers a snapshot when the number of transactions or journal bytes since the last snapshot crosses a threshold, except during quiet windows.
+	 * @param listener Notified of the duration and size of each snapshot taken, and of failures. May be null.
+	 * @see AutomaticSnapshots
+	 */
+	public void configureSnapshotPolicy(SnapshotPolicy policy, SnapshotListener listener) {
+		_snapshotPolicy = policy;
+		_snapshotListener = listener;
+	}
+
+
+	/**
+	 * Configures the snapshot and journal files that are no longer needed to be pruned, on a background thread, whenever a snapshot is written and when Prevayler starts. By default all files are kept.
+	 *
+	 * @param snapshotsToKeep The number of latest snapshots that can still be recovered from, along with the journal files needed after the oldest of them. At least one.
+	 * @param archiveDirectory Where the files pruned are compressed to. If null, they are deleted.
+	 * @param archiveBytesPerSecond The maximum rate at which the files pruned are read for archiving, to protect the latency of the journal's disk syncs, or SnapshotRetention.UNTHROTTLED (default).
+	 * @see SnapshotRetention
+	 */
+	public void configureSnapshotRetention(int snapshotsToKeep, String archiveDirectory, long archiveBytesPerSecond) {
+		if (snapshotsToKeep < 1) throw new IllegalArgumentException("At least one snapshot must be kept: " + snapshotsToKeep);
+		_snapshotsToKeep = snapshotsToKeep;
+		_snapshotArchiveDirectory = archiveDirectory;
+		_snapshotArchiveBytesPerSecond = archiveBytesPerSecond;
+	}
+
+
 	public void configureJournalSerializer(JavaSerializer serializer) {
 		configureJournalSerializer("journal", serializer);
 	}
 
+	/**
+	 * Configures the journal to be written using XStream, in files whose suffix depends on the serializer's format: "xstreamjournal", "xstreamstaxjournal" or "xstreambinaryjournal".
+	 */
 	public void configureJournalSerializer(XStreamSerializer serializer) {
-		configureJournalSerializer("xstreamjournal", serializer);
+		configureJournalSerializer(serializer.suffixPrefix() + "journal", serializer);
+	}
+
+	public void configureJournalSerializer(CompactSerializer serializer) {
+		configureJournalSerializer("compactjournal", serializer);
+	}
+
+	/**
+	 * Configures the journal to be written using Java serialization with a class descriptor dictionary: the descriptors are written once per journal file instead of with every transaction. Cannot be used with replication.
+	 * @see DictionaryJavaSerializer
+	 */
+	public void configureJournalSerializer(DictionaryJavaSerializer serializer) {
+		configureJournalSerializer("dictionaryjournal", serializer);
 	}
 
 	/**
@@ -290,8 +469,15 @@ public class PrevaylerFactory<P>{
 		configureSnapshotSerializer("snapshot", serializer);
 	}
 
+	/**
+	 * Configures snapshots to be written using XStream, in files whose suffix depends on the serializer's format: "xstreamsnapshot", "xstreamstaxsnapshot" or "xstreambinarysnapshot".
+	 */
 	public void configureSnapshotSerializer(XStreamSerializer serializer) {
-		configureSnapshotSerializer("xstreamsnapshot", serializer);
+		configureSnapshotSerializer(serializer.suffixPrefix() + "snapshot", serializer);
+	}
+
+	public void configureSnapshotSerializer(CompactSerializer serializer) {
+		configureSnapshotSerializer("compactsnapshot", serializer);
 	}
 
 	/**
@@ -313,10 +499,81 @@ public class PrevaylerFactory<P>{
 	 * @throws ClassNotFoundException If a class of a serialized Object is not found when reading a .journal or .snapshot file.
 	 */
 	public Prevayler<P> create() throws Exception {
-		GenericSnapshotManager<P> snapshotManager = snapshotManager();
-		TransactionPublisher publisher = publisher(snapshotManager);
-		if (_serverPort != -1) new ServerListener(publisher, new OldNetworkImpl(), _serverPort);
-		return new PrevaylerImpl<P>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode);
+		return create(snapshotManager(prevalentSystem(), prevalenceDirectory()), prevalenceDirectory());
+	}
+
+	/** Returns a ShardedPrevayler with the given number of shards, each one a Prevayler created according to what was defined by calls to the configuration methods above. Shard i reads and writes its .journal and .snapshot files in the "shard<i>i</i>" subdirectory of the prevalence directory and starts, until its first snapshot is taken, from its own deep copy of the configured prevalent system. Each shard is transient, in-memory or unable to take snapshots if this factory is configured that way.
+	 * <br>
+	 * <br>The number of shards and the ShardKeyFunction must not change from one run of the system to the next, otherwise recovered transactions will not be in the shards the running system expects them to be in.
+	 * @param numberOfShards The number of independent Prevaylers to partition the system into.
+	 * @param keyFunction Routes each Transaction and Query to its shard.
+	 * @throws IOException If there is trouble creating a shard directory or reading a .journal or .snapshot file.
+	 * @throws ClassNotFoundException If a class of a serialized Object is not found when reading a .journal or .snapshot file.
+	 */
+	public ShardedPrevayler<P> createShardedPrevayler(int numberOfShards, ShardKeyFunction keyFunction) throws Exception {
+		if (numberOfShards < 1) throw new IllegalArgumentException("There must be at least one shard.");
+		if (_remoteServerIpAddress != null || _serverPort != -1) throw new IllegalStateException("Replication is not supported for sharded Prevaylers.");
+
+		Prevayler<Shard<P>>[] shards = new Prevayler[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++) {
+			String directory = prevalenceDirectory() + File.separator + "shard" + i;
+			Shard<P> shard = new Shard<P>((P) DeepCopier.deepCopy(prevalentSystem(), primarySnapshotSerializer()));
+			shards[i] = create(snapshotManager(shard, directory), directory);
+		}
+		return new ShardedPrevayler<P>(shards, keyFunction);
+	}
+
+	/**
+	 * Returns a SnapshotBuilder for the configured prevalence directory: it replays the journal files written by the Prevayler running there into a shadow copy of the prevalent system and writes snapshots of it, without touching the running Prevayler. Call build() on it or start() it as a low-priority background thread. The shadow copy needs as much memory as the prevalent system itself.
+	 * @throws IOException If there is trouble reading a .snapshot file.
+	 * @throws ClassNotFoundException If a class of a serialized Object is not found when reading a .snapshot file.
+	 */
+	public SnapshotBuilder<P> createSnapshotBuilder() throws Exception {
+		if (_transientMode || _inMemoryMode) throw new IllegalStateException("Transient Prevaylers have no journal files from which to build snapshots.");
+
+		P shadowSystem = (P) DeepCopier.deepCopy(prevalentSystem(), primarySnapshotSerializer());
+		PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
+		PersistentJournal journal = new PersistentJournal(directory, 0, 0, false, journalSuffix(), monitor(), classDescriptorDictionary());
+		return new SnapshotBuilder<P>(snapshotManager(shadowSystem, prevalenceDirectory()), journal, journalSerializer());
+	}
+
+
+	private <S> Prevayler<S> create(GenericSnapshotManager<S> snapshotManager, String prevalenceDirectory) throws Exception {
+		if (classDescriptorDictionary() != null && (_remoteServerIpAddress != null || _serverPort != -1)) throw new IllegalStateException("Transactions serialized by a DictionaryJavaSerializer cannot be replicated.");
+		if (_earlyLockRelease && (_remoteServerIpAddress != null || _serverPort != -1)) throw new IllegalStateException("Transactions executed before they are durable cannot be replicated.");
+		if (_earlyLockRelease && _singleWriter) throw new IllegalStateException("A single writer already executes each batch of transactions right after it is synced; early lock release is not supported with it.");
+		Journal journal = _remoteServerIpAddress == null ? journal(prevalenceDirectory) : null;
+		TransactionPublisher publisher = publisher(journal);
+		if (_serverPort != -1) {
+			if (_inMemoryMode) throw new IllegalStateException("In-memory Prevaylers cannot be replication servers.");
+			new ServerListener(publisher, new OldNetworkImpl(), _serverPort);
+		}
+		if (_inMemoryMode) {
+			if (_nonBlockingSnapshots) throw new IllegalStateException("In-memory Prevaylers keep no journal from which a snapshot replica could catch up.");
+			if (_snapshotPolicy != null || _snapshotsToKeep != 0) throw new IllegalStateException("In-memory Prevaylers do not take snapshots.");
+			return new PrevaylerImpl<S>(snapshotManager, publisher, journalSerializer(), false, true, false, admissionControl());
+		}
+		PrevaylerImpl<S> prevayler = new PrevaylerImpl<S>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode, false, _nonBlockingSnapshots, admissionControl());
+		if (_snapshotPolicy != null) {
+			if (snapshotManager instanceof NullSnapshotManager) throw new IllegalStateException("This Prevayler is configured not to take snapshots.");
+			long lastSnapshotVersion = snapshotManager.latestSnapshotVersion();
+			// The transactions recovered from the journal are counted up front rather than replayed. A replication client has the server replay them instead.
+			long systemVersion = journal == null ? lastSnapshotVersion : journal.nextTransaction() - 1;
+			long journalBytes = journal == null ? 0 : journalBytesSinceLatestSnapshot(prevalenceDirectory);
+			AutomaticSnapshots automaticSnapshots = new AutomaticSnapshots(prevayler, _snapshotPolicy, _snapshotListener, lastSnapshotVersion, systemVersion, journalBytes);
+			snapshotManager.automaticSnapshots(automaticSnapshots);
+			publisher.subscribe(automaticSnapshots, systemVersion + 1);
+			prevayler.closeWithThis(automaticSnapshots);
+		}
+		if (_snapshotsToKeep != 0) {
+			if (snapshotManager instanceof NullSnapshotManager) throw new IllegalStateException("This Prevayler is configured not to take snapshots.");
+			File archiveDirectory = _snapshotArchiveDirectory == null ? null : new File(_snapshotArchiveDirectory);
+			SnapshotRetention retention = new SnapshotRetention(new PrevaylerDirectory(prevalenceDirectory), _snapshotsToKeep, archiveDirectory, _snapshotArchiveBytesPerSecond);
+			snapshotManager.retention(retention);
+			retention.schedulePrune();  // Files left over from before this Prevayler started.
+			prevayler.closeWithThis(retention);
+		}
+		return prevayler;
 	}
 
 
@@ -331,20 +588,49 @@ public class PrevaylerFactory<P>{
 	}
 
 
-	private TransactionPublisher publisher(GenericSnapshotManager<P> snapshotManager) throws IOException {
+	/**
+	 * @param journal Null for a replication client.
+	 */
+	private TransactionPublisher publisher(Journal journal) throws IOException {
 		if (_remoteServerIpAddress != null) return new ClientPublisher(new OldNetworkImpl(), _remoteServerIpAddress, _remoteServerPort);
-		return new CentralPublisher(clock(), journal()); 
+		if (_singleWriter) return new SingleWriterPublisher(clock(), journal);
+		return new CentralPublisher(clock(), journal, _earlyLockRelease);
 	}
 
-	private Journal journal() throws IOException {
-		if (_transientMode) {
+	/** The size of the journal files needed to recover from the latest snapshot: an estimate, on the high side, of the bytes journaled since then. Zero for a transient journal.
+	 */
+	private long journalBytesSinceLatestSnapshot(String prevalenceDirectory) throws IOException {
+		if (_transientMode || _inMemoryMode) return 0;
+		long result = 0;
+		for (Iterator it = new PrevaylerDirectory(prevalenceDirectory).necessaryFiles().iterator(); it.hasNext();) {
+			File file = (File) it.next();
+			if (PrevaylerDirectory.journalVersion(file) != -1) result += file.length();
+		}
+		return result;
+	}
+
+	private AdmissionControl admissionControl() {
+		if (_maxTransactionsInFlight == AdmissionControl.UNLIMITED && _maxTransactionsPerSecond == AdmissionControl.UNLIMITED) return null;
+		return new AdmissionControl(_maxTransactionsInFlight, _maxAdmissionWaitMillis, _maxTransactionsPerSecond, _transactionBurst);
+	}
+
+	private Journal journal(String prevalenceDirectory) throws IOException {
+		if (_inMemoryMode) {
+			return (Journal) new TransientJournal(0);
+		} else if (_transientMode) {
 			return (Journal) new TransientJournal();
 		} else {
-			PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
-			return new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, journalSuffix(), monitor());
+			PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory);
+			return new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, journalSuffix(), monitor(), classDescriptorDictionary());
 		}
 	}
 
+	private ClassDescriptorDictionary classDescriptorDictionary() {
+		return _journalSerializer instanceof DictionaryJavaSerializer
+			? ((DictionaryJavaSerializer) _journalSerializer).dictionary()
+			: null;
+	}
+
 	
 	private Serializer journalSerializer() {
 		if (_journalSerializer != null) return _journalSerializer;
@@ -355,17 +641,22 @@ public class PrevaylerFactory<P>{
 		return _journalSuffix != null ? _journalSuffix : "journal";
 	}
 
-	private GenericSnapshotManager<P> snapshotManager() throws Exception {
-		if (_nullSnapshotManager != null)
-			return _nullSnapshotManager;
-		
-		PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
+	private <S> GenericSnapshotManager<S> snapshotManager(S prevalentSystem, String prevalenceDirectory) throws Exception {
+		if (_snapshotAttemptErrorMessage != null) return new NullSnapshotManager<S>(prevalentSystem, _snapshotAttemptErrorMessage);
+		if (_inMemoryMode) return new NullSnapshotManager<S>(prevalentSystem, "In-memory Prevaylers are unable to take snapshots.");
+
+		PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory);
 		if (!_snapshotSerializers.isEmpty())
-			return new GenericSnapshotManager<P>(_snapshotSerializers, _primarySnapshotSuffix, prevalentSystem(), directory, journalSerializer());
+			return new GenericSnapshotManager<S>(_snapshotSerializers, _primarySnapshotSuffix, prevalentSystem, directory, journalSerializer());
 
 		String snapshotSuffix = "snapshot";
 		JavaSerializer snapshotSerializer = new JavaSerializer();
-		return new GenericSnapshotManager<P>(Collections.singletonMap(snapshotSuffix, snapshotSerializer), snapshotSuffix, prevalentSystem(), directory, journalSerializer());
+		return new GenericSnapshotManager<S>(Collections.singletonMap(snapshotSuffix, snapshotSerializer), snapshotSuffix, prevalentSystem, directory, journalSerializer());
+	}
+
+	private Serializer primarySnapshotSerializer() {
+		if (!_snapshotSerializers.isEmpty()) return (Serializer) _snapshotSerializers.get(_primarySnapshotSuffix);
+		return new JavaSerializer();
 	}
 
 	
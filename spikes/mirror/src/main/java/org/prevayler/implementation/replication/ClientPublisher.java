@@ -133,12 +133,12 @@ public class ClientPublisher implements TransactionPublisher {
 		_clock.advanceTo(timestamp);
 		
 		if (transactionTimestamp.capsule() == null) {
-			_subscriber.receive(new TransactionTimestamp(_myCapsule, systemVersion, timestamp));
+			_subscriber.receive(new TransactionTimestamp(_myCapsule, systemVersion, timestamp.getTime(), transactionTimestamp.executionNanos()));
 			notifyMyTransactionMonitor();
 			return;
 		}
 
-		_subscriber.receive(new TransactionTimestamp(transactionTimestamp.capsule(), systemVersion, timestamp));
+		_subscriber.receive(new TransactionTimestamp(transactionTimestamp.capsule(), systemVersion, timestamp.getTime(), transactionTimestamp.executionNanos()));
 	}
 
 
@@ -9,14 +9,15 @@ import java.io.IOException;
 import org.prevayler.foundation.network.ObjectSocket;
 import org.prevayler.implementation.Capsule;
 import org.prevayler.implementation.TransactionTimestamp;
-import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.AsynchronousTransactionSubscriber;
 import org.prevayler.implementation.publishing.TransactionPublisher;
-import org.prevayler.implementation.publishing.TransactionSubscriber;
 
 
 /** Reserved for future implementation.
+ * <br>
+ * <br>Is an AsynchronousTransactionSubscriber, so the publisher delivers transactions to it through a POBox and a slow replica does not hold up publication.
  */
-class ServerConnection extends Thread implements TransactionSubscriber {
+class ServerConnection extends Thread implements AsynchronousTransactionSubscriber {
 
 	static final String SUBSCRIBER_UP_TO_DATE = "SubscriberUpToDate";
 	static final String REMOTE_TRANSACTION = "RemoteTransaction";
@@ -40,9 +41,7 @@ class ServerConnection extends Thread implements TransactionSubscriber {
 		try {		
 			long initialTransaction = ((Long)_remote.readObject()).longValue();
 			
-			POBox poBox = new POBox(this);
-			_publisher.subscribe(poBox, initialTransaction);
-			poBox.waitToEmpty();
+			_publisher.subscribe(this, initialTransaction);  //Returns once the transactions already journaled have been sent.
 			
 			send(SUBSCRIBER_UP_TO_DATE);
 			
@@ -4,8 +4,21 @@ import junit.framework.TestCase;
 import org.prevayler.foundation.serialization.JavaSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class DeepCopierTest extends TestCase {
 
@@ -54,4 +67,121 @@ public class DeepCopierTest extends TestCase {
 		assertNotSame(original, copy);
 	}
 
+	public void testParallelThroughSmallBuffer() throws Exception {
+		List original = new ArrayList();
+		for (int i = 0; i < 10000; i++) original.add("element" + i);
+
+		Object copy = DeepCopier.deepCopyParallel(original, new JavaSerializer(), 16);
+
+		assertEquals(original, copy);
+		assertNotSame(original, copy);
+	}
+
+	public void testParallelReportsSerializationFailure() throws Exception {
+		List original = new ArrayList();
+		for (int i = 0; i < 10000; i++) original.add("element" + i);
+		original.add(new Object());
+
+		try {
+			DeepCopier.deepCopyParallel(original, new JavaSerializer(), 16);
+			fail();
+		} catch (NotSerializableException expected) {}
+	}
+
+	public void testReflective() throws Exception {
+		Node shared = new Node("shared");
+		Node original = new Node("root");
+		original._children.add(shared);
+		original._children.add(shared);
+		original._children.add(original);
+		original._byName.put("shared", shared);
+		original._sorted.put("b", "B");
+		original._sorted.put("a", "A");
+		original._numbers = new int[] { 1, 2, 3 };
+		original._nodes = new Node[] { shared, null };
+		original._cache = "cached";
+
+		Node copy = (Node) DeepCopier.deepCopyReflective(original);
+
+		assertNotSame(original, copy);
+		assertSame("Immutable objects are shared, not serialized.", original._name, copy._name);
+		Node copiedShared = (Node) copy._children.get(0);
+		assertNotSame(shared, copiedShared);
+		assertEquals("shared", copiedShared._name);
+		assertSame(copiedShared, copy._children.get(1));
+		assertSame(copy, copy._children.get(2));
+		assertSame(copiedShared, copy._byName.get("shared"));
+		assertSame(copiedShared, copy._nodes[0]);
+		assertNull(copy._nodes[1]);
+		assertEquals("b", copy._sorted.firstKey());
+		assertEquals(3, copy._numbers[2]);
+		assertNotSame(original._numbers, copy._numbers);
+		assertNull(copy._cache);
+		assertEquals(1, copy._constructorCalls);
+		assertEquals(1, copy._custom._readCount);
+	}
+
+	public void testReflectiveKeepsAccessOrder() throws Exception {
+		LinkedHashMap original = new LinkedHashMap(16, 0.75f, true);
+		original.put("a", "A");
+		original.put("b", "B");
+		original.get("a");
+
+		LinkedHashMap copy = (LinkedHashMap) DeepCopier.deepCopyReflective(original);
+		assertEquals(Arrays.asList(new Object[] { "b", "a" }), new ArrayList(copy.keySet()));
+		copy.get("b");
+		assertEquals("Still access-ordered.", Arrays.asList(new Object[] { "a", "b" }), new ArrayList(copy.keySet()));
+	}
+
+	public void testReflectiveKeepsCapacity() throws Exception {
+		LinkedBlockingQueue original = new LinkedBlockingQueue(2);
+		original.add("x");
+
+		LinkedBlockingQueue copy = (LinkedBlockingQueue) DeepCopier.deepCopyReflective(original);
+		assertEquals("x", copy.peek());
+		assertEquals(1, copy.remainingCapacity());
+	}
+
+	public void testReflectiveNotSerializable() throws Exception {
+		try {
+			DeepCopier.deepCopyReflective(Collections.singletonList(new Object()));
+			fail();
+		} catch (NotSerializableException expected) {}
+	}
+
+
+	static private class Base {
+		int _constructorCalls;
+
+		Base() {
+			_constructorCalls++;
+		}
+	}
+
+	static private class Node extends Base implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String _name;
+		private final List _children = new ArrayList();
+		private final Map _byName = new HashMap();
+		private final TreeMap _sorted = new TreeMap(Collections.reverseOrder());
+		private final Custom _custom = new Custom();
+		private int[] _numbers;
+		private Node[] _nodes;
+		private transient Object _cache;
+
+		Node(String name) {
+			_name = name;
+		}
+	}
+
+	static private class Custom implements Serializable {
+		private static final long serialVersionUID = 1L;
+		transient int _readCount;
+
+		private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+			stream.defaultReadObject();
+			_readCount++;
+		}
+	}
+
 }
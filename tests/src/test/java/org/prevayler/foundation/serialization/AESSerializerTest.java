@@ -0,0 +1,82 @@
+package org.prevayler.foundation.serialization;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AESSerializerTest extends TestCase {
+
+	private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+	public void testRoundTrip() throws Exception {
+		AESSerializer serializer = new AESSerializer(new JavaSerializer(), KEY, 64, false);
+		List original = sample();
+		assertEquals(original, serializer.readObject(new ByteArrayInputStream(bytes(serializer, original))));
+	}
+
+	public void testParallelIsCompatible() throws Exception {
+		AESSerializer parallel = new AESSerializer(new JavaSerializer(), KEY, 256, true);
+		AESSerializer sequential = new AESSerializer(new JavaSerializer(), KEY, 64, false);
+		List original = sample();
+		assertEquals(original, sequential.readObject(new ByteArrayInputStream(bytes(parallel, original))));
+		assertEquals(original, parallel.readObject(new ByteArrayInputStream(bytes(sequential, original))));
+	}
+
+	public void testEncryptsWithAFreshNonceEachTime() throws Exception {
+		AESSerializer serializer = new AESSerializer(new JavaSerializer(), KEY);
+		byte[] first = bytes(serializer, "secret");
+		byte[] second = bytes(serializer, "secret");
+		assertFalse(java.util.Arrays.equals(first, second));
+		assertEquals(-1, new String(first, "ISO-8859-1").indexOf("secret"));
+		assertEquals(first.length, bytes(new JavaSerializer(), "secret").length + 33);
+	}
+
+	public void testTamperingIsDetected() throws Exception {
+		AESSerializer serializer = new AESSerializer(new JavaSerializer(), KEY, 64, false);
+		byte[] bytes = bytes(serializer, sample());
+		bytes[bytes.length / 2] ^= 1;
+		try {
+			serializer.readObject(new ByteArrayInputStream(bytes));
+			fail();
+		} catch (IOException expected) {}
+	}
+
+	public void testWrongKeyIsDetected() throws Exception {
+		byte[] bytes = bytes(new AESSerializer(new JavaSerializer(), KEY), "secret");
+		try {
+			new AESSerializer(new JavaSerializer(), "fedcba9876543210".getBytes()).readObject(new ByteArrayInputStream(bytes));
+			fail();
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().indexOf("authentication") != -1);
+		}
+	}
+
+	public void testTruncationIsDetected() throws Exception {
+		AESSerializer serializer = new AESSerializer(new JavaSerializer(), KEY, 64, false);
+		byte[] bytes = bytes(serializer, sample());
+		byte[] truncated = new byte[13 + 4 + 64 + 16];  // The header and first chunk only.
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		try {
+			serializer.readObject(new ByteArrayInputStream(truncated));
+			fail();
+		} catch (EOFException expected) {}
+	}
+
+	private List sample() {
+		List result = new ArrayList();
+		for (int i = 0; i < 500; i++) result.add("element " + i);
+		return result;
+	}
+
+	private byte[] bytes(Serializer serializer, Object object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.writeObject(out, object);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,187 @@
+package org.prevayler.foundation.serialization;
+
+import junit.framework.TestCase;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.NotSerializableException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class CompactSerializerTest extends TestCase {
+
+	private CompactSerializer _serializer = new CompactSerializer().register(Node.class).register(Color.class).register(AppendTransaction.class);
+
+	public void testGraph() throws Exception {
+		Node shared = new Node("shared");
+		Node original = new Node("root");
+		original._children.add(shared);
+		original._children.add(shared);
+		original._children.add(original);
+		original._byName.put("shared", shared);
+		original._sorted.put("a", new Integer(-1));
+		original._sorted.put("b", new Long(Long.MAX_VALUE));
+		original._nodes = new Node[] { shared, null };
+		original._numbers = new int[] { 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		original._bytes = new byte[] { -128, 0, 127 };
+		original._matrix = new double[][] { { 1.5 }, { -2.5 } };
+		original._color = Color.GREEN;
+		original._values = new Object[] { "été", new Double(0.1), new Float(-3.5f), Boolean.TRUE, new Character('€'), new Short((short) -300), new Byte((byte) -1), new Date(123456789L), new BigDecimal("-12345.6789"), new StringBuffer("embedded") };
+		original._primitives = -42;
+		original._flag = true;
+		original._letter = 'x';
+		original._cache = "cached";
+
+		Node copy = (Node) copy(original);
+
+		assertEquals("root", copy._name);
+		Node copiedShared = (Node) copy._children.get(0);
+		assertEquals("shared", copiedShared._name);
+		assertSame(copiedShared, copy._children.get(1));
+		assertSame(copy, copy._children.get(2));
+		assertSame(copiedShared, copy._byName.get("shared"));
+		assertSame(copiedShared, copy._nodes[0]);
+		assertNull(copy._nodes[1]);
+		assertEquals("b", copy._sorted.firstKey());
+		assertEquals(new Long(Long.MAX_VALUE), copy._sorted.get("b"));
+		assertEquals(Integer.MIN_VALUE, copy._numbers[3]);
+		assertEquals(-128, copy._bytes[0]);
+		assertEquals(-2.5, copy._matrix[1][0], 0);
+		assertSame(Color.GREEN, copy._color);
+		for (int i = 0; i < 9; i++) assertEquals(original._values[i], copy._values[i]);
+		assertEquals("embedded", copy._values[9].toString());
+		assertEquals(-42, copy._primitives);
+		assertTrue(copy._flag);
+		assertEquals('x', copy._letter);
+		assertNull(copy._cache);
+		assertEquals(1, copy._constructorCalls);
+	}
+
+	public void testSmallerThanJavaSerialization() throws Exception {
+		AppendTransaction transaction = new AppendTransaction(" first");
+		int compact = bytes(_serializer, transaction).length;
+		int java = bytes(new JavaSerializer(), transaction).length;
+		assertEquals(10, compact);
+		assertTrue(compact * 10 < java);
+	}
+
+	public void testUnregisteredSerializableIsEmbedded() throws Exception {
+		List original = new ArrayList();
+		original.add(new Unregistered());
+		original.add(Collections.singletonMap("key", "value"));
+
+		List copy = (List) copy(original);
+		assertTrue(copy.get(0) instanceof Unregistered);
+		assertEquals("value", ((Map) copy.get(1)).get("key"));
+	}
+
+	public void testAccessOrderedMapKeepsItsOrder() throws Exception {
+		LinkedHashMap original = new LinkedHashMap(16, 0.75f, true);
+		original.put("a", "A");
+		original.put("b", "B");
+		original.get("a");
+
+		LinkedHashMap copy = (LinkedHashMap) copy(original);
+		assertEquals(Arrays.asList(new Object[] { "b", "a" }), new ArrayList(copy.keySet()));
+		copy.get("b");
+		assertEquals("Still access-ordered.", Arrays.asList(new Object[] { "a", "b" }), new ArrayList(copy.keySet()));
+	}
+
+	public void testNotSerializable() throws Exception {
+		try {
+			copy(new Object());
+			fail();
+		} catch (NotSerializableException expected) {}
+
+		try {
+			_serializer.register(Object.class);
+			fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+
+	public void testRegistration() {
+		CompactSerializer serializer = new CompactSerializer();
+		serializer.register(Node.class, 100).register(Color.class);
+		serializer.register(Node.class, 100);
+		try {
+			serializer.register(Node.class, 102);
+			fail();
+		} catch (IllegalArgumentException expected) {}
+		try {
+			serializer.register(AppendTransaction.class, 101);
+			fail();
+		} catch (IllegalArgumentException expected) {
+			assertEquals("Id 101 is already taken by " + Color.class.getName(), expected.getMessage());
+		}
+		try {
+			serializer.register(AppendTransaction.class, CompactSerializer.FIRST_CLASS_ID - 1);
+			fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+
+	public void testReaderMustKnowTheClasses() throws Exception {
+		byte[] bytes = bytes(_serializer, new AppendTransaction("x"));
+		try {
+			new CompactSerializer().readObject(new ByteArrayInputStream(bytes));
+			fail();
+		} catch (java.io.StreamCorruptedException expected) {}
+	}
+
+	private Object copy(Object original) throws Exception {
+		return _serializer.readObject(new ByteArrayInputStream(bytes(_serializer, original)));
+	}
+
+	private byte[] bytes(Serializer serializer, Object object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.writeObject(out, object);
+		return out.toByteArray();
+	}
+
+
+	static public class Base {
+		int _constructorCalls;
+
+		public Base() {
+			_constructorCalls++;
+		}
+	}
+
+	static private class Node extends Base implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String _name;
+		private final List _children = new ArrayList();
+		private final Map _byName = new HashMap();
+		private final TreeMap _sorted = new TreeMap(Collections.reverseOrder());
+		private Node[] _nodes;
+		private int[] _numbers;
+		private byte[] _bytes;
+		private double[][] _matrix;
+		private Color _color;
+		private Object[] _values;
+		private long _primitives;
+		private boolean _flag;
+		private char _letter;
+		private transient Object _cache;
+
+		Node(String name) {
+			_name = name;
+		}
+	}
+
+	static private enum Color { RED, GREEN }
+
+	static private class Unregistered implements Serializable {
+		private static final long serialVersionUID = 1L;
+	}
+
+}
@@ -0,0 +1,86 @@
+package org.prevayler.foundation.serialization;
+
+import junit.framework.TestCase;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DictionaryJavaSerializerTest extends TestCase {
+
+	private DictionaryJavaSerializer _serializer = new DictionaryJavaSerializer();
+
+	public void testJavaSerializationSemantics() throws Exception {
+		Sub original = new Sub();
+		original._name = "root";
+		original._list.add(original);
+		original._map.put("key", new Integer(42));
+		original._cache = "cached";
+
+		Sub copy = (Sub) _serializer.readObject(new ByteArrayInputStream(bytes(_serializer, original)));
+		assertEquals("root", copy._name);
+		assertSame(copy, copy._list.get(0));
+		assertEquals(new Integer(42), copy._map.get("key"));
+		assertEquals("restored", copy._cache);
+	}
+
+	public void testDescriptorsAreWrittenOnlyToTheDictionary() throws Exception {
+		AppendTransaction transaction = new AppendTransaction(" first");
+		int withDictionary = bytes(_serializer, transaction).length;
+		int java = bytes(new JavaSerializer(), transaction).length;
+		assertEquals(21, withDictionary);
+		assertTrue(withDictionary * 3 < java);
+
+		int definitions = _serializer.dictionary().size();
+		bytes(_serializer, new AppendTransaction(" second"));
+		assertEquals(definitions, _serializer.dictionary().size());
+	}
+
+	public void testDefinitionsCanBeReadElsewhere() throws Exception {
+		byte[] bytes = bytes(_serializer, new Sub());
+
+		DictionaryJavaSerializer other = new DictionaryJavaSerializer();
+		try {
+			other.readObject(new ByteArrayInputStream(bytes));
+			fail();
+		} catch (InvalidClassException expected) {}
+
+		ClassDescriptorDictionary dictionary = _serializer.dictionary();
+		other.dictionary().defineAll(dictionary.definitions(0, dictionary.size()));
+		other.dictionary().defineAll(dictionary.definitions(1, dictionary.size()));
+		assertEquals(dictionary.size(), other.dictionary().size());
+		assertTrue(other.readObject(new ByteArrayInputStream(bytes)) instanceof Sub);
+		assertEquals(bytes.length, bytes(other, new Sub()).length);
+	}
+
+	private byte[] bytes(Serializer serializer, Object object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.writeObject(out, object);
+		return out.toByteArray();
+	}
+
+
+	static private class Base implements Serializable {
+		private static final long serialVersionUID = 1L;
+		String _name;
+	}
+
+	static private class Sub extends Base {
+		private static final long serialVersionUID = 1L;
+		private final List _list = new ArrayList();
+		private final Map _map = new HashMap();
+		private transient Object _cache;
+
+		private void readObject(java.io.ObjectInputStream stream) throws java.io.IOException, ClassNotFoundException {
+			stream.defaultReadObject();
+			_cache = "restored";
+		}
+	}
+
+}
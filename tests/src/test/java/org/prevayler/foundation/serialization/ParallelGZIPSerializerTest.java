@@ -0,0 +1,65 @@
+package org.prevayler.foundation.serialization;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGZIPSerializerTest extends TestCase {
+
+	private ParallelGZIPSerializer _serializer = new ParallelGZIPSerializer(new JavaSerializer(), 1000, Deflater.DEFAULT_COMPRESSION);
+
+	public void testRoundTripAcrossManyBlocks() throws Exception {
+		List original = sample();
+		byte[] bytes = bytes(_serializer, original);
+		assertEquals(original, _serializer.readObject(new ByteArrayInputStream(bytes)));
+	}
+
+	public void testOutputIsStandardMultiMemberGzip() throws Exception {
+		List original = sample();
+		byte[] bytes = bytes(_serializer, original);
+		assertEquals(original, new JavaSerializer().readObject(new GZIPInputStream(new ByteArrayInputStream(bytes))));
+	}
+
+	public void testEmptyOutputIsStillGzip() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ParallelGZIPSerializer(new Serializer() {
+			public void writeObject(java.io.OutputStream stream, Object object) {}
+			public Object readObject(java.io.InputStream stream) { return null; }
+		}).writeObject(out, null);
+		assertEquals(-1, new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())).read());
+	}
+
+	public void testReadsPlainGzip() throws Exception {
+		List original = sample();
+		byte[] bytes = bytes(new GZIPSerializer(new JavaSerializer()), original);
+		assertEquals(original, _serializer.readObject(new ByteArrayInputStream(bytes)));
+	}
+
+	public void testCorruptionIsDetected() throws Exception {
+		byte[] bytes = bytes(_serializer, sample());
+		bytes[bytes.length / 2] ^= 0x55;
+		try {
+			_serializer.readObject(new ByteArrayInputStream(bytes));
+			fail();
+		} catch (IOException expected) {}
+	}
+
+	private List sample() {
+		List result = new ArrayList();
+		for (int i = 0; i < 2000; i++) result.add("element " + i);
+		return result;
+	}
+
+	private byte[] bytes(Serializer serializer, Object object) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		serializer.writeObject(out, object);
+		return out.toByteArray();
+	}
+
+}
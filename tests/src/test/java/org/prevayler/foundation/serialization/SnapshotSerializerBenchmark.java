@@ -0,0 +1,69 @@
+package org.prevayler.foundation.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Compares the snapshot throughput of the Serializers on a large object graph. Not run with the tests: run main(), with the number of records as an optional argument. */
+public class SnapshotSerializerBenchmark {
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		int records = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		Object system = system(records);
+
+		report("JavaSerializer", new JavaSerializer(), system);
+		report("XStreamSerializer XML", new XStreamSerializer("UTF-8"), system);
+		report("XStreamSerializer STREAMING_XML", new XStreamSerializer("UTF-8", XStreamSerializer.STREAMING_XML), system);
+		report("XStreamSerializer BINARY", new XStreamSerializer(null, XStreamSerializer.BINARY), system);
+	}
+
+	private static void report(String name, Serializer serializer, Object system) throws Exception {
+		byte[] bytes = null;
+		long bestWrite = Long.MAX_VALUE;
+		long bestRead = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			serializer.writeObject(out, system);
+			bytes = out.toByteArray();
+			bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			serializer.readObject(new ByteArrayInputStream(bytes));
+			bestRead = Math.min(bestRead, System.nanoTime() - start);
+		}
+		System.out.println(name + ": " + bytes.length / 1024 + " KB, written in " + bestWrite / 1000000 + " ms, read in " + bestRead / 1000000 + " ms");
+	}
+
+	private static Object system(int records) {
+		Map result = new HashMap();
+		List shared = new ArrayList();
+		for (int i = 0; i < records; i++) {
+			Record record = new Record("record " + i, i, shared);
+			result.put(new Integer(i), record);
+			if (i % 100 == 0) shared = new ArrayList();
+			shared.add(record);
+		}
+		return result;
+	}
+
+	static private class Record implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String _name;
+		private final long _value;
+		private final List _group;
+
+		Record(String name, long value, List group) {
+			_name = name;
+			_value = value;
+			_group = group;
+		}
+	}
+
+}
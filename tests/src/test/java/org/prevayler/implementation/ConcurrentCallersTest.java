@@ -0,0 +1,121 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+/** Runs a large number of concurrent callers through Prevayler.execute(). On a JVM with virtual threads, each caller is a virtual thread, and the test fails if the JVM reports that any of them pinned its carrier thread (jdk.tracePinnedThreads, which JVMs that no longer pin on monitors ignore). Otherwise a pool of platform threads is used and pinning is not checked.
+ */
+public class ConcurrentCallersTest extends FileIOTest {
+
+	private static final int CALLERS = 100000;
+
+	static {
+		// Read by the JVM when the first virtual thread is created.
+		if (System.getProperty("jdk.tracePinnedThreads") == null) System.setProperty("jdk.tracePinnedThreads", "short");
+	}
+
+	public void testTransientPrevayler() throws Exception {
+		Prevayler<Counter> prevayler = PrevaylerFactory.createTransientPrevayler(new Counter());
+		runCallers(prevayler, CALLERS);
+		assertEquals(CALLERS, prevayler.prevalentSystem()._count);
+	}
+
+	public void testPersistentPrevayler() throws Exception {
+		Prevayler<Counter> prevayler = createPersistentPrevayler();
+		runCallers(prevayler, CALLERS / 10);
+		assertEquals(CALLERS / 10, prevayler.prevalentSystem()._count);
+		prevayler.close();
+
+		prevayler = createPersistentPrevayler();
+		assertEquals(CALLERS / 10, prevayler.prevalentSystem()._count);
+		prevayler.close();
+	}
+
+	private Prevayler<Counter> createPersistentPrevayler() throws Exception {
+		PrevaylerFactory<Counter> factory = new PrevaylerFactory<Counter>();
+		factory.configurePrevalentSystem(new Counter());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureJournalDiskSync(false);
+		return factory.create();
+	}
+
+	private void runCallers(final Prevayler<Counter> prevayler, int callers) throws Exception {
+		ExecutorService executor = virtualThreadExecutor();
+		if (executor == null) {
+			runCallers(prevayler, callers, Executors.newFixedThreadPool(64));
+			return;
+		}
+
+		// The JVM prints a stack trace to System.out whenever a virtual thread pins its carrier.
+		PrintStream out = System.out;
+		ByteArrayOutputStream trace = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(trace, true));
+		try {
+			runCallers(prevayler, callers, executor);
+		} finally {
+			System.setOut(out);
+		}
+		assertEquals("Virtual threads pinned their carriers:", "", trace.toString());
+	}
+
+	private void runCallers(final Prevayler<Counter> prevayler, int callers, ExecutorService executor) throws Exception {
+		final CountDownLatch done = new CountDownLatch(callers);
+		final AtomicReference failure = new AtomicReference();
+		for (int i = 0; i < callers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						prevayler.execute(new Increment());
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		assertTrue("Callers did not finish in time.", done.await(5, TimeUnit.MINUTES));
+		executor.shutdown();
+		if (failure.get() != null) throw new RuntimeException("A caller failed.", (Throwable) failure.get());
+	}
+
+	private ExecutorService virtualThreadExecutor() throws Exception {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException noVirtualThreads) {
+			return null;
+		}
+	}
+
+
+	static private class Counter implements Serializable {
+		private static final long serialVersionUID = 1L;
+		int _count;
+	}
+
+
+	static private class Increment implements Transaction<Counter> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(Counter counter, Date executionTime) {
+			counter._count++;
+		}
+	}
+
+}
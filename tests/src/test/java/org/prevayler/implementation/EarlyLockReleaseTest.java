@@ -0,0 +1,238 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.DurabilityBarrier;
+
+public class EarlyLockReleaseTest extends FileIOTest {
+
+	private final Serializer _serializer = new JavaSerializer();
+
+	public void testConcurrentTransactionsAndRecovery() throws Exception {
+		final Prevayler<StringBuffer> prevayler = createPrevayler();
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 100; i++) prevayler.execute(new AppendTransaction("x"));
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) threads[t].join();
+
+		assertEquals(new Integer(1600), prevayler.execute(new Length()));
+		assertEquals("y", prevayler.execute(new AppendTransactionWithQuery("y")).substring(1600));
+		prevayler.takeSnapshot();
+		prevayler.execute(new AppendTransaction("z"));
+		prevayler.close();
+
+		Prevayler<StringBuffer> recovered = createPrevayler();
+		assertEquals(new Integer(1602), recovered.execute(new Length()));
+		recovered.close();
+	}
+
+	public void testRuntimeExceptionsReachTheCaller() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler();
+		try {
+			prevayler.execute(new Failing());
+			fail();
+		} catch (IllegalArgumentException expected) {}
+
+		prevayler.execute(new AppendTransaction("ok"));
+		assertEquals("ok", prevayler.execute(new Contents()));
+		prevayler.close();
+
+		prevayler = createPrevayler();
+		assertEquals("ok", prevayler.execute(new Contents()));
+		prevayler.close();
+	}
+
+	public void testQueriesWaitForDurability() throws Exception {
+		final GatedJournal journal = new GatedJournal();
+		final CentralPublisher publisher = new CentralPublisher(new BrokenClock(), journal, true);
+		final PrevalentSystemGuard<StringBuffer> guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, _serializer);
+		guard.durabilityBarrier(publisher.durabilityBarrier());
+		guard.subscribeTo(publisher);
+
+		Thread transaction = start(new Runnable() {
+			public void run() {
+				publisher.publish(new TransactionCapsule<StringBuffer>(new AppendTransaction("a"), _serializer, false));
+			}
+		});
+		while (guard.systemVersion() < 1) Cool.sleep(1);
+		assertEquals("Executed before it is durable.", "a", guard.prevalentSystem().toString());
+
+		final String[] result = new String[1];
+		Thread query = start(new Runnable() {
+			public void run() {
+				try {
+					result[0] = guard.executeQuery(new Contents(), publisher.clock());
+				} catch (Exception e) {
+					Cool.unexpected(e);
+				}
+			}
+		});
+		Cool.sleep(100);
+		assertTrue(transaction.isAlive());
+		assertTrue(query.isAlive());
+
+		Thread reader = start(new Runnable() {
+			public void run() {
+				guard.systemVersion();
+			}
+		});
+		reader.join(1000);
+		assertFalse("The query waits without holding the guard.", reader.isAlive());
+
+		journal._synced.countDown();
+		transaction.join();
+		query.join();
+		assertEquals("a", result[0]);
+	}
+
+	public void testQueriesWaitingForDurabilityDoNotHoldBackTransactions() throws Exception {
+		DurabilityBarrier barrier = new DurabilityBarrier();
+		final PrevalentSystemGuard<StringBuffer> guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, _serializer);
+		guard.durabilityBarrier(barrier);
+		guard.receive(timestamp("a", 1));
+
+		final String[] result = new String[1];
+		Thread query = start(new Runnable() {
+			public void run() {
+				try {
+					result[0] = guard.executeQuery(new Contents(), new BrokenClock());
+				} catch (Exception e) {
+					Cool.unexpected(e);
+				}
+			}
+		});
+		Cool.sleep(100);
+		assertTrue(query.isAlive());
+
+		Thread transaction = start(new Runnable() {
+			public void run() {
+				guard.receive(timestamp("b", 2));
+			}
+		});
+		transaction.join(1000);
+		assertFalse("Received while the query waits.", transaction.isAlive());
+		assertEquals(2, guard.systemVersion());
+
+		barrier.durable(1);
+		Cool.sleep(100);
+		assertTrue("Still waiting for the transaction received meanwhile.", query.isAlive());
+
+		barrier.durable(2);
+		query.join();
+		assertEquals("ab", result[0]);
+	}
+
+	private TransactionTimestamp timestamp(String toAppend, long systemVersion) {
+		return new TransactionTimestamp(new TransactionCapsule<StringBuffer>(new AppendTransaction(toAppend), _serializer, false), systemVersion, 0L);
+	}
+
+	public void testQueriesFailOnceTheJournalFails() throws Exception {
+		GatedJournal journal = new GatedJournal();
+		journal._failure = new IllegalStateException("Failing on purpose.");
+		journal._synced.countDown();
+		CentralPublisher publisher = new CentralPublisher(new BrokenClock(), journal, true);
+		PrevalentSystemGuard<StringBuffer> guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, _serializer);
+		guard.durabilityBarrier(publisher.durabilityBarrier());
+		guard.subscribeTo(publisher);
+
+		try {
+			publisher.publish(new TransactionCapsule<StringBuffer>(new AppendTransaction("a"), _serializer, false));
+			fail();
+		} catch (IllegalStateException expected) {}
+
+		try {
+			guard.executeQuery(new Contents(), publisher.clock());
+			fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	public void testNotWithSingleWriter() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = factory();
+		factory.configureSingleWriter(true);
+		try {
+			factory.create();
+			fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	private Prevayler<StringBuffer> createPrevayler() throws Exception {
+		return factory().create();
+	}
+
+	private PrevaylerFactory<StringBuffer> factory() {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureEarlyLockRelease(true);
+		return factory;
+	}
+
+	private static Thread start(Runnable runnable) {
+		Thread thread = new Thread(runnable);
+		thread.start();
+		return thread;
+	}
+
+
+	/** Holds each transaction back, after it is written, as a slow sync would. */
+	static private class GatedJournal extends TransientJournal {
+		final CountDownLatch _synced = new CountDownLatch(1);
+		RuntimeException _failure;
+
+		public void append(TransactionGuide guide, Runnable whenWritten) {
+			super.append(guide, whenWritten);
+			try {
+				_synced.await();
+			} catch (InterruptedException e) {
+				Cool.unexpected(e);
+			}
+			if (_failure != null) throw _failure;
+		}
+	}
+
+
+	static private class Contents implements Query<StringBuffer,String> {
+		public String query(StringBuffer prevalentSystem, Date executionTime) {
+			return prevalentSystem.toString();
+		}
+	}
+
+
+	static private class Length implements Query<StringBuffer,Integer> {
+		public Integer query(StringBuffer prevalentSystem, Date executionTime) {
+			return new Integer(prevalentSystem.length());
+		}
+	}
+
+
+	static private class Failing implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			throw new IllegalArgumentException("Failing on purpose.");
+		}
+	}
+
+}
@@ -0,0 +1,126 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.util.Date;
+
+import org.prevayler.Clock;
+import org.prevayler.EpochTransaction;
+import org.prevayler.NanoTransaction;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.clock.HybridLogicalClock;
+
+public class EpochTransactionTest extends FileIOTest {
+
+	private final BrokenClock _clock = new BrokenClock();
+
+	public void testExecutionTimeInMillis() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler();
+
+		_clock.advanceTo(1000);
+		prevayler.execute(new AppendTime("e"));
+		_clock.advanceTo(new Date(2000));
+		prevayler.execute(new AppendDate("d"));
+		assertEquals("e1000d2000", prevayler.prevalentSystem().toString());
+
+		Date paused = new Date(3000);
+		new AppendTime("x").executeOn(prevayler.prevalentSystem(), paused);
+		assertEquals("e1000d2000x3000", prevayler.prevalentSystem().toString());
+		prevayler.close();
+
+		_clock.advanceTo(5000);
+		prevayler = createPrevayler();
+		assertEquals("Recovered with the journaled times.", "e1000d2000", prevayler.prevalentSystem().toString());
+		prevayler.close();
+	}
+
+	public void testNanosWithHybridLogicalClock() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new HybridLogicalClock());
+		for (int i = 0; i < 100; i++) prevayler.execute(new AppendNanos());
+		prevayler.execute(new AppendTime(" "));
+		String executed = prevayler.prevalentSystem().toString();
+
+		String[] times = executed.substring(0, executed.lastIndexOf(' ')).split(",");
+		assertEquals(100, times.length);
+		for (int i = 1; i < times.length; i++) {
+			assertTrue(Long.parseLong(times[i]) > Long.parseLong(times[i - 1]));
+		}
+		prevayler.close();
+
+		prevayler = createPrevayler(new HybridLogicalClock());
+		assertEquals("Recovered with the journaled nanos.", executed, prevayler.prevalentSystem().toString());
+		prevayler.close();
+	}
+
+	public void testHybridLogicalClockDoesNotGoBackAcrossRestarts() throws Exception {
+		HybridLogicalClock ahead = new HybridLogicalClock();
+		ahead.advanceForwardToNanos((System.currentTimeMillis() + 3600000) * HybridLogicalClock.NANOS_PER_MILLI);
+		Prevayler<StringBuffer> prevayler = createPrevayler(ahead);
+		prevayler.execute(new AppendNanos());
+		prevayler.close();
+
+		prevayler = createPrevayler(new HybridLogicalClock());
+		prevayler.execute(new AppendNanos());
+		String[] times = prevayler.prevalentSystem().toString().split(",");
+		assertEquals(2, times.length);
+		assertTrue("Later than the recovered transaction, although the machine clock is behind it.", Long.parseLong(times[1]) > Long.parseLong(times[0]));
+		prevayler.close();
+	}
+
+	private Prevayler<StringBuffer> createPrevayler() throws Exception {
+		return createPrevayler(_clock);
+	}
+
+	private Prevayler<StringBuffer> createPrevayler(Clock clock) throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureClock(clock);
+		return factory.create();
+	}
+
+
+	static private class AppendTime extends EpochTransaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private final String _toAdd;
+
+		AppendTime(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, long executionTime) {
+			prevalentSystem.append(_toAdd).append(executionTime);
+		}
+	}
+
+
+	static private class AppendNanos extends NanoTransaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(StringBuffer prevalentSystem, long executionTime, int nanos) {
+			if (prevalentSystem.length() > 0) prevalentSystem.append(',');
+			prevalentSystem.append(executionTime * HybridLogicalClock.NANOS_PER_MILLI + nanos);
+		}
+	}
+
+
+	static private class AppendDate implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private final String _toAdd;
+
+		AppendDate(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			prevalentSystem.append(_toAdd).append(executionTime.getTime());
+		}
+	}
+
+}
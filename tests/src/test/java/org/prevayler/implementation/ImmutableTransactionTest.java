@@ -0,0 +1,130 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.util.Date;
+import java.util.List;
+
+import org.prevayler.ImmutableTransaction;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.ImmutabilityVerifier;
+
+public class ImmutableTransactionTest extends FileIOTest {
+
+	static Object _lastExecuted;
+
+	public void testImmutableTransactionsExecuteDirectlyInDeepCopyMode() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler();
+
+		ImmutableAppend append = new ImmutableAppend("a");
+		prevayler.execute(append);
+		assertSame(append, _lastExecuted);
+
+		ImmutableAppendWithQuery appendWithQuery = new ImmutableAppendWithQuery("b");
+		assertEquals("ab", prevayler.execute(appendWithQuery));
+		assertSame(appendWithQuery, _lastExecuted);
+
+		MutableAppend mutable = new MutableAppend("c");
+		prevayler.execute(mutable);
+		assertNotSame(mutable, _lastExecuted);
+		assertEquals("abc", prevayler.prevalentSystem().toString());
+		prevayler.close();
+
+		prevayler = createPrevayler();
+		assertEquals("abc", prevayler.prevalentSystem().toString());
+		prevayler.close();
+	}
+
+	public void testVerifier() {
+		ImmutabilityVerifier.verify(ImmutableAppend.class);
+		ImmutabilityVerifier.verify(ImmutableAppendWithQuery.class);
+
+		List problems = ImmutabilityVerifier.problems(MutableAppend.class);
+		assertEquals(problems.toString(), 2, problems.size());
+		assertTrue(problems.contains(MutableAppend.class.getName() + "._toAdd is not final"));
+		assertTrue(problems.contains(MutableAppend.class.getName() + "._when is not final"));
+
+		assertEquals(1, ImmutabilityVerifier.problems(NotFinal.class).size());
+		assertEquals(1, ImmutabilityVerifier.problems(WithArray.class).size());
+
+		try {
+			ImmutabilityVerifier.verify(WithMutableField.class);
+			fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+
+	private Prevayler<StringBuffer> createPrevayler() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		return factory.create();
+	}
+
+
+	static private final class ImmutableAppend implements Transaction<StringBuffer>, ImmutableTransaction {
+		private static final long serialVersionUID = 1L;
+		private final String _toAdd;
+
+		ImmutableAppend(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			_lastExecuted = this;
+			prevalentSystem.append(_toAdd);
+		}
+	}
+
+
+	static private final class ImmutableAppendWithQuery implements TransactionWithQuery<StringBuffer,String>, ImmutableTransaction {
+		private static final long serialVersionUID = 1L;
+		private final String _toAdd;
+
+		ImmutableAppendWithQuery(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public String executeAndQuery(StringBuffer prevalentSystem, Date executionTime) {
+			_lastExecuted = this;
+			return prevalentSystem.append(_toAdd).toString();
+		}
+	}
+
+
+	static private final class MutableAppend implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private String _toAdd;
+		private Integer _when;
+
+		MutableAppend(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			_lastExecuted = this;
+			prevalentSystem.append(_toAdd);
+		}
+	}
+
+
+	static private class NotFinal {
+		private final String _value = "";
+	}
+
+
+	static private final class WithArray {
+		private final String[] _values = new String[0];
+	}
+
+
+	static private final class WithMutableField {
+		private final Date _date = new Date();
+	}
+
+}
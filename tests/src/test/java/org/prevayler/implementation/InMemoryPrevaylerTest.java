@@ -0,0 +1,152 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+public class InMemoryPrevaylerTest extends TestCase {
+
+	public void testTransactionsAreNeverSerialized() throws Exception {
+		Prevayler<StringBuffer> prevayler = PrevaylerFactory.createInMemoryPrevayler(new StringBuffer());
+		Unserializable unserializable = new Unserializable();
+
+		prevayler.execute(new AppendUnserializable(unserializable, "a"));
+		assertEquals("ab", prevayler.execute(new AppendUnserializableWithQuery(unserializable, "b")));
+		assertEquals("ab", prevayler.prevalentSystem().toString());
+
+		try {
+			prevayler.takeSnapshot();
+			fail();
+		} catch (IOException expected) {}
+		prevayler.close();
+	}
+
+	public void testConfiguredInMemoryModeUsesNoSnapshots() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		File directory = new File("InMemoryPrevaylerTest" + System.currentTimeMillis());
+		factory.configurePrevalenceDirectory(directory.getPath());
+		factory.configureInMemoryMode(true);
+		Prevayler<StringBuffer> prevayler = factory.create();
+		try {
+			prevayler.takeSnapshot();
+			fail();
+		} catch (IOException expected) {}
+		prevayler.close();
+		assertFalse("No snapshot directory created.", directory.exists());
+	}
+
+	public void testLazyCapsuleSerializesOnDemand() {
+		TransactionCapsule<StringBuffer> capsule = new TransactionCapsule<StringBuffer>(new AppendTransaction("x"), new JavaSerializer(), false, true);
+		StringBuffer system = new StringBuffer();
+		capsule.executeOn(system, new Date(), new JavaSerializer());
+		assertEquals("x", system.toString());
+
+		Object copy = capsule.deserialize(new JavaSerializer());
+		assertEquals("x", ((AppendTransaction) copy).toAdd);
+	}
+
+	public void testBoundedHistory() throws Exception {
+		TransientJournal journal = new TransientJournal(2);
+		journal.update(null, 1);
+		Turn turn = Turn.first();
+		for (long version = 1; version <= 4; version++) {
+			journal.append(new TransactionGuide(timestamp(version), turn));
+			turn = turn.next();
+		}
+		assertEquals(5, journal.nextTransaction());
+
+		Recorder recorder = new Recorder();
+		journal.update(recorder, 3);
+		assertEquals(2, recorder._versions.size());
+		assertEquals(new Long(3), recorder._versions.get(0));
+		assertEquals(new Long(4), recorder._versions.get(1));
+
+		try {
+			journal.update(recorder, 2);
+			fail();
+		} catch (IOException expected) {}
+	}
+
+	public void testNoHistory() throws Exception {
+		TransientJournal journal = new TransientJournal(0);
+		journal.update(null, 1);
+		journal.append(new TransactionGuide(timestamp(1), Turn.first()));
+		assertEquals(2, journal.nextTransaction());
+
+		Recorder recorder = new Recorder();
+		journal.update(recorder, 2);
+		assertTrue(recorder._versions.isEmpty());
+		try {
+			journal.update(recorder, 1);
+			fail();
+		} catch (IOException expected) {}
+	}
+
+	private TransactionTimestamp timestamp(long version) {
+		return new TransactionTimestamp(new TransactionCapsule<StringBuffer>(new AppendTransaction("" + version), new JavaSerializer(), false), version, new Date());
+	}
+
+
+	static private class Recorder implements TransactionSubscriber {
+		final List _versions = new ArrayList();
+
+		public void receive(TransactionTimestamp transactionTimestamp) {
+			_versions.add(new Long(transactionTimestamp.systemVersion()));
+		}
+	}
+
+
+	static private class Unserializable {
+	}
+
+
+	static private class AppendUnserializable implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private final Unserializable _unserializable;
+		private final String _toAdd;
+
+		AppendUnserializable(Unserializable unserializable, String toAdd) {
+			_unserializable = unserializable;
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			prevalentSystem.append(_toAdd);
+		}
+	}
+
+
+	static private class AppendUnserializableWithQuery implements TransactionWithQuery<StringBuffer,String> {
+		private static final long serialVersionUID = 1L;
+		private final Unserializable _unserializable;
+		private final String _toAdd;
+
+		AppendUnserializableWithQuery(Unserializable unserializable, String toAdd) {
+			_unserializable = unserializable;
+			_toAdd = toAdd;
+		}
+
+		public String executeAndQuery(StringBuffer prevalentSystem, Date executionTime) {
+			return prevalentSystem.append(_toAdd).toString();
+		}
+	}
+
+}
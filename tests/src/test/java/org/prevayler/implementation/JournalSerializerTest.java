@@ -4,13 +4,18 @@ import org.prevayler.Clock;
 import org.prevayler.Prevayler;
 import org.prevayler.PrevaylerFactory;
 import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.AESSerializer;
+import org.prevayler.foundation.serialization.CompactSerializer;
 import org.prevayler.foundation.serialization.DESSerializer;
+import org.prevayler.foundation.serialization.DictionaryJavaSerializer;
 import org.prevayler.foundation.serialization.GZIPSerializer;
 import org.prevayler.foundation.serialization.JavaSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.foundation.serialization.XStreamSerializer;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -88,6 +93,65 @@ public class JournalSerializerTest extends FileIOTest {
         recover("journal", strategy);
 	}
 
+	public void testCompactJournal() throws Exception {
+		Serializer strategy = new CompactSerializer().register(AppendTransaction.class);
+
+		startAndCrash("compactjournal", strategy);
+
+		assertEquals("A;withQuery=false;systemVersion=1;executionTime=1000002\r\n" +
+				"\001@\002\006 first\r\n" +
+				"B;withQuery=false;systemVersion=2;executionTime=1000004\r\n" +
+				"\001@\002\007 second\r\n" +
+				"A;withQuery=false;systemVersion=3;executionTime=1000006\r\n" +
+				"\001@\002\006 third\r\n", journalContents("compactjournal"));
+
+		recover("compactjournal", strategy);
+	}
+
+	public void testDictionaryJournal() throws Exception {
+		startAndCrash("dictionaryjournal", new DictionaryJavaSerializer());
+
+		String contents = journalContents("dictionaryjournal");
+		assertTrue(contents.matches("(?s)[0-9A-F]+;classDescriptors=1\r\n.*"));
+		assertEquals(1, contents.split("classDescriptors").length - 1);
+		assertTrue(contents.indexOf("\r\n15;withQuery=false;systemVersion=1;executionTime=1000002\r\n") != -1);
+		assertTrue(contents.indexOf("\r\n16;withQuery=false;systemVersion=2;executionTime=1000004\r\n") != -1);
+		assertTrue(contents.indexOf("\r\n15;withQuery=false;systemVersion=3;executionTime=1000006\r\n") != -1);
+
+		recover("dictionaryjournal", new DictionaryJavaSerializer());
+	}
+
+	public void testDictionaryJournalWritesDefinitionsToEachFile() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer("the system"));
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureJournalSerializer(new DictionaryJavaSerializer());
+		factory.configureJournalFileSizeThreshold(1);
+		Prevayler<StringBuffer> prevayler = factory.create();
+		prevayler.execute(new AppendTransaction(" first"));
+		prevayler.execute(new AppendTransaction(" second"));
+		prevayler.close();
+
+		File[] journals = new File(_testDirectory).listFiles();
+		assertEquals(2, journals.length);
+		for (int i = 0; i < journals.length; i++) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journals[i]), "ISO-8859-1"));
+			assertTrue(reader.readLine().endsWith(";classDescriptors=1"));
+			reader.close();
+		}
+
+		recover("dictionaryjournal", new DictionaryJavaSerializer(), "the system first second");
+	}
+
+	public void testAESJournal() throws Exception {
+		Serializer serializer = new AESSerializer(new JavaSerializer(), "0123456789abcdef".getBytes());
+
+		startAndCrash("journal", serializer);
+		assertEquals(-1, journalContents("journal").indexOf("first"));
+
+		recover("journal", serializer);
+	}
+
 	public void testCompressedJournal() throws Exception {
         GZIPSerializer serializer = new GZIPSerializer(new MySerializer());
 
@@ -155,8 +219,13 @@ public class JournalSerializerTest extends FileIOTest {
 
 	private void recover(String suffix, Serializer journalSerializer)
 			throws Exception {
+		recover(suffix, journalSerializer, "the system first second third");
+	}
+
+	private void recover(String suffix, Serializer journalSerializer, String expected)
+			throws Exception {
 		Prevayler<StringBuffer> prevayler = createPrevayler(suffix, journalSerializer);
-		assertEquals("the system first second third", prevayler.prevalentSystem().toString());
+		assertEquals(expected, prevayler.prevalentSystem().toString());
 	}
 
 	private Prevayler<StringBuffer> createPrevayler(String suffix, Serializer journalSerializer)
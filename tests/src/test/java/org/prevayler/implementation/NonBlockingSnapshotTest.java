@@ -0,0 +1,169 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+public class NonBlockingSnapshotTest extends FileIOTest {
+
+	private static volatile CountDownLatch _serializing;
+	private static volatile CountDownLatch _releaseSerialization;
+
+	protected void tearDown() throws Exception {
+		_serializing = null;
+		_releaseSerialization = null;
+		super.tearDown();
+	}
+
+	public void testTransactionsProceedWhileSnapshotIsWritten() throws Exception {
+		final Prevayler<Items> prevayler = createPrevayler();
+		for (int i = 0; i < 3; i++) prevayler.execute(new AddItem("before" + i));
+
+		_serializing = new CountDownLatch(1);
+		_releaseSerialization = new CountDownLatch(1);
+		final File[] snapshot = new File[1];
+		Thread snapshotTaker = new Thread() {
+			public void run() {
+				try {
+					snapshot[0] = prevayler.takeSnapshot();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		snapshotTaker.start();
+		_serializing.await();
+
+		prevayler.execute(new AddItem("during"));  // Would deadlock if the live system were being serialized.
+		assertEquals(4, prevayler.execute(new CountItems()).intValue());
+
+		_releaseSerialization.countDown();
+		snapshotTaker.join();
+		assertEquals("0000000000000000003.snapshot", snapshot[0].getName());
+
+		prevayler.execute(new AddItem("after"));
+		prevayler.close();
+
+		Prevayler<Items> recovered = createPrevayler();
+		assertEquals(5, recovered.prevalentSystem()._items.size());
+		assertEquals("after", recovered.prevalentSystem()._items.get(4));
+		recovered.close();
+	}
+
+	public void testRuntimeExceptionsDoNotStopTheReplica() throws Exception {
+		Prevayler<Items> prevayler = createPrevayler();
+		try {
+			prevayler.execute(new AddItem(null));
+			fail();
+		} catch (IllegalArgumentException expected) {}
+		prevayler.execute(new AddItem("ok"));
+
+		assertEquals("0000000000000000002.snapshot", prevayler.takeSnapshot().getName());
+		prevayler.close();
+	}
+
+	public void testLateSubscriptionsReplayTheJournalWithoutBlockingPublications() throws Exception {
+		final CentralPublisher publisher = new CentralPublisher(new MachineClock(), new PersistentJournal(new PrevaylerDirectory(_testDirectory), 0, 0, false, "journal", new NullMonitor()));
+		publisher.subscribe(new TransactionSubscriber() {
+			public void receive(TransactionTimestamp transactionTimestamp) {}
+		}, 1);
+		for (int i = 0; i < 3; i++) publisher.publish(new TransactionCapsule<Items>(new AddItem("before" + i), new JavaSerializer(), true));
+
+		final CountDownLatch published = new CountDownLatch(1);
+		final boolean[] publishedDuringReplay = new boolean[1];
+		final List<Long> received = new ArrayList<Long>();
+		publisher.subscribe(new TransactionSubscriber() {
+			public void receive(TransactionTimestamp transactionTimestamp) {
+				received.add(new Long(transactionTimestamp.systemVersion()));
+				if (transactionTimestamp.systemVersion() != 1) return;
+
+				new Thread() {
+					public void run() {
+						publisher.publish(new TransactionCapsule<Items>(new AddItem("during"), new JavaSerializer(), true));
+						published.countDown();
+					}
+				}.start();
+				try {
+					publishedDuringReplay[0] = published.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, 1);
+
+		assertTrue("A publication was blocked by the replay of the journal.", publishedDuringReplay[0]);
+		assertEquals("[1, 2, 3, 4]", received.toString());
+		publisher.close();
+	}
+
+	private Prevayler<Items> createPrevayler() throws Exception {
+		PrevaylerFactory<Items> factory = new PrevaylerFactory<Items>();
+		factory.configurePrevalentSystem(new Items());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureNonBlockingSnapshots(true);
+		return factory.create();
+	}
+
+
+	static private class Items implements Serializable {
+		private static final long serialVersionUID = 1L;
+		final List<String> _items = new ArrayList<String>();
+
+		private void writeObject(ObjectOutputStream stream) throws IOException {
+			CountDownLatch serializing = _serializing;
+			if (serializing != null) {
+				serializing.countDown();
+				try {
+					_releaseSerialization.await();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted.");
+				}
+			}
+			stream.defaultWriteObject();
+		}
+	}
+
+
+	static private class AddItem implements Transaction<Items> {
+		private static final long serialVersionUID = 1L;
+		private final String _item;
+
+		AddItem(String item) {
+			_item = item;
+		}
+
+		public void executeOn(Items items, Date executionTime) {
+			if (_item == null) throw new IllegalArgumentException("Null item.");
+			items._items.add(_item);
+		}
+	}
+
+
+	static private class CountItems implements org.prevayler.Query<Items, Integer> {
+		public Integer query(Items items, Date executionTime) {
+			return items._items.size();
+		}
+	}
+
+}
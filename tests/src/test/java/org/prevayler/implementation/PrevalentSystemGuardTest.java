@@ -0,0 +1,128 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.prevayler.Transaction;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+
+public class PrevalentSystemGuardTest extends TestCase {
+
+	static PrevalentSystemGuard _guard;
+	static Boolean _guardLockedDuringDeserialization;
+	static int _deserializations;
+
+	public void testDeserializationHappensOutsideTheCriticalSection() {
+		_guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, new JavaSerializer());
+		_guardLockedDuringDeserialization = null;
+
+		byte[] bytes = new TransactionCapsule<StringBuffer>(new LockSpy(), new JavaSerializer(), false).serialized();
+		_guard.receive(new TransactionTimestamp(new TransactionCapsule<StringBuffer>(bytes), 1, new Date()));
+
+		assertEquals(Boolean.FALSE, _guardLockedDuringDeserialization);
+		assertEquals("spied", _guard.prevalentSystem().toString());
+	}
+
+	public void testDeepCopyIsDeserializedByTheGuardOutsideTheCriticalSection() {
+		_guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, new JavaSerializer());
+		_guardLockedDuringDeserialization = null;
+
+		TransactionCapsule<StringBuffer> capsule = new TransactionCapsule<StringBuffer>(new LockSpy(), new JavaSerializer(), true);
+		assertNull("The capsule must not deserialize its copy when it is created.", _guardLockedDuringDeserialization);
+
+		_guard.receive(new TransactionTimestamp(capsule, 1, new Date()));
+		assertEquals(Boolean.FALSE, _guardLockedDuringDeserialization);
+		assertEquals("spied", _guard.prevalentSystem().toString());
+	}
+
+	public void testPublishersPrepareTheDeepCopyBeforeItsTurn() throws Exception {
+		_guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, new JavaSerializer());
+		_deserializations = 0;
+		final int[] deserializationsWhenJournaled = new int[1];
+		CentralPublisher publisher = new CentralPublisher(new BrokenClock(), new TransientJournal() {
+			public void append(TransactionGuide guide) {
+				deserializationsWhenJournaled[0] = _deserializations;
+				super.append(guide);
+			}
+		});
+		_guard.subscribeTo(publisher);
+
+		TransactionCapsule<StringBuffer> capsule = new TransactionCapsule<StringBuffer>(new LockSpy(), new JavaSerializer(), true);
+		publisher.publish(capsule);
+		assertEquals("Deserialized before its turn.", 1, deserializationsWhenJournaled[0]);
+		assertEquals("The guard executed the prepared copy.", 1, _deserializations);
+		assertEquals("spied", _guard.prevalentSystem().toString());
+
+		capsule.transactionToExecute(new JavaSerializer());
+		assertEquals("Each prepared copy is handed out only once.", 2, _deserializations);
+	}
+
+	public void testPreparationErrorsAreThrownWhenTheTransactionIsExecuted() {
+		TransactionCapsule<StringBuffer> capsule = new TransactionCapsule<StringBuffer>(new Unreadable(), new JavaSerializer(), true);
+		capsule.prepareTransactionToExecute();
+
+		PrevalentSystemGuard<StringBuffer> guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, new JavaSerializer());
+		try {
+			guard.receive(new TransactionTimestamp(capsule, 1, new Date()));
+			fail();
+		} catch (Error expected) {}
+
+		try {
+			guard.prevalentSystem();
+			fail();
+		} catch (Error expected) {}
+	}
+
+	public void testDeserializationErrorsStillStopTheSystem() {
+		PrevalentSystemGuard<StringBuffer> guard = new PrevalentSystemGuard<StringBuffer>(new StringBuffer(), 0, new JavaSerializer());
+		try {
+			guard.receive(new TransactionTimestamp(new TransactionCapsule<StringBuffer>(new byte[] { 1, 2, 3 }), 1, new Date()));
+			fail();
+		} catch (Error expected) {}
+
+		try {
+			guard.prevalentSystem();
+			fail();
+		} catch (Error expected) {}
+	}
+
+
+	static private class LockSpy implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			prevalentSystem.append("spied");
+		}
+
+		private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+			stream.defaultReadObject();
+			_deserializations++;
+			_guardLockedDuringDeserialization = Boolean.valueOf(_guard != null && _guard.isLockedByCurrentThread());
+		}
+	}
+
+
+
+	static private class Unreadable implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			prevalentSystem.append("unreadable");
+		}
+
+		private void readObject(ObjectInputStream stream) throws IOException {
+			throw new IOException("Unreadable on purpose.");
+		}
+	}
+
+}
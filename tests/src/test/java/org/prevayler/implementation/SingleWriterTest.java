@@ -0,0 +1,94 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation;
+
+import java.util.Date;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.SingleWriterPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+public class SingleWriterTest extends FileIOTest {
+
+	public void testConcurrentTransactionsAndRecovery() throws Exception {
+		final Prevayler<StringBuffer> prevayler = createPrevayler();
+		Thread[] threads = new Thread[16];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 100; i++) prevayler.execute(new AppendTransaction("x"));
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++) threads[t].join();
+
+		assertEquals(1600, prevayler.prevalentSystem().length());
+		assertEquals("y", prevayler.execute(new AppendTransactionWithQuery("y")).substring(1600));
+		prevayler.close();
+
+		Prevayler<StringBuffer> recovered = createPrevayler();
+		assertEquals(1601, recovered.prevalentSystem().length());
+		recovered.close();
+	}
+
+	public void testRuntimeExceptionsReachTheCaller() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler();
+		try {
+			prevayler.execute(new Failing());
+			fail();
+		} catch (IllegalArgumentException expected) {}
+
+		prevayler.execute(new AppendTransaction("ok"));
+		assertEquals("ok", prevayler.prevalentSystem().toString());
+		prevayler.close();
+
+		try {
+			prevayler.execute(new AppendTransaction("closed"));
+			fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	public void testPublicationsFailWhenTheWriterThreadExits() throws Exception {
+		SingleWriterPublisher publisher = new SingleWriterPublisher(new MachineClock(), new TransientJournal());
+		publisher.subscribe(new TransactionSubscriber() {
+			public void receive(TransactionTimestamp transactionTimestamp) {
+				Thread.currentThread().interrupt();  //Makes the writer thread exit when it next waits for the queue.
+			}
+		}, 1);
+
+		publisher.publish(new TransactionCapsule<StringBuffer>(new AppendTransaction("x"), new JavaSerializer(), false));
+		for (int i = 0; i < 10; i++) {
+			try {
+				publisher.publish(new TransactionCapsule<StringBuffer>(new AppendTransaction("y"), new JavaSerializer(), false));
+				fail();
+			} catch (IllegalStateException expected) {}
+		}
+	}
+
+	private Prevayler<StringBuffer> createPrevayler() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureSingleWriter(true);
+		return factory.create();
+	}
+
+
+	static private class Failing implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+			throw new IllegalArgumentException("Failing on purpose.");
+		}
+	}
+
+}
@@ -4,7 +4,9 @@ import junit.framework.AssertionFailedError;
 import org.prevayler.Prevayler;
 import org.prevayler.PrevaylerFactory;
 import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.CompactSerializer;
 import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.ParallelGZIPSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.foundation.serialization.XStreamSerializer;
 
@@ -19,6 +21,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.zip.Deflater;
 
 public class SnapshotSerializerTest extends FileIOTest {
 
@@ -27,8 +30,10 @@ public class SnapshotSerializerTest extends FileIOTest {
 
 		takeSnapshot(serializer);
 
-		assertEquals("Yes, this is MySerializationStrategy!\n" +
-				"the system first second third\n", snapshotContents());
+		String contents = snapshotContents();
+		assertTrue(contents.startsWith("PRVLSNAP"));  // The snapshot container header.
+		assertTrue(contents.endsWith("Yes, this is MySerializationStrategy!\n" +
+				"the system first second third\n"));
 
 		recover(serializer);
 	}
@@ -50,6 +55,34 @@ public class SnapshotSerializerTest extends FileIOTest {
 		recover(serializer);
 	}
 
+	public void testStreamingXStreamSnapshot() throws Exception {
+		Serializer serializer = new XStreamSerializer("UTF-8", XStreamSerializer.STREAMING_XML);
+
+		takeSnapshot(serializer);
+		recover(serializer);
+	}
+
+	public void testBinaryXStreamSnapshot() throws Exception {
+		Serializer serializer = new XStreamSerializer(null, XStreamSerializer.BINARY);
+
+		takeSnapshot(serializer);
+		recover(serializer);
+	}
+
+	public void testCompactSnapshot() throws Exception {
+		Serializer serializer = new CompactSerializer();
+
+		takeSnapshot(serializer);
+		recover(serializer);
+	}
+
+	public void testParallelGZIPSnapshot() throws Exception {
+		Serializer serializer = new ParallelGZIPSerializer(new JavaSerializer(), 16, Deflater.BEST_SPEED);
+
+		takeSnapshot(serializer);
+		recover(serializer);
+	}
+
 	private void takeSnapshot(Serializer snapshotSerializer) throws Exception {
 		Prevayler<StringBuffer> prevayler = createPrevayler(snapshotSerializer);
 
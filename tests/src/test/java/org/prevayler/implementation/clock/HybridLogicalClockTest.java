@@ -0,0 +1,43 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.clock;
+
+import junit.framework.TestCase;
+
+public class HybridLogicalClockTest extends TestCase {
+
+	public void testStrictlyIncreasing() {
+		HybridLogicalClock clock = new HybridLogicalClock();
+		long before = System.currentTimeMillis();
+		long last = clock.nanos();
+		assertTrue(HybridLogicalClock.millisOf(last) >= before);
+		for (int i = 0; i < 100000; i++) {
+			long next = clock.nanos();
+			assertTrue(next > last);
+			last = next;
+		}
+		assertTrue(clock.millis() >= HybridLogicalClock.millisOf(last));
+		assertEquals(clock.millis(), clock.time().getTime());
+	}
+
+	public void testAdvanceForward() {
+		HybridLogicalClock clock = new HybridLogicalClock();
+		long future = (System.currentTimeMillis() + 60000) * HybridLogicalClock.NANOS_PER_MILLI + 7;
+		clock.advanceForwardToNanos(future);
+		clock.advanceForwardToNanos(future - 1000);
+		assertEquals(future + 1, clock.nanos());
+		assertEquals(HybridLogicalClock.millisOf(future), clock.time().getTime());
+	}
+
+	public void testSplitting() {
+		assertEquals(1234, HybridLogicalClock.millisOf(1234567890));
+		assertEquals(567890, HybridLogicalClock.nanosOfMilli(1234567890));
+		assertEquals(-1, HybridLogicalClock.millisOf(-1));
+		assertEquals(999999, HybridLogicalClock.nanosOfMilli(-1));
+		assertEquals(-1, HybridLogicalClock.millisOf(-HybridLogicalClock.NANOS_PER_MILLI));
+		assertEquals(0, HybridLogicalClock.nanosOfMilli(-HybridLogicalClock.NANOS_PER_MILLI));
+	}
+
+}
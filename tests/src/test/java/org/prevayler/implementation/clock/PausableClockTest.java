@@ -0,0 +1,110 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.clock;
+
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class PausableClockTest extends TestCase {
+
+	public void testPausesAreCounted() {
+		BrokenClock real = new BrokenClock(new Date(1000));
+		PausableClock clock = new PausableClock(real);
+		assertEquals(1000, clock.time().getTime());
+
+		clock.pause();
+		clock.pause();
+		real.advanceTo(new Date(2000));
+		assertEquals("Paused at the real time of the first pause.", 1000, clock.time().getTime());
+
+		clock.advanceTo(new Date(1500));
+		assertEquals(1500, clock.time().getTime());
+
+		clock.resume();
+		assertEquals("Still paused once.", 1500, clock.time().getTime());
+
+		clock.resume();
+		assertEquals(2000, clock.time().getTime());
+
+		try {
+			clock.resume();
+			fail();
+		} catch (IllegalStateException expected) {}
+	}
+
+	public void testRepausingFollowsTheRealClock() {
+		BrokenClock real = new BrokenClock(new Date(1000));
+		PausableClock clock = new PausableClock(real);
+		clock.pause();
+		clock.resume();
+		real.advanceTo(new Date(3000));
+		clock.pause();
+		assertEquals(3000, clock.time().getTime());
+	}
+
+	public void testMachineClockNeverGoesBackwards() {
+		MachineClock clock = new MachineClock();
+		Date first = clock.time();
+		clock.advanceTo(new Date(first.getTime() + 60000));
+		assertEquals(first.getTime() + 60000, clock.time().getTime());
+		assertTrue(Math.abs(first.getTime() - System.currentTimeMillis()) < 60000);
+	}
+
+	public void testMillis() {
+		BrokenClock real = new BrokenClock(new Date(1000));
+		PausableClock clock = new PausableClock(real);
+		assertEquals(1000, clock.realTimeMillis());
+
+		clock.pause();
+		real.advanceTo(2000);
+		assertEquals(2000, clock.realTimeMillis());
+		assertEquals(1000, clock.time().getTime());
+
+		clock.advanceTo(1500);
+		Date paused = clock.time();
+		assertEquals(1500, paused.getTime());
+		assertSame(paused, clock.time());
+		clock.advanceTo(1500);
+		assertSame(paused, clock.time());
+
+		clock.resume();
+		Date resumed = clock.time();
+		assertEquals(2000, resumed.getTime());
+		assertSame(resumed, real.time());
+		assertEquals(2000, real.millis());
+	}
+
+	public void testTimesBeforeTheEpoch() {
+		BrokenClock real = new BrokenClock(new Date(-1000));
+		PausableClock clock = new PausableClock(real);
+		clock.pause();
+		assertEquals(-1000, clock.time().getTime());
+		clock.advanceTo(-1);
+		assertEquals(-1, clock.time().getTime());
+		clock.resume();
+
+		try {
+			clock.advanceTo(Long.MAX_VALUE);
+			fail();
+		} catch (IllegalArgumentException expected) {}
+	}
+
+	public void testBrokenClockSubclassesOverridingOnlyTime() {
+		BrokenClock real = new BrokenClock() {
+			public Date time() {
+				return new Date(4242);
+			}
+		};
+		PausableClock clock = new PausableClock(real);
+		assertEquals(4242, clock.realTimeMillis());
+		assertEquals(4242 * HybridLogicalClock.NANOS_PER_MILLI, clock.realTimeNanos());
+
+		clock.pause();
+		assertEquals(4242, clock.time().getTime());
+		clock.resume();
+	}
+
+}
@@ -0,0 +1,154 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionRejectedException;
+import org.prevayler.foundation.Cool;
+
+public class AdmissionControlTest extends TestCase {
+
+	public void testFastRejectionWhenTooManyInFlight() {
+		AdmissionControl control = new AdmissionControl(2, 0);
+		control.admit();
+		control.admit();
+		assertEquals(2, control.inFlight());
+		assertRejected(control);
+		assertEquals(1, control.rejected());
+
+		control.release();
+		control.admit();
+		assertEquals(3, control.admitted());
+	}
+
+	public void testTimedWait() throws Exception {
+		final AdmissionControl control = new AdmissionControl(1, 5000);
+		control.admit();
+
+		Thread waiter = new Thread() {
+			public void run() {
+				control.admit();
+			}
+		};
+		waiter.start();
+		while (control.queueDepth() == 0) Cool.sleep(5);
+
+		control.release();
+		waiter.join();
+		assertEquals(1, control.inFlight());
+		assertEquals(0, control.queueDepth());
+		assertEquals(0, control.rejected());
+	}
+
+	public void testTimedWaitExpires() {
+		AdmissionControl control = new AdmissionControl(1, 50);
+		control.admit();
+		long start = System.currentTimeMillis();
+		assertRejected(control);
+		assertTrue(System.currentTimeMillis() - start >= 40);
+	}
+
+	public void testRateLimit() {
+		AdmissionControl control = new AdmissionControl(AdmissionControl.UNLIMITED, 0, 1, 3);
+		for (int i = 0; i < 3; i++) {
+			control.admit();
+			control.release();
+		}
+		assertRejected(control);
+
+		control = new AdmissionControl(AdmissionControl.UNLIMITED, 1000, 20, 1);
+		control.admit();
+		long start = System.currentTimeMillis();
+		control.admit(); // Waits about 50ms for the next token.
+		assertTrue(System.currentTimeMillis() - start >= 30);
+	}
+
+	public void testRejectionRefundsTheToken() {
+		AdmissionControl control = new AdmissionControl(1, 0, 1, 2);
+		control.admit();
+		assertRejected(control); // Takes the second token, then finds no permit.
+		control.release();
+		control.admit(); // Would wait a second for a new token if the second one had not been given back.
+		assertEquals(2, control.admitted());
+	}
+
+	public void testPrevaylerRejectsWhileTheJournalIsBusy() throws Exception {
+		checkPrevaylerRejection(false);
+		checkPrevaylerRejection(true);
+	}
+
+	private void checkPrevaylerRejection(boolean singleWriter) throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configureTransientMode(true);
+		factory.configureSingleWriter(singleWriter);
+		factory.configureAdmissionControl(1, 0);
+		final Prevayler<StringBuffer> prevayler = factory.create();
+
+		final CountDownLatch started = new CountDownLatch(1);
+		Thread slow = new Thread() {
+			public void run() {
+				prevayler.execute(new Slow(started));
+			}
+		};
+		slow.start();
+		started.await();
+
+		try {
+			prevayler.execute(new Append("rejected"));
+			fail();
+		} catch (TransactionRejectedException expected) {}
+
+		slow.join();
+		prevayler.execute(new Append("admitted"));
+		assertEquals("admitted", prevayler.prevalentSystem().toString());
+		prevayler.close();
+	}
+
+
+	private void assertRejected(AdmissionControl control) {
+		try {
+			control.admit();
+			fail();
+		} catch (TransactionRejectedException expected) {}
+	}
+
+
+	static private class Append implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private final String _text;
+
+		Append(String text) {
+			_text = text;
+		}
+
+		public void executeOn(StringBuffer system, Date executionTime) {
+			system.append(_text);
+		}
+	}
+
+
+	static private class Slow implements Transaction<StringBuffer> {
+		private static final long serialVersionUID = 1L;
+		private static CountDownLatch _started; // The executed copy is deserialized, so the latch cannot be a field of it.
+
+		Slow(CountDownLatch started) {
+			_started = started;
+		}
+
+		public void executeOn(StringBuffer system, Date executionTime) {
+			_started.countDown();
+			Cool.sleep(300);
+		}
+	}
+
+}
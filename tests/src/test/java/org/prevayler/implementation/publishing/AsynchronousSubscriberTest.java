@@ -0,0 +1,105 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.prevayler.foundation.Cool;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+
+public class AsynchronousSubscriberTest extends TestCase {
+
+	public void testSlowAsynchronousSubscriberDoesNotDelayPublication() throws Exception {
+		CentralPublisher publisher = new CentralPublisher(new MachineClock(), new TransientJournal());
+		Recorder synchronous = new Recorder();
+		SlowRecorder asynchronous = new SlowRecorder();
+		publisher.subscribe(asynchronous, 1);
+		publisher.subscribe(synchronous, 1);
+
+		for (int i = 0; i < 5; i++) publisher.publish(new NullCapsule());
+		assertEquals(5, synchronous.count());
+		assertEquals(0, asynchronous.count());
+
+		asynchronous._gate.countDown();
+		asynchronous.awaitCount(5);
+		asynchronous.assertInOrder();
+
+		publisher.cancelSubscription(asynchronous);
+		publisher.publish(new NullCapsule());
+		assertEquals(6, synchronous.count());
+		Cool.sleep(50);
+		assertEquals(5, asynchronous.count());
+	}
+
+
+	static class Recorder implements TransactionSubscriber {
+		private final List _versions = new ArrayList();
+
+		public void receive(TransactionTimestamp transactionTimestamp) {
+			synchronized (_versions) {
+				_versions.add(new Long(transactionTimestamp.systemVersion()));
+				_versions.notifyAll();
+			}
+		}
+
+		int count() {
+			synchronized (_versions) {
+				return _versions.size();
+			}
+		}
+
+		void awaitCount(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (_versions) {
+				while (_versions.size() < count && System.currentTimeMillis() < deadline) _versions.wait(100);
+			}
+			assertEquals(count, count());
+		}
+
+		void assertInOrder() {
+			synchronized (_versions) {
+				for (int i = 0; i < _versions.size(); i++) assertEquals(new Long(i + 1), _versions.get(i));
+			}
+		}
+	}
+
+
+	static class SlowRecorder extends Recorder implements AsynchronousTransactionSubscriber {
+		final CountDownLatch _gate = new CountDownLatch(1);
+
+		public void receive(TransactionTimestamp transactionTimestamp) {
+			try {
+				assertTrue(_gate.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Cool.unexpected(e);
+			}
+			super.receive(transactionTimestamp);
+		}
+	}
+
+
+	static class NullCapsule extends Capsule {
+		private static final long serialVersionUID = 1L;
+
+		NullCapsule() {
+			super(new byte[0]);
+		}
+
+		protected void justExecute(Object transaction, Object prevalentSystem, long executionTime, int nanos) {}
+
+		public Capsule cleanCopy() {
+			return this;
+		}
+	}
+
+}
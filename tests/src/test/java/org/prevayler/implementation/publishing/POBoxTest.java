@@ -0,0 +1,109 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.publishing;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.prevayler.foundation.Cool;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+
+public class POBoxTest extends TestCase {
+
+	public void testBlockingOverflow() throws Exception {
+		GatedSubscriber delegate = new GatedSubscriber();
+		final POBox poBox = new POBox(delegate, 2, POBox.OverflowPolicy.BLOCK, null);
+
+		Thread publisher = new Thread() {
+			public void run() {
+				for (long version = 1; version <= 10; version++) {
+					poBox.receive(new TransactionTimestamp(new NullCapsule(), version, new Date()));
+				}
+			}
+		};
+		publisher.start();
+		while (poBox.blockedPublications() == 0) Cool.sleep(10);
+		assertTrue(poBox.maxQueueDepth() <= 2);
+		assertTrue(publisher.isAlive());
+
+		delegate.open();
+		publisher.join();
+		poBox.waitToEmpty();
+		delegate.assertReceivedInOrder(10);
+		assertEquals(0, poBox.queueDepth());
+		assertEquals(0, poBox.resubscriptions());
+	}
+
+	public void testDisconnectAndResubscribe() throws Exception {
+		CentralPublisher publisher = new CentralPublisher(new MachineClock(), new TransientJournal());
+		GatedSubscriber delegate = new GatedSubscriber();
+		POBox poBox = new POBox(delegate, 2, POBox.OverflowPolicy.DISCONNECT_AND_RESUBSCRIBE, publisher);
+		publisher.subscribe(poBox, 1);
+
+		for (int i = 0; i < 20; i++) publisher.publish(new NullCapsule());
+		assertEquals("Publishers must not block.", 0, poBox.blockedPublications());
+
+		delegate.open();
+		poBox.waitToEmpty();
+		delegate.assertReceivedInOrder(20);
+		assertTrue(poBox.resubscriptions() >= 1);
+		assertNull(poBox.resubscriptionFailure());
+
+		publisher.publish(new NullCapsule());
+		poBox.waitToEmpty();
+		delegate.assertReceivedInOrder(21);
+	}
+
+
+	static private class GatedSubscriber implements TransactionSubscriber {
+		private final CountDownLatch _gate = new CountDownLatch(1);
+		private final List _versions = new ArrayList();
+
+		public void receive(TransactionTimestamp transactionTimestamp) {
+			try {
+				_gate.await();
+			} catch (InterruptedException e) {
+				Cool.unexpected(e);
+			}
+			synchronized (_versions) {
+				_versions.add(new Long(transactionTimestamp.systemVersion()));
+			}
+		}
+
+		void open() {
+			_gate.countDown();
+		}
+
+		void assertReceivedInOrder(int count) {
+			synchronized (_versions) {
+				assertEquals(_versions.toString(), count, _versions.size());
+				for (int i = 0; i < count; i++) assertEquals(new Long(i + 1), _versions.get(i));
+			}
+		}
+	}
+
+
+	static private class NullCapsule extends Capsule {
+		private static final long serialVersionUID = 1L;
+
+		NullCapsule() {
+			super(new byte[0]);
+		}
+
+		protected void justExecute(Object transaction, Object prevalentSystem, long executionTime, int nanos) {}
+
+		public Capsule cleanCopy() {
+			return this;
+		}
+	}
+
+}
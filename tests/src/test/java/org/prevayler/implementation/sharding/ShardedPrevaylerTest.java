@@ -0,0 +1,151 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.sharding;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.TransactionWithQuery;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.ImmutabilityVerifier;
+import org.prevayler.implementation.AppendTransaction;
+import org.prevayler.implementation.AppendTransactionWithQuery;
+
+public class ShardedPrevaylerTest extends FileIOTest {
+
+	public void testRoutingAndRecovery() throws Exception {
+		ShardedPrevayler<StringBuffer> prevayler = createPrevayler();
+		assertEquals(3, prevayler.numberOfShards());
+
+		prevayler.execute(new AppendTransaction("0a"));
+		prevayler.execute(new AppendTransaction("1b"));
+		prevayler.execute(new AppendTransaction("2c"));
+		prevayler.execute(new AppendTransaction("4d"));
+		assertEquals("the system1b4d1", prevayler.execute(new AppendTransactionWithQuery("1")));
+
+		assertShards(prevayler, "the system0a", "the system1b4d1", "the system2c");
+		prevayler.close();
+
+		prevayler = createPrevayler();
+		assertShards(prevayler, "the system0a", "the system1b4d1", "the system2c");
+		prevayler.close();
+	}
+
+	public void testEachShardHasItsOwnDirectory() throws Exception {
+		ShardedPrevayler<StringBuffer> prevayler = createPrevayler();
+		prevayler.execute(new AppendTransaction("2x"));
+		File snapshot = prevayler.takeSnapshot(2);
+		prevayler.close();
+
+		assertEquals(new File(_testDirectory, "shard2").getAbsoluteFile(), snapshot.getParentFile().getAbsoluteFile());
+		assertTrue(new File(_testDirectory, "shard0").isDirectory());
+		assertTrue(new File(_testDirectory, "shard1").isDirectory());
+
+		prevayler = createPrevayler();
+		assertShards(prevayler, "the system", "the system", "the system2x");
+		prevayler.close();
+	}
+
+	public void testCrossShardTransactions() throws Exception {
+		ShardedPrevayler<StringBuffer> prevayler = createPrevayler();
+		assertEquals(1, prevayler.execute(new AppendToShards("!"), new int[] { 2, 0, 2 }));
+		prevayler.execute(new AppendTransaction("1y"));
+		assertEquals(2, prevayler.execute(new AppendToShards("?"), new int[] { 0, 1, 2 }));
+		assertShards(prevayler, "the system!0?0", "the system1y?1", "the system!2?2");
+
+		prevayler.takeSnapshot(1);
+		prevayler.close();
+
+		prevayler = createPrevayler();
+		assertEquals(2, prevayler.lastGlobalSequence());
+		assertShards(prevayler, "the system!0?0", "the system1y?1", "the system!2?2");
+		assertEquals(3, prevayler.execute(new AppendToShards("."), new int[] { 1 }));
+		prevayler.close();
+	}
+
+	public void testInvalidCrossShardIndexes() throws Exception {
+		ShardedPrevayler<StringBuffer> prevayler = createPrevayler();
+		try {
+			prevayler.execute(new AppendToShards("!"), new int[] { 0, 3 });
+			fail();
+		} catch (IllegalArgumentException expected) {}
+		assertEquals(0, prevayler.lastGlobalSequence());
+		prevayler.close();
+	}
+
+	public void testTransientShards() throws Exception {
+		PrevaylerFactory<StringBuffer> factory = factory();
+		factory.configureTransientMode(true);
+		ShardedPrevayler<StringBuffer> prevayler = factory.createShardedPrevayler(3, new FirstDigitKey());
+		prevayler.execute(new AppendTransaction("1t"));
+		assertShards(prevayler, "the system", "the system1t", "the system");
+		prevayler.close();
+
+		String[] files = new File(_testDirectory, "shard1").list();
+		for (int i = 0; files != null && i < files.length; i++) assertFalse(files[i], files[i].endsWith(".journal"));
+		prevayler = factory.createShardedPrevayler(3, new FirstDigitKey());
+		assertShards(prevayler, "the system", "the system", "the system");
+		prevayler.close();
+	}
+
+	public void testImmutableWrappersAreFinalWithFinalFields() throws Exception {
+		// Only the declared type of the wrapped transaction, an interface, cannot be verified. wrap() only uses these wrappers for ImmutableTransactions.
+		assertEquals(Collections.singletonList(Transaction.class.getName() + " is not final"),
+				ImmutabilityVerifier.problems(Class.forName(ShardTransaction.class.getName() + "$Immutable")));
+		assertEquals(Collections.singletonList(TransactionWithQuery.class.getName() + " is not final"),
+				ImmutabilityVerifier.problems(Class.forName(ShardTransactionWithQuery.class.getName() + "$Immutable")));
+	}
+
+	private void assertShards(ShardedPrevayler<StringBuffer> prevayler, String shard0, String shard1, String shard2) throws Exception {
+		assertEquals(shard0, prevayler.prevalentSystem(0).toString());
+		assertEquals(shard1, prevayler.prevalentSystem(1).toString());
+		assertEquals(shard2, prevayler.prevalentSystem(2).toString());
+	}
+
+	private ShardedPrevayler<StringBuffer> createPrevayler() throws Exception {
+		return factory().createShardedPrevayler(3, new FirstDigitKey());
+	}
+
+	private PrevaylerFactory<StringBuffer> factory() {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer("the system"));
+		factory.configurePrevalenceDirectory(_testDirectory);
+		return factory;
+	}
+
+
+	static private class FirstDigitKey implements ShardKeyFunction {
+
+		private static final long serialVersionUID = 1L;
+
+		public Object keyFor(Object transactionOrQuery) {
+			String toAdd = transactionOrQuery instanceof AppendTransaction
+					? ((AppendTransaction) transactionOrQuery).toAdd
+					: ((AppendTransactionWithQuery) transactionOrQuery).toAdd;
+			return new Integer(toAdd.charAt(0) - '0');
+		}
+
+	}
+
+
+	static private class AppendToShards implements CrossShardTransaction<StringBuffer> {
+
+		private static final long serialVersionUID = 1L;
+		private final String _toAdd;
+
+		AppendToShards(String toAdd) {
+			_toAdd = toAdd;
+		}
+
+		public void executeOn(StringBuffer prevalentSystem, int shard, Date executionTime) {
+			prevalentSystem.append(_toAdd).append(shard);
+		}
+
+	}
+
+}
@@ -0,0 +1,155 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Clock;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.AppendTransaction;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.clock.MachineClock;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+public class AutomaticSnapshotsTest extends FileIOTest {
+
+	private final List _taken = Collections.synchronizedList(new ArrayList());
+
+	public void testTransactionThreshold() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new SnapshotPolicy(3, 0));
+		for (int i = 0; i < 3; i++) prevayler.execute(new AppendTransaction("x"));
+		waitForSnapshots(1);
+		for (int i = 0; i < 2; i++) prevayler.execute(new AppendTransaction("x"));
+		Cool.sleep(50);
+		assertEquals(1, _taken.size());
+		prevayler.execute(new AppendTransaction("x"));
+		waitForSnapshots(2);
+		prevayler.close();
+
+		assertEquals("0000000000000000003.snapshot", _taken.get(0));
+		assertEquals("0000000000000000006.snapshot", _taken.get(1));
+	}
+
+	public void testJournalBytesThreshold() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new SnapshotPolicy(0, 1000));
+		prevayler.execute(new AppendTransaction("x"));
+		Cool.sleep(50);
+		assertTrue(_taken.isEmpty());
+
+		prevayler.execute(new AppendTransaction(new String(new char[1000])));
+		waitForSnapshots(1);
+		prevayler.close();
+	}
+
+	public void testTransactionsSinceLastSnapshotAreCountedUponRecovery() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new SnapshotPolicy(1000000, 1000000));
+		for (int i = 0; i < 5; i++) prevayler.execute(new AppendTransaction("x"));
+		prevayler.close();
+		assertTrue(_taken.isEmpty());
+
+		prevayler = createPrevayler(new SnapshotPolicy(6, 0));  // The five recovered transactions count.
+		prevayler.execute(new AppendTransaction("x"));
+		waitForSnapshots(1);
+		prevayler.close();
+		assertEquals("0000000000000000006.snapshot", _taken.get(0));
+	}
+
+	public void testSnapshotsTakenOnDemandRestartTheCount() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new SnapshotPolicy(3, 0));
+		for (int i = 0; i < 2; i++) prevayler.execute(new AppendTransaction("x"));
+		prevayler.takeSnapshot();
+		for (int i = 0; i < 2; i++) prevayler.execute(new AppendTransaction("x"));
+		Cool.sleep(50);
+		assertTrue(_taken.isEmpty());
+
+		prevayler.execute(new AppendTransaction("x"));
+		waitForSnapshots(1);
+		prevayler.close();
+		assertEquals("0000000000000000005.snapshot", _taken.get(0));
+	}
+
+	public void testJournalBytesSinceLastSnapshotAreEstimatedUponRecovery() throws Exception {
+		Prevayler<StringBuffer> prevayler = createPrevayler(new SnapshotPolicy(0, 1000000));
+		prevayler.execute(new AppendTransaction(new String(new char[1000])));
+		prevayler.close();
+		assertTrue(_taken.isEmpty());
+
+		prevayler = createPrevayler(new SnapshotPolicy(0, 1000));
+		prevayler.execute(new AppendTransaction("x"));
+		waitForSnapshots(1);
+		prevayler.close();
+	}
+
+	public void testQuietWindow() throws Exception {
+		Calendar now = Calendar.getInstance();
+		int hour = now.get(Calendar.HOUR_OF_DAY);
+		SnapshotPolicy policy = new SnapshotPolicy(1, 0).addQuietWindow(hour, 0, (hour + 2) % 24, 0);
+		assertTrue(policy.isQuiet(now.getTime()));
+		now.add(Calendar.HOUR_OF_DAY, 3);
+		assertFalse(policy.isQuiet(now.getTime()));
+
+		Prevayler<StringBuffer> prevayler = createPrevayler(policy);
+		prevayler.execute(new AppendTransaction("x"));
+		Cool.sleep(200);
+		prevayler.close();
+		assertTrue(_taken.isEmpty());
+	}
+
+	public void testQuietWindowFollowsTheWallClock() throws Exception {
+		Calendar now = Calendar.getInstance();
+		int hour = now.get(Calendar.HOUR_OF_DAY);
+		SnapshotPolicy policy = new SnapshotPolicy(1, 0).addQuietWindow(hour, 0, (hour + 2) % 24, 0);
+		BrokenClock clock = new BrokenClock();
+		clock.advanceTo(now.getTimeInMillis() + 12 * 60 * 60 * 1000L);  // Outside the window.
+
+		Prevayler<StringBuffer> prevayler = createPrevayler(policy, clock);
+		prevayler.execute(new AppendTransaction("x"));
+		Cool.sleep(200);
+		prevayler.close();
+		assertTrue(_taken.isEmpty());
+	}
+
+	public void testQuietWindowSpanningMidnight() {
+		SnapshotPolicy policy = new SnapshotPolicy(1, 0).addQuietWindow(22, 0, 6, 0);
+		Calendar time = Calendar.getInstance();
+		time.set(Calendar.HOUR_OF_DAY, 23);
+		assertTrue(policy.isQuiet(time.getTime()));
+		time.set(Calendar.HOUR_OF_DAY, 5);
+		assertTrue(policy.isQuiet(time.getTime()));
+		time.set(Calendar.HOUR_OF_DAY, 12);
+		assertFalse(policy.isQuiet(time.getTime()));
+	}
+
+	private void waitForSnapshots(int count) {
+		for (int i = 0; i < 500 && _taken.size() < count; i++) Cool.sleep(10);
+		assertEquals(count, _taken.size());
+	}
+
+	private Prevayler<StringBuffer> createPrevayler(SnapshotPolicy policy) throws Exception {
+		return createPrevayler(policy, new MachineClock());
+	}
+
+	private Prevayler<StringBuffer> createPrevayler(SnapshotPolicy policy, Clock clock) throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configureClock(clock);
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureSnapshotPolicy(policy, new SnapshotListener() {
+			public void snapshotTaken(File snapshot, long transactions, long durationMillis, long sizeInBytes) {
+				assertTrue(durationMillis >= 0);
+				assertEquals(snapshot.length(), sizeInBytes);
+				_taken.add(snapshot.getName());
+			}
+
+			public void snapshotFailed(Exception exception) {
+				throw new RuntimeException(exception);
+			}
+		});
+		return factory.create();
+	}
+
+}
@@ -51,6 +51,26 @@ public class GenericSnapshotManagerTest extends FileIOTest {
 		}
 	}
 
+	public void testXStreamFormatsHaveTheirOwnSuffixes() {
+		assertEquals("xstream", new XStreamSerializer().suffixPrefix());
+		assertEquals("xstreamstax", new XStreamSerializer(null, XStreamSerializer.STREAMING_XML).suffixPrefix());
+		assertEquals("xstreambinary", new XStreamSerializer(null, XStreamSerializer.BINARY).suffixPrefix());
+	}
+
+	public void testSwitchingXStreamFormatIsDetected() throws Exception {
+		Prevayler<StringBuffer> first = createPrevayler(new XStreamSerializer(null, XStreamSerializer.BINARY));
+		appendTakeSnapshotAndClose(first);
+		checkSnapshotAndDeleteJournal("0000000000000000002.xstreambinarysnapshot", "0000000000000000001.journal");
+
+		try {
+			createPrevayler(new XStreamSerializer());
+			fail();
+		} catch (IOException e) {
+			assertTrue("Actual message was <" + e.getMessage() + ">",
+					e.getMessage().endsWith("0000000000000000002.xstreambinarysnapshot cannot be read; only [xstreamsnapshot] supported"));
+		}
+	}
+
 	public void testMultipleSerializationStrategiesFromXStream() throws Exception {
 		Prevayler<StringBuffer> prevayler = createPrevayler("xstreamsnapshot", new XStreamSerializer());
 		appendTakeSnapshotAndClose(prevayler);
@@ -102,6 +122,14 @@ public class GenericSnapshotManagerTest extends FileIOTest {
 		return factory.create();
 	}
 
+	private Prevayler<StringBuffer> createPrevayler(XStreamSerializer serializer) throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer("initial"));
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureSnapshotSerializer(serializer);
+		return factory.create();
+	}
+
 	private void appendTakeSnapshotAndClose(Prevayler<StringBuffer> prevayler) throws Exception {
 		prevayler.execute(new AppendTransaction(" one"));
 		prevayler.execute(new AppendTransaction(" two"));
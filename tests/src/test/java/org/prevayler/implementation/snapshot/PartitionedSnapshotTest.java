@@ -0,0 +1,121 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.SnapshotPartitioner;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.TreeMap;
+
+public class PartitionedSnapshotTest extends FileIOTest {
+
+	public void testRoundtrip() throws Exception {
+		Prevayler<Accounts> prevayler = createPrevayler();
+		for (int i = 0; i < 100; i++) prevayler.execute(new Deposit("account" + i, i));
+		File snapshot = prevayler.takeSnapshot();
+		prevayler.close();
+
+		assertEquals("0000000000000000100.snapshot", snapshot.getName());
+		for (int i = 0; i < Accounts.SEGMENTS; i++) assertTrue(PrevaylerDirectory.snapshotSegmentFile(snapshot, i).exists());
+		assertEquals(Accounts.SEGMENTS, PrevaylerDirectory.snapshotSegmentFiles(snapshot).size());
+		assertTrue(new PrevaylerDirectory(_testDirectory).necessaryFiles().containsAll(PrevaylerDirectory.snapshotSegmentFiles(snapshot)));
+
+		deleteFromTestDirectory("0000000000000000001.journal");
+		Prevayler<Accounts> recovered = createPrevayler();
+		assertEquals(100, recovered.prevalentSystem().size());
+		assertEquals(Integer.valueOf(42), recovered.prevalentSystem().balance("account42"));
+		recovered.close();
+	}
+
+	public void testNonPublicConstructor() throws Exception {
+		Prevayler<Accounts> prevayler = createPrevayler(new HiddenAccounts());
+		prevayler.execute(new Deposit("account", 7));
+		prevayler.takeSnapshot();
+		prevayler.close();
+
+		deleteFromTestDirectory("0000000000000000001.journal");
+		Prevayler<Accounts> recovered = createPrevayler(new HiddenAccounts());
+		assertSame(HiddenAccounts.class, recovered.prevalentSystem().getClass());
+		assertEquals(Integer.valueOf(7), recovered.prevalentSystem().balance("account"));
+		recovered.close();
+	}
+
+	private Prevayler<Accounts> createPrevayler() throws Exception {
+		return createPrevayler(new Accounts());
+	}
+
+	private Prevayler<Accounts> createPrevayler(Accounts system) throws Exception {
+		PrevaylerFactory<Accounts> factory = new PrevaylerFactory<Accounts>();
+		factory.configurePrevalentSystem(system);
+		factory.configurePrevalenceDirectory(_testDirectory);
+		return factory.create();
+	}
+
+
+	public static class Accounts implements SnapshotPartitioner, Serializable {
+		private static final long serialVersionUID = 1L;
+		static final int SEGMENTS = 4;
+
+		private TreeMap[] _segments = new TreeMap[SEGMENTS];
+
+		public Accounts() {
+			for (int i = 0; i < SEGMENTS; i++) _segments[i] = new TreeMap();
+		}
+
+		void deposit(String account, int amount) {
+			Integer balance = balance(account);
+			segmentFor(account).put(account, Integer.valueOf(amount + (balance == null ? 0 : balance.intValue())));
+		}
+
+		Integer balance(String account) {
+			return (Integer) segmentFor(account).get(account);
+		}
+
+		int size() {
+			int result = 0;
+			for (int i = 0; i < SEGMENTS; i++) result += _segments[i].size();
+			return result;
+		}
+
+		private TreeMap segmentFor(String account) {
+			return _segments[(account.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+		}
+
+		public Object[] snapshotSegments() {
+			return _segments.clone();
+		}
+
+		public void restoreSnapshotSegments(Object[] segments) {
+			for (int i = 0; i < SEGMENTS; i++) _segments[i] = (TreeMap) segments[i];
+		}
+	}
+
+
+	static private class HiddenAccounts extends Accounts {
+		private static final long serialVersionUID = 1L;
+
+		private HiddenAccounts() {}
+	}
+
+
+	static private class Deposit implements Transaction<Accounts> {
+		private static final long serialVersionUID = 1L;
+		private final String _account;
+		private final int _amount;
+
+		Deposit(String account, int amount) {
+			_account = account;
+			_amount = amount;
+		}
+
+		public void executeOn(Accounts accounts, Date executionTime) {
+			accounts.deposit(_account, _amount);
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.File;
+
+public class SnapshotBuilderTest extends FileIOTest {
+
+	public void testBuildsSnapshotsWhileThePrevaylerRuns() throws Exception {
+		Prevayler<StringBuffer> prevayler = factory().create();
+		prevayler.execute(new AppendTransaction(" one"));
+		prevayler.execute(new AppendTransaction(" two"));
+
+		SnapshotBuilder<StringBuffer> builder = factory().createSnapshotBuilder();
+		assertEquals("0000000000000000002.snapshot", builder.build().getName());
+		assertNull(builder.build());
+
+		prevayler.execute(new AppendTransaction(" three"));
+		assertEquals("0000000000000000003.snapshot", builder.build().getName());
+		assertEquals("initial one two three", prevayler.prevalentSystem().toString());
+		prevayler.close();
+
+		deleteFromTestDirectory("0000000000000000001.journal");
+		Prevayler<StringBuffer> recovered = factory().create();
+		assertEquals("initial one two three", recovered.prevalentSystem().toString());
+		recovered.close();
+	}
+
+	public void testPicksUpNewerSnapshots() throws Exception {
+		Prevayler<StringBuffer> prevayler = factory().create();
+		SnapshotBuilder<StringBuffer> builder = factory().createSnapshotBuilder();
+
+		prevayler.execute(new AppendTransaction(" one"));
+		prevayler.takeSnapshot();
+		prevayler.close();
+		deleteFromTestDirectory("0000000000000000001.journal");
+
+		prevayler = factory().create();
+		prevayler.execute(new AppendTransaction(" two"));
+		assertEquals("0000000000000000002.snapshot", builder.build().getName());
+		prevayler.close();
+	}
+
+	public void testBackgroundThread() throws Exception {
+		Prevayler<StringBuffer> prevayler = factory().create();
+		SnapshotBuilder<StringBuffer> builder = factory().createSnapshotBuilder();
+		builder.start(10);
+
+		prevayler.execute(new AppendTransaction(" one"));
+		File snapshot = new File(_testDirectory, "0000000000000000001.snapshot");
+		for (int i = 0; i < 500 && !snapshot.exists(); i++) Cool.sleep(10);
+		assertTrue(snapshot.exists());
+
+		builder.stop();
+		assertNull(builder.lastFailure());
+		prevayler.close();
+	}
+
+	private PrevaylerFactory<StringBuffer> factory() {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer("initial"));
+		factory.configurePrevalenceDirectory(_testDirectory);
+		return factory;
+	}
+
+}
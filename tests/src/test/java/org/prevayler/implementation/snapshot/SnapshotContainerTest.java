@@ -0,0 +1,96 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.serialization.CompactSerializer;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.AppendTransaction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+public class SnapshotContainerTest extends FileIOTest {
+
+	public void testRoundtripAndVerify() throws Exception {
+		File file = new File(_testDirectory, "container");
+		SnapshotContainer.write(file, 42, new JavaSerializer(), "contents");
+
+		SnapshotContainer header = SnapshotContainer.verify(file);
+		assertEquals(42, header.snapshotVersion());
+		assertEquals(JavaSerializer.class.getName(), header.serializerName());
+		assertEquals(file.length() - header.size(), headerLength());
+		assertEquals("contents", SnapshotContainer.read(file, new JavaSerializer()));
+	}
+
+	public void testChecksTheSerializer() throws Exception {
+		File file = new File(_testDirectory, "container");
+		SnapshotContainer.write(file, 1, new JavaSerializer(), "contents");
+
+		try {
+			SnapshotContainer.read(file, new CompactSerializer());
+			fail();
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().endsWith("was written by " + JavaSerializer.class.getName() + " and cannot be read by " + CompactSerializer.class.getName() + "."));
+		}
+	}
+
+	public void testDetectsCorruption() throws Exception {
+		File file = new File(_testDirectory, "container");
+		SnapshotContainer.write(file, 1, new JavaSerializer(), "contents");
+
+		RandomAccessFile corrupt = new RandomAccessFile(file, "rw");
+		corrupt.seek(file.length() - 2);
+		corrupt.write('X');
+		corrupt.close();
+
+		try {
+			SnapshotContainer.verify(file);
+			fail();
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().indexOf("corrupted") != -1);
+		}
+	}
+
+	public void testDetectsTruncation() throws Exception {
+		File file = new File(_testDirectory, "container");
+		SnapshotContainer.write(file, 1, new JavaSerializer(), "contents");
+
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		truncated.setLength(file.length() - 1);
+		truncated.close();
+
+		try {
+			SnapshotContainer.verify(file);
+			fail();
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().indexOf("truncated") != -1);
+		}
+	}
+
+	public void testReadsSnapshotsWithoutHeader() throws Exception {
+		File legacy = new File(_testDirectory, "0000000000000000002.snapshot");
+		OutputStream out = new FileOutputStream(legacy);
+		new JavaSerializer().writeObject(out, new StringBuffer("initial one two"));
+
+		assertNull(SnapshotContainer.verify(legacy));
+
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer("initial"));
+		factory.configurePrevalenceDirectory(_testDirectory);
+		Prevayler<StringBuffer> prevayler = factory.create();
+		assertEquals("initial one two", prevayler.prevalentSystem().toString());
+
+		prevayler.execute(new AppendTransaction(" three"));
+		assertNotNull(SnapshotContainer.verify(prevayler.takeSnapshot()));
+		prevayler.close();
+	}
+
+	private long headerLength() {
+		return 8 + 4 + 8 + 8 + 8 + 2 + JavaSerializer.class.getName().length();
+	}
+
+}
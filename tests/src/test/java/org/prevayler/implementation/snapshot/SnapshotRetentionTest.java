@@ -0,0 +1,118 @@
+package org.prevayler.implementation.snapshot;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.AppendTransaction;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+public class SnapshotRetentionTest extends FileIOTest {
+
+	public void testObsoleteFiles() throws Exception {
+		createFiles(new String[] {"0000000000000000001.journal", "0000000000000000003.snapshot", "0000000000000000003.snapshot.segment0", "0000000000000000004.journal", "0000000000000000006.snapshot", "0000000000000000008.journal", "0000000000000000009.snapshot", "snapshot9temp.generatingSnapshot"});
+		PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+
+		assertEquals(files(new String[] {"0000000000000000009.snapshot", "0000000000000000008.journal"}), directory.necessaryFiles(1));
+		assertEquals(files(new String[] {"0000000000000000006.snapshot", "0000000000000000009.snapshot", "0000000000000000004.journal", "0000000000000000008.journal"}), directory.necessaryFiles(2));
+		assertEquals(files(new String[] {"0000000000000000001.journal", "0000000000000000003.snapshot", "0000000000000000003.snapshot.segment0"}), directory.obsoleteFiles(2));
+		assertEquals(directory.obsoleteFiles(3), directory.obsoleteFiles(4));
+		assertEquals(files(new String[] {"0000000000000000001.journal"}), directory.obsoleteFiles(3));
+	}
+
+	public void testPruneWithoutArchive() throws Exception {
+		createFiles(new String[] {"0000000000000000001.journal", "0000000000000000003.snapshot", "0000000000000000004.journal", "0000000000000000006.snapshot", "snapshot6temp.generatingSnapshot"});
+		SnapshotRetention retention = new SnapshotRetention(new PrevaylerDirectory(_testDirectory), 1, null, SnapshotRetention.UNTHROTTLED);
+		assertEquals(2, retention.prune());
+		assertEquals(0, retention.prune());
+		retention.close();
+
+		assertEquals(new HashSet(Arrays.asList(new String[] {"0000000000000000004.journal", "0000000000000000006.snapshot", "snapshot6temp.generatingSnapshot"})), new HashSet(Arrays.asList(new File(_testDirectory).list())));
+	}
+
+	public void testArchiveIsThrottled() throws Exception {
+		createFiles(new String[] {"0000000000000000001.snapshot", "0000000000000000002.snapshot"});
+		FileOutputStream out = new FileOutputStream(new File(_testDirectory, "0000000000000000001.snapshot"));
+		out.write(new byte[20000]);
+		out.close();
+
+		File archive = new File(_testDirectory, "archive");
+		SnapshotRetention retention = new SnapshotRetention(new PrevaylerDirectory(_testDirectory), 1, archive, 100000);
+		long start = System.currentTimeMillis();
+		assertEquals(1, retention.prune());
+		assertTrue(System.currentTimeMillis() - start >= 150);
+		retention.close();
+
+		assertEquals(20000, uncompressedLength(new File(archive, "0000000000000000001.snapshot.gz")));
+	}
+
+	public void testPrunesWhenSnapshotsAreTaken() throws Exception {
+		File archive = new File(_testDirectory, "archive");
+		Prevayler<StringBuffer> prevayler = createPrevayler(archive);
+		for (int i = 0; i < 3; i++) {
+			prevayler.execute(new AppendTransaction("a"));
+			prevayler.execute(new AppendTransaction("b"));
+			prevayler.takeSnapshot();
+		}
+
+		PrevaylerDirectory directory = new PrevaylerDirectory(_testDirectory);
+		for (int i = 0; i < 500 && !directory.obsoleteFiles(2).isEmpty(); i++) Cool.sleep(10);
+		prevayler.close();
+
+		assertTrue(directory.obsoleteFiles(2).isEmpty());
+		assertTrue(new File(archive, "0000000000000000002.snapshot.gz").exists());
+		assertFalse(new File(_testDirectory, "0000000000000000002.snapshot").exists());
+		assertTrue(new File(_testDirectory, "0000000000000000004.snapshot").exists());
+		String[] archived = archive.list();
+		assertTrue(archived.length > 1);
+		for (int i = 0; i < archived.length; i++) {
+			assertTrue(archived[i].endsWith(".gz"));
+			File original = new File(_testDirectory, archived[i].substring(0, archived[i].length() - 3));
+			assertFalse(original.exists());
+			if (PrevaylerDirectory.journalVersion(original) != -1) assertTrue(PrevaylerDirectory.journalVersion(original) <= 4);
+		}
+
+		prevayler = createPrevayler(archive);
+		assertEquals("ababab", prevayler.prevalentSystem().toString());
+		prevayler.close();
+	}
+
+	private Prevayler<StringBuffer> createPrevayler(File archive) throws Exception {
+		PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+		factory.configurePrevalentSystem(new StringBuffer());
+		factory.configurePrevalenceDirectory(_testDirectory);
+		factory.configureJournalFileSizeThreshold(1);  // A journal file per transaction.
+		factory.configureSnapshotRetention(2, archive.getPath(), SnapshotRetention.UNTHROTTLED);
+		return factory.create();
+	}
+
+	private void createFiles(String[] names) throws IOException {
+		for (int i = 0; i < names.length; i++) assertTrue(new File(_testDirectory, names[i]).createNewFile());
+	}
+
+	private Set files(String[] names) {
+		Set result = new HashSet();
+		for (int i = 0; i < names.length; i++) result.add(new File(_testDirectory, names[i]));
+		return result;
+	}
+
+	private long uncompressedLength(File file) throws IOException {
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		long result = 0;
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) != -1) result += count;
+		in.close();
+		return result;
+	}
+
+}